@@ -0,0 +1,324 @@
+package com.irfanAK.delta;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Quick benchmarks outside of JMH, run from the jar of the bench profile
+ * java -cp target/benchmarks.jar com.irfanAK.delta.DeltaBenchmark <name> [parameters]
+ * each prints one line per measured size, the time is the median of the runs after a warm up
+ */
+public class DeltaBenchmark {
+
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 5;
+
+    public static void main(String[] args) throws NoSuchAlgorithmException, IOException {
+        Run(args.length > 0 ? args[0] : "", args.length > 0 ? Arrays.copyOfRange(args, 1, args.length) : args);
+    }
+
+    public static void Run(String name, String[] parameters) throws NoSuchAlgorithmException, IOException {
+        if(name.equalsIgnoreCase("folder")){
+            FolderHash(new int[]{1000, 10000, 50000, 100000, 200000, 1000000});
+        }else if(name.equalsIgnoreCase("pipeline")){
+            int files = parameters.length > 0 ? Integer.parseInt(parameters[0]) : 1000000;
+            Path parent = parameters.length > 1 ? Path.of(parameters[1]) : Path.of(System.getProperty("java.io.tmpdir"));
+            ReadPipeline(files, 4096, parent);
+        }else if(name.equalsIgnoreCase("cdc")){
+            Chunking(parameters.length > 0 ? Integer.parseInt(parameters[0]) : 1024);
+        }else if(name.equalsIgnoreCase("server")){
+            QueryServer(parameters.length > 0 ? Integer.parseInt(parameters[0]) : 1000000,
+                    parameters.length > 1 ? Integer.parseInt(parameters[1]) : Runtime.getRuntime().availableProcessors(),
+                    parameters.length > 2 ? Integer.parseInt(parameters[2]) : 5);
+        }else{
+            System.out.println("Unknown benchmark " + name + "\n" +
+                    "folder - folder hash time vs. entry count\n" +
+                    "pipeline [files] [folder] - small file full hashes, one by one vs. the read pipeline, default 1000000 files of 4 KB\n" +
+                    "cdc [mb] - content defined chunking rate over random data in memory, default 1024 MB\n" +
+                    "server [entries] [clients] [seconds] - query server latency and rate over a synthetic index, default 1000000 entries, a client per core, 5 s per batch size\n");
+        }
+    }
+
+    /**
+     * Times FolderArrayHash (sort and digest of the child hashes) over random and already sorted children
+     */
+    public static void FolderHash(int[] entryCounts) throws NoSuchAlgorithmException {
+        DeltaHashProvider provider = DeltaHashProvider.Of("SHA-256");
+        System.out.println("entries, random ms, sorted ms");
+        for (int entries : entryCounts) {
+            ArrayList<byte[]> random = RandomHashes(entries, 32, entries);
+            ArrayList<byte[]> sorted = DeltaUtil.HashesSort(random);
+            System.out.println(entries + ", " + MedianMillis(random, provider) + ", " + MedianMillis(sorted, provider));
+        }
+    }
+
+    /**
+     * Writes a synthetic tree of small files and full hashes it one file at a time, then through DeltaReadPipeline
+     * with a growing number of readers, the tree is deleted afterwards
+     * the files were just written so they are read from the page cache unless it is dropped between the runs
+     */
+    public static void ReadPipeline(int fileCount, int fileSize, Path parent) throws IOException, NoSuchAlgorithmException {
+        Path root = Files.createTempDirectory(parent, "delta-bench");
+        try {
+            System.out.println("writing " + fileCount + " files of " + fileSize + " bytes to " + root);
+            WriteTree(root, fileCount, fileSize);
+            List<DeltaFileEntry> files = DeltaScanner.ListFiles(List.of(root));
+            DeltaHashProvider provider = DeltaHashProvider.Of("SHA-256");
+            int cores = Runtime.getRuntime().availableProcessors();
+
+            System.out.println("mode, readers, hashers, files/s, MB/s");
+            long start = System.nanoTime();
+            for (DeltaFileEntry file : files)
+                DeltaHash.FileChunkHash(file.getPath(), file.getSize(), fileSize / 1024, -1, provider, DeltaHash.DEFAULT_READ_SIZE);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("sequential, 1, 1, %.0f, %.1f", files.size() / seconds, (double) fileCount * fileSize / seconds / (1024 * 1024)));
+
+            for (int readers : new int[]{1, 4, 8, 16}) {
+                DeltaReadPipeline pipeline = new DeltaReadPipeline(readers, cores, DeltaReadPipeline.DEFAULT_BYTE_BUDGET, DeltaReadPipeline.DEFAULT_BUFFER_SIZE);
+                pipeline.HashFiles(files, provider);
+                System.out.println(String.format("pipeline, %d, %d, %.0f, %.1f", readers, cores, pipeline.getFilesPerSecond(), pipeline.getMegabytesPerSecond()));
+            }
+        } finally {
+            DeleteTree(root);
+        }
+    }
+
+    /**
+     * Chunks random data from memory, so the rate is the one of the chunker with each digest and not of the disk
+     */
+    public static void Chunking(int megabytes) throws NoSuchAlgorithmException, IOException {
+        byte[] data = new byte[64 * 1024 * 1024];
+        new Random(megabytes).nextBytes(data);
+        long total = (long) megabytes * 1024 * 1024;
+        System.out.println("digest, MB/s, chunks, average chunk");
+        for (String algorithm : new String[]{DeltaXXHash64.NAME, "SHA-256"}) {
+            DeltaChunker chunker = new DeltaChunker(DeltaChunker.DEFAULT_AVERAGE_SIZE, DeltaHashProvider.Of(algorithm));
+            long[] chunks = new long[1];
+            for (int run = -WARMUP_RUNS; run < 1; run++) {
+                chunks[0] = 0;
+                long start = System.nanoTime();
+                chunker.Chunk(new RepeatingChannel(data, total), (offset, length, hash) -> chunks[0]++);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                if(run == 0)
+                    System.out.println(String.format("%s, %.0f, %d, %d", algorithm, megabytes / seconds, chunks[0], total / Math.max(1, chunks[0])));
+            }
+        }
+    }
+
+    /**
+     * Loads a synthetic index of random hashes into a DeltaQueryServer and has the clients send HASH requests
+     * for as long as given per batch size, half of them for hashes in the index
+     * the latency is the round trip of one batch, a batch of 1 is a single request
+     */
+    public static void QueryServer(int entries, int clients, int seconds) throws IOException, NoSuchAlgorithmException {
+        Path index = Files.createTempFile("delta-bench", ".idx");
+        try {
+            ArrayList<byte[]> hashes = RandomHashes(entries, 32, entries);
+            try(BufferedWriter bw = Files.newBufferedWriter(index)){
+                bw.write("#DELTA-INDEX:2");
+                bw.newLine();
+                for (int i = 0; i < entries; i++) {
+                    bw.write("SHA-256:" + DeltaUtil.ByteToHexString(hashes.get(i)) + ":4096:0:-:FULL:0:/archive/d" + i / 1000 + "/f" + i);
+                    bw.newLine();
+                }
+            }
+            try(DeltaQueryServer server = new DeltaQueryServer(index, "SHA-256", 0, clients)){
+                server.Start();
+                System.out.println("clients, batch, requests/s, p50 us, p99 us");
+                for (int batch : new int[]{1, 16, 256}) {
+                    long[][] latencies = new long[clients][];
+                    Thread[] threads = new Thread[clients];
+                    long end = System.nanoTime() + seconds * 1_000_000_000L;
+                    IOException[] failed = new IOException[1];
+                    for (int c = 0; c < clients; c++) {
+                        int client = c;
+                        threads[c] = new Thread(() -> {
+                            try {
+                                latencies[client] = QueryClient(server.getPort(), hashes, batch, end, client);
+                            } catch (IOException e) {
+                                failed[0] = e;
+                            }
+                        });
+                        threads[c].start();
+                    }
+                    for (Thread t : threads)
+                        t.join();
+                    if(failed[0] != null)
+                        throw failed[0];
+                    int count = 0;
+                    for (long[] l : latencies)
+                        count += l.length;
+                    long[] all = new long[count];
+                    int n = 0;
+                    for (long[] l : latencies) {
+                        System.arraycopy(l, 0, all, n, l.length);
+                        n += l.length;
+                    }
+                    Arrays.sort(all);
+                    System.out.println(String.format("%d, %d, %.0f, %.1f, %.1f", clients, batch, (double) count * batch / seconds,
+                            all[count / 2] / 1e3, all[(int) (count * 0.99)] / 1e3));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            Files.deleteIfExists(index);
+        }
+    }
+
+    // sends batches until the end time, returns the round trip of every batch in nanoseconds
+    private static long[] QueryClient(int port, ArrayList<byte[]> hashes, int batch, long end, int seed) throws IOException {
+        Random r = new Random(seed);
+        long[] latencies = new long[1024];
+        int n = 0;
+        byte[] miss = new byte[32];
+        try(Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))){
+            socket.setTcpNoDelay(true);
+            while (System.nanoTime() < end){
+                long start = System.nanoTime();
+                for (int i = 0; i < batch; i++) {
+                    byte[] hash = hashes.get(r.nextInt(hashes.size()));
+                    if(r.nextBoolean()){
+                        r.nextBytes(miss);
+                        hash = miss;
+                    }
+                    out.write("HASH " + DeltaUtil.ByteToHexString(hash) + " 4096");
+                    out.newLine();
+                }
+                out.flush();
+                for (int i = 0; i < batch; i++)
+                    if(in.readLine() == null)
+                        throw new IOException("Server closed the connection");
+                if(n == latencies.length)
+                    latencies = Arrays.copyOf(latencies, n * 2);
+                latencies[n++] = System.nanoTime() - start;
+            }
+        }
+        return Arrays.copyOf(latencies, n);
+    }
+
+    // read only channel over the same data repeated up to the given size
+    private static class RepeatingChannel implements SeekableByteChannel {
+        private final byte[] Data;
+        private final long Size;
+        private long Position;
+
+        private RepeatingChannel(byte[] data, long size){
+            Data = data;
+            Size = size;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if(Position >= Size)
+                return -1;
+            int offset = (int) (Position % Data.length);
+            int n = (int) Math.min(Math.min(dst.remaining(), Data.length - offset), Size - Position);
+            dst.put(Data, offset, n);
+            Position += n;
+            return n;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long position() {
+            return Position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            Position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return Size;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // 1000 files per folder, every file starts with its own number so no two are equal
+    private static void WriteTree(Path root, int fileCount, int fileSize) throws IOException {
+        byte[] data = new byte[fileSize];
+        new Random(fileCount).nextBytes(data);
+        Path folder = root;
+        for (int i = 0; i < fileCount; i++) {
+            if(i % 1000 == 0)
+                folder = Files.createDirectory(root.resolve("d" + i / 1000));
+            for (int b = 0; b < 4 && b < fileSize; b++)
+                data[b] = (byte) (i >>> (b * 8));
+            Files.write(folder.resolve("f" + i), data);
+        }
+    }
+
+    private static void DeleteTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static double MedianMillis(ArrayList<byte[]> hashes, DeltaHashProvider provider) throws NoSuchAlgorithmException {
+        double[] times = new double[MEASURED_RUNS];
+        for (int run = -WARMUP_RUNS; run < MEASURED_RUNS; run++) {
+            long start = System.nanoTime();
+            DeltaHash.FolderArrayHash(hashes, provider);
+            long time = System.nanoTime() - start;
+            if(run >= 0)
+                times[run] = time / 1e6;
+        }
+        Arrays.sort(times);
+        return times[MEASURED_RUNS / 2];
+    }
+
+    static ArrayList<byte[]> RandomHashes(int count, int length, long seed){
+        Random r = new Random(seed);
+        ArrayList<byte[]> hashes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] hash = new byte[length];
+            r.nextBytes(hash);
+            hashes.add(hash);
+        }
+        return hashes;
+    }
+}
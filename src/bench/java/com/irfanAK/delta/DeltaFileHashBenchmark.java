@@ -0,0 +1,57 @@
+package com.irfanAK.delta;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ways a single file is fully hashed, Delta.hash and Delta.hash2 against FileChunkHash
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DeltaFileHashBenchmark {
+
+    @Param({"4096", "1048576", "67108864"})
+    public int size;
+
+    private Path File;
+    private DeltaHashProvider Provider;
+
+    @Setup(Level.Trial)
+    public void Setup() throws IOException, NoSuchAlgorithmException {
+        File = Files.createTempFile("delta-jmh", ".bin");
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        Files.write(File, data);
+        Provider = DeltaHashProvider.Of("SHA-256");
+    }
+
+    @TearDown(Level.Trial)
+    public void TearDown() throws IOException {
+        Files.deleteIfExists(File);
+    }
+
+    @Benchmark
+    public byte[] StreamHash(){
+        return Delta.hash(File);
+    }
+
+    @Benchmark
+    public byte[] ReadAllHash(){
+        return Delta.hash2(File);
+    }
+
+    @Benchmark
+    public byte[] FileChunkHash() throws IOException, NoSuchAlgorithmException {
+        return DeltaHash.FileChunkHash(File, size, 50, -1, Provider, DeltaHash.DEFAULT_READ_SIZE);
+    }
+}
@@ -0,0 +1,79 @@
+package com.irfanAK.delta;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes trees of random files for the benchmarks, the same parameters and seed always give the same tree
+ * - sizes: "small" 512 bytes to 64 KB, "mixed" 512 bytes to 4 MB, "large" 1 MB to 16 MB, log uniform so small files dominate the count
+ * - duplicateRatio: share of the files that are a copy of an earlier file
+ * - fanOut: entries per folder, the folders nest so a tree of n files is about log(n) / log(fanOut) deep
+ */
+public class DeltaSyntheticTree {
+
+    public static List<Path> Write(Path root, int fileCount, String sizes, double duplicateRatio, int fanOut, long seed) throws IOException {
+        if(fanOut < 2)
+            throw new IllegalArgumentException("Fan Out must be at least 2. fanOut can not be " + fanOut + ".");
+        Random r = new Random(seed);
+        ArrayList<Path> files = new ArrayList<>();
+        for (int i = 0; i < fileCount; i++) {
+            Path folder = root;
+            for (int n = i / fanOut; n > 0; n /= fanOut)
+                folder = folder.resolve("d" + n % fanOut);
+            Files.createDirectories(folder);
+            Path file = folder.resolve("f" + i);
+            if(!files.isEmpty() && r.nextDouble() < duplicateRatio){
+                Files.copy(files.get(r.nextInt(files.size())), file);
+            }else{
+                byte[] data = new byte[Size(sizes, r)];
+                r.nextBytes(data);
+                Files.write(file, data);
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    private static int Size(String sizes, Random r){
+        double min, max;
+        switch (sizes){
+            case "small":
+                min = 512;
+                max = 64 * 1024;
+                break;
+            case "mixed":
+                min = 512;
+                max = 4 * 1024 * 1024;
+                break;
+            case "large":
+                min = 1024 * 1024;
+                max = 16 * 1024 * 1024;
+                break;
+            default:
+                throw new IllegalArgumentException("Sizes must be small, mixed or large. sizes can not be " + sizes + ".");
+        }
+        return (int) Math.exp(Math.log(min) + r.nextDouble() * (Math.log(max) - Math.log(min)));
+    }
+
+    public static void Delete(Path root) throws IOException {
+        if(!Files.exists(root))
+            return;
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,94 @@
+package com.irfanAK.delta;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing and duplicate grouping over a synthetic tree, one tree per parameter combination, written once per trial
+ * the files were just written so they are read from the page cache, this measures the code and not the disk
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DeltaTreeBenchmark {
+
+    @Param({"1000"})
+    public int files;
+
+    // large writes a few GB per trial, pick the sizes with -p sizes=small,mixed for a quick run
+    @Param({"small", "mixed", "large"})
+    public String sizes;
+
+    @Param({"0.0", "0.5"})
+    public double duplicateRatio;
+
+    @Param({"10", "1000"})
+    public int fanOut;
+
+    private Path Root;
+    private Path Output;
+    private List<DeltaFileEntry> Entries;
+    private DeltaHashProvider Provider;
+    // hashed once, so the cached benchmarks only walk and compare attributes
+    private DeltaHash Cached;
+
+    @Setup(Level.Trial)
+    public void Setup() throws IOException, NoSuchAlgorithmException {
+        Root = Files.createTempDirectory("delta-jmh");
+        Output = Files.createTempDirectory("delta-jmh-out");
+        DeltaSyntheticTree.Write(Root, files, sizes, duplicateRatio, fanOut, 42);
+        Entries = DeltaScanner.ListFiles(List.of(Root));
+        Provider = DeltaHashProvider.Of("SHA-256");
+        Cached = new DeltaHash("SHA-256");
+        Cached.DeltaFileHash(Root, 50, 10);
+    }
+
+    @TearDown(Level.Trial)
+    public void TearDown() throws IOException {
+        DeltaSyntheticTree.Delete(Root);
+        DeltaSyntheticTree.Delete(Output);
+    }
+
+    @Benchmark
+    public void SampledHash(Blackhole bh) throws IOException, NoSuchAlgorithmException {
+        for (DeltaFileEntry f : Entries)
+            bh.consume(DeltaHash.FileChunkHash(f.getPath(), f.getSize(), 50, Cached.IsFullHashed(f.getSize(), 50, 10) ? -1 : 10, Provider, DeltaHash.DEFAULT_READ_SIZE));
+    }
+
+    @Benchmark
+    public void FullHash(Blackhole bh) throws IOException, NoSuchAlgorithmException {
+        for (DeltaFileEntry f : Entries)
+            bh.consume(DeltaHash.FileChunkHash(f.getPath(), f.getSize(), 50, -1, Provider, DeltaHash.DEFAULT_READ_SIZE));
+    }
+
+    @Benchmark
+    public byte[] FolderHash() throws IOException, NoSuchAlgorithmException {
+        return new DeltaHash("SHA-256").DeltaFileHash(Root, 50, 10);
+    }
+
+    @Benchmark
+    public byte[] FolderHashCached() throws IOException, NoSuchAlgorithmException {
+        return Cached.DeltaFileHash(Root, 50, 10);
+    }
+
+    @Benchmark
+    public Object DuplicateGroups() throws IOException, NoSuchAlgorithmException {
+        DeltaHash candidate = new DeltaHash(DeltaHashProvider.Of(DeltaXXHash64.NAME), 1, DeltaHash.DEFAULT_READ_SIZE);
+        return new DeltaDuplicateFinder(candidate, 50, 10, 1).FindDuplicateGroups(List.of(Root));
+    }
+
+    @Benchmark
+    public void DumpSorted() throws IOException {
+        Cached.DumpToFileSorted(Output.resolve("dump.dat"), Output.resolve("dumpSH.dat"), 0);
+    }
+}
@@ -0,0 +1,55 @@
+package com.irfanAK.delta;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In memory hot paths, hex encoding, the radix sort of child hashes and the folder hash over them
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DeltaUtilBenchmark {
+
+    @Param({"1000", "100000"})
+    public int hashes;
+
+    private ArrayList<byte[]> Hashes;
+    private DeltaHashProvider Provider;
+
+    @Setup(Level.Trial)
+    public void Setup() throws NoSuchAlgorithmException {
+        Hashes = DeltaBenchmark.RandomHashes(hashes, 32, hashes);
+        Provider = DeltaHashProvider.Of("SHA-256");
+    }
+
+    @Benchmark
+    public void HexEncode(Blackhole bh){
+        for (byte[] h : Hashes)
+            bh.consume(DeltaUtil.ByteToHexString(h));
+    }
+
+    // the String.format variant still in Delta
+    @Benchmark
+    public void HexEncodeFormat(Blackhole bh){
+        for (byte[] h : Hashes)
+            bh.consume(Delta.ByteToHexString(h));
+    }
+
+    @Benchmark
+    public ArrayList<byte[]> HashesSort(){
+        return DeltaUtil.HashesSort(Hashes);
+    }
+
+    @Benchmark
+    public byte[] FolderArrayHash() throws NoSuchAlgorithmException {
+        return DeltaHash.FolderArrayHash(Hashes, Provider);
+    }
+}
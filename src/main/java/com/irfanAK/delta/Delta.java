@@ -3,11 +3,18 @@ package com.irfanAK.delta;
 import com.sun.tools.javac.Main;
 
 import java.io.*;
+import java.net.InetAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Properties;
+import javax.management.JMException;
 
 
 public class Delta {
@@ -19,11 +26,75 @@ public class Delta {
 
     public static void main(String[] args) {
         System.out.println(APP_NAME + " V" + APP_VERSION);
-        DeltaHash dh = new DeltaHash("SHA-256");
+        HashMap<String,String> options = new HashMap<>();
+        args = ParseOptions(args, options);
+        int threads = Integer.parseInt(options.getOrDefault("threads", "1"));
+        int readSize = Integer.parseInt(options.getOrDefault("read-size", "" + DeltaHash.DEFAULT_READ_SIZE / 1024)) * 1024;
+        String algorithm = options.getOrDefault("algorithm", "SHA-256");
+        // reads are only limited per store when several threads could hit the same disk
+        DeltaIOScheduler scheduler = threads > 1 ? new DeltaIOScheduler(
+                Integer.parseInt(options.getOrDefault("hdd-reads", "2")),
+                Integer.parseInt(options.getOrDefault("ssd-reads", "32"))) : null;
+        DeltaHash dh = new DeltaHash(DeltaHashProvider.Of(algorithm), threads, readSize, scheduler);
+        // small files are read ahead of the hashing, the budget bounds the bytes waiting to be digested
+        DeltaReadPipeline pipeline = options.containsKey("pipeline") ? new DeltaReadPipeline(
+                Integer.parseInt(options.getOrDefault("pipeline-readers", "8")),
+                threads,
+                Long.parseLong(options.getOrDefault("pipeline-budget", "" + DeltaReadPipeline.DEFAULT_BYTE_BUDGET / (1024 * 1024))) * 1024 * 1024,
+                DeltaReadPipeline.DEFAULT_BUFFER_SIZE, scheduler) : null;
         if(args.length < 2){
             System.out.println("need more then one argument \n" +
                     "H - basic hash \n" +
-                    "D - dump\n");
+                    "D - dump\n" +
+                    "STAGED - duplicate search by size, sampled hash then full hash\n" +
+                    "LINK - replace duplicate files with hard links to one copy\n" +
+                    "DIFF - added, removed, modified and moved files between two folders or snapshots\n" +
+                    "CHUNKS - content defined chunks shared between files and the dedupe ratio\n" +
+                    "SIMILAR - groups of files that are mostly the same, by MinHash over their chunks\n" +
+                    "WATCH - keep the hashes of folders live and answer duplicate queries typed in, a path, groups, status or quit\n" +
+                    "SERVE - answer hash and path lookups against an index on a loopback port, serve <index file> [port]\n" +
+                    "SHARD - hash folders into a sorted shard, to be merged with the shards of other scanners\n" +
+                    "MERGE - duplicate sets over any number of shards\n" +
+                    "INDEX - hash folders into a binary index\n" +
+                    "LOOKUP - look up a hash or file in a binary index\n" +
+                    "CHECK - new and known files of folders against a binary index, through its bloom filter\n" +
+                    "ENCRYPT - encrypt a file with a password as AES-GCM segments, encrypt <file> <encrypted file>\n" +
+                    "DECRYPT - decrypt a file or a byte range of it, decrypt <encrypted file> <file> [offset length]\n" +
+                    "KEYGEN - write an EC key pair for signing, keygen <private key file>, the public key is written as <file>.pub\n" +
+                    "SIGN - sign a file as a Merkle tree of its blocks into <file>.sig, sign <file> <private key file>\n" +
+                    "VERIFY - verify a signed file or a byte range of it and locate corrupted blocks, verify <file> <public key file> [offset length]\n" +
+                    "SYNC - copy only what differs from a source folder to a destination folder, rsync style, sync <source> <destination>\n" +
+                    "options \n" +
+                    "--threads=<n> - number of threads used for hashing, default 1\n" +
+                    "--hdd-reads=<n> - concurrent reads per spinning disk when threads > 1, default 2\n" +
+                    "--ssd-reads=<n> - concurrent reads per solid state or other store when threads > 1, default 32\n" +
+                    "--read-size=<kb> - read size in kilobytes for full hashes, default 1024\n" +
+                    "--pipeline - read small files on reader threads while --threads hashers digest them\n" +
+                    "--pipeline-readers=<n> - reader threads of the pipeline, default 8\n" +
+                    "--pipeline-budget=<mb> - megabytes the pipeline may read ahead of the hashers, default 64\n" +
+                    "--external-sort=<lines> - dump through sorted runs of <lines> spilled to disk, for scans larger than memory, the entries are only kept in memory with --index\n" +
+                    "--algorithm=<name> - SHA-256 (default), any MessageDigest algorithm or XXH64\n" +
+                    "--candidate=<name> - staged search candidate hash, default XXH64, confirmed with --algorithm\n" +
+                    "--verify - staged search compares the duplicates byte for byte instead of confirming with --algorithm\n" +
+                    "--no-verify - dump writes the duplicate files without comparing them byte for byte\n" +
+                    "--snapshot-a=<index> - diff reads folderA from an index saved with --index instead of the disk, same for --snapshot-b\n" +
+                    "--chunk-size=<kb> - chunks average chunk size in kilobytes, a power of two, default 8\n" +
+                    "--similar=<file> - staged search also writes the groups of similar files\n" +
+                    "--thresholds=<t,t..> - similarity thresholds of the groups between 0 and 1, default 0.9,0.8\n" +
+                    "--bands=<n> - LSH bands of the 128 value signature, more find less similar files, default 16\n" +
+                    "--debounce=<ms> - watch applies a burst of changes once no change came for this long, default 500\n" +
+                    "--shard-name=<name> - name of this scanner in a shard, default the host name\n" +
+                    "--min-size=<kb> - merge leaves out duplicate files smaller than this, default 10240\n" +
+                    "--bloom-fpr=<rate> - false positive rate of the bloom filter index writes next to the index, default 0.01\n" +
+                    "--segment-size=<kb> - plain kilobytes per encrypted segment, the unit of parallel and range decryption, default 1024\n" +
+                    "--kdf-iterations=<n> - PBKDF2 iterations deriving the encryption key from the password, default 600000\n" +
+                    "--block-size=<kb> - kilobytes per signed block, the smallest range a corruption is located to, default 1024\n" +
+                    "                    for sync kilobytes per compared block, default about the square root of the file size\n" +
+                    "--delete - sync deletes what is only in the destination and replaces what is a file on one side and a folder on the other\n" +
+                    "--signature=<file> - signature sidecar for sign and verify, default <file>.sig\n" +
+                    "--dry-run - link reports the links and the space they would reclaim without changing any file\n" +
+                    "--progress=<s> - print the scan rates, cache hits, stage times and ETA every <s> seconds, 0 for none, default 5\n" +
+                    "--index=<file> - hash index loaded before and saved after the run, unchanged files are not rehashed\n");
 
             System.out.println("got only " + args.length + " arguments \n");
             for (String s :
@@ -33,27 +104,371 @@ public class Delta {
             return;
         }
 
+        // the metrics are also readable over JMX as com.irfanAK.delta:type=Metrics
+        DeltaMetrics metrics = DeltaMetrics.Get();
         try {
+            metrics.Register();
+        } catch (JMException e) {
+            System.out.println("Could not register the metrics MBean " + e);
+        }
+        int progress = Integer.parseInt(options.getOrDefault("progress", "5"));
+        if(progress > 0)
+            metrics.StartProgress(progress);
 
-            if(args[0].toUpperCase().startsWith("H")){
-                byte[] hash = dh.DeltaFileHash(Path.of(args[1]), 50, 10);
-                System.out.println("HASH:- " +  DeltaUtil.ByteToHexString(hash) );
-            }else if(args[0].toUpperCase().startsWith("D")){
+        try {
+            Path index = options.containsKey("index") ? Path.of(options.get("index")) : null;
+            if(index != null && Files.exists(index)){
+                System.out.println("LOADING " + index);
+                dh.LoadFromFile(index);
+            }
+
+            if(args[0].equalsIgnoreCase("STAGED")){
                 if(args.length < 3){
                     System.out.println("needs 3 arguments \n" +
-                            "dump <dump file> hashfile1 hashfile2...\n");
+                            "staged <duplicates file> folder1 folder2...\n");
+                    return;
+                }
+                ArrayList<Path> roots = new ArrayList<>();
+                for (int i = 2; i < args.length; i++)
+                    roots.add(Path.of(args[i]));
+                // candidates are found with the fast hash and only confirmed with the cryptographic one
+                DeltaHash candidate = new DeltaHash(DeltaHashProvider.Of(options.getOrDefault("candidate", DeltaXXHash64.NAME)), threads, readSize, scheduler);
+                if(index != null && Files.exists(index))
+                    candidate.LoadFromFile(index);
+                // the byte comparison makes the cryptographic confirmation pass unnecessary
+                boolean confirm = !candidate.getAlgorithm().equals(dh.getAlgorithm()) && !options.containsKey("verify");
+                DeltaDuplicateVerifier verifier = options.containsKey("verify") ? new DeltaDuplicateVerifier() : null;
+                DeltaDuplicateFinder finder = new DeltaDuplicateFinder(candidate, confirm ? dh : null, pipeline, verifier, 50, 10, 1024*1024*10);
+                DeltaDuplicateFinder.DumpDuplicates(finder.FindDuplicates(roots), Path.of(args[1]));
+                // the similarity pass reads every file again, the stages above skip the files a near duplicate usually is
+                if(options.containsKey("similar"))
+                    DumpSimilar(Path.of(options.get("similar")), roots, options, readSize, threads);
+                if(index != null){
+                    // the candidate entries are saved first then picked up as other algorithm lines by dh
+                    candidate.DumpToFile(index);
+                    dh.LoadFromFile(index);
+                }
+            }else if(args[0].equalsIgnoreCase("LINK")){
+                if(args.length < 3){
+                    System.out.println("needs 3 arguments \n" +
+                            "link <report file> folder1 folder2...\n");
+                    return;
+                }
+                ArrayList<Path> roots = new ArrayList<>();
+                for (int i = 2; i < args.length; i++)
+                    roots.add(Path.of(args[i]));
+                // files are only linked once they are compared byte for byte, the candidate hash just narrows them down
+                DeltaHash candidate = new DeltaHash(DeltaHashProvider.Of(options.getOrDefault("candidate", DeltaXXHash64.NAME)), threads, readSize, scheduler);
+                DeltaDuplicateFinder finder = new DeltaDuplicateFinder(candidate, null, pipeline, new DeltaDuplicateVerifier(), 50, 10, 1);
+                DeltaHardLinker linker = new DeltaHardLinker(threads, options.containsKey("dry-run"));
+                List<String> report = linker.Apply(linker.Plan(finder.FindDuplicateGroups(roots)));
+                Files.write(Path.of(args[1]), report);
+                System.out.println(linker.Report());
+                return;
+            }else if(args[0].equalsIgnoreCase("DIFF")){
+                if(args.length < 4){
+                    System.out.println("needs 4 arguments \n" +
+                            "diff <report file> folderA folderB\n");
+                    return;
+                }
+                // a side given a snapshot is read from that index, folderX is then its root as saved in the index
+                DeltaTreeDiff.Snapshot a = options.containsKey("snapshot-a")
+                        ? DeltaTreeDiff.Snapshot.OfIndex(Path.of(options.get("snapshot-a")), algorithm, args[2], 50, 10)
+                        : DeltaTreeDiff.Snapshot.Of(dh, Path.of(args[2]), 50, 10);
+                DeltaTreeDiff.Snapshot b = options.containsKey("snapshot-b")
+                        ? DeltaTreeDiff.Snapshot.OfIndex(Path.of(options.get("snapshot-b")), algorithm, args[3], 50, 10)
+                        : DeltaTreeDiff.Snapshot.Of(dh, Path.of(args[3]), 50, 10);
+                DeltaTreeDiff diff = new DeltaTreeDiff(a, b);
+                Files.write(Path.of(args[1]), diff.ReportLines());
+                System.out.println(diff.Summary());
+            }else if(args[0].equalsIgnoreCase("CHUNKS")){
+                if(args.length < 3){
+                    System.out.println("needs 3 arguments \n" +
+                            "chunks <report file> folder1 folder2...\n");
+                    return;
+                }
+                ArrayList<Path> roots = new ArrayList<>();
+                for (int i = 2; i < args.length; i++)
+                    roots.add(Path.of(args[i]));
+                DeltaChunkIndex chunks = new DeltaChunkIndex(Integer.parseInt(options.getOrDefault("chunk-size", "8")) * 1024, DeltaHashProvider.Of(algorithm), readSize);
+                chunks.AddFiles(DeltaScanner.ListFiles(roots), threads);
+                Files.write(Path.of(args[1]), chunks.ReportLines(100));
+                System.out.println(chunks.Summary());
+                return;
+            }else if(args[0].equalsIgnoreCase("SIMILAR")){
+                if(args.length < 3){
+                    System.out.println("needs 3 arguments \n" +
+                            "similar <similar file> folder1 folder2...\n");
+                    return;
+                }
+                ArrayList<Path> roots = new ArrayList<>();
+                for (int i = 2; i < args.length; i++)
+                    roots.add(Path.of(args[i]));
+                DumpSimilar(Path.of(args[1]), roots, options, readSize, threads);
+                return;
+            }else if(args[0].equalsIgnoreCase("WATCH")){
+                ArrayList<Path> roots = new ArrayList<>();
+                for (int i = 1; i < args.length; i++)
+                    roots.add(Path.of(args[i]));
+                DeltaWatcher watcher = new DeltaWatcher(dh, roots, 50, 10, Long.parseLong(options.getOrDefault("debounce", "" + DeltaWatcher.DEFAULT_DEBOUNCE_MILLIS)));
+                watcher.Start();
+                System.out.println(watcher.Summary());
+                Thread watch = new Thread(() -> {
+                    try {
+                        watcher.Run();
+                    } catch (IOException | NoSuchAlgorithmException e) {
+                        e.printStackTrace();
+                    }
+                }, "delta-watch");
+                watch.start();
+                WatchQueries(watcher);
+                watcher.close();
+                try {
+                    watch.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                System.out.println(watcher.Summary());
+                // the folder hashes dropped while watching are recomputed before the index is saved
+                if(index != null)
+                    for (Path root : roots)
+                        dh.DeltaFileHash(root, 50, 10);
+            }else if(args[0].equalsIgnoreCase("SERVE")){
+                int port = args.length > 2 ? Integer.parseInt(args[2]) : DeltaQueryServer.DEFAULT_PORT;
+                DeltaQueryServer server = new DeltaQueryServer(Path.of(args[1]), algorithm, port, threads);
+                server.Start();
+                System.out.println("SERVING " + args[1] + " on " + server.getPort());
+                try {
+                    server.Join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }else if(args[0].equalsIgnoreCase("SHARD")){
+                if(args.length < 3){
+                    System.out.println("needs 3 arguments \n" +
+                            "shard <shard file> folder1 folder2...\n");
                     return;
                 }
+                Prefetch(pipeline, dh, args, 2);
+                for (int i = 2; i < args.length; i++) {
+                    System.out.println("HASHING " + args[i]);
+                    dh.DeltaFileHash(Path.of(args[i]), 50, 10);
+                }
+                String name = options.containsKey("shard-name") ? options.get("shard-name") : InetAddress.getLocalHost().getHostName();
+                long entries = DeltaShard.Write(Path.of(args[1]), dh, 50, 10, name, Integer.parseInt(options.getOrDefault("external-sort", "1000000")));
+                System.out.println(" Shard " + name + " " + entries + " entries");
+            }else if(args[0].equalsIgnoreCase("MERGE")){
+                if(args.length < 3){
+                    System.out.println("needs 3 arguments \n" +
+                            "merge <duplicates file> shard1 shard2...\n");
+                    return;
+                }
+                ArrayList<Path> shards = new ArrayList<>();
+                for (int i = 2; i < args.length; i++)
+                    shards.add(Path.of(args[i]));
+                DeltaShard.Merge(shards, Path.of(args[1]), Long.parseLong(options.getOrDefault("min-size", "" + 10 * 1024)) * 1024);
+                return;
+            }else if(args[0].equalsIgnoreCase("INDEX")){
+                if(args.length < 3){
+                    System.out.println("needs 3 arguments \n" +
+                            "index <index file> folder1 folder2...\n");
+                    return;
+                }
+                Prefetch(pipeline, dh, args, 2);
                 for (int i = 2; i < args.length; i++) {
                     System.out.println("HASHING " + args[i]);
                     dh.DeltaFileHash(Path.of(args[i]), 50, 10);
                 }
                 System.out.println(" saving ");
-                dh.DumpToFileSorted(Path.of(args[1] + ".dat"), Path.of(args[1] + "SH.dat"), 1024*1024*10);
+                DeltaBinaryIndex.Write(Path.of(args[1]), dh, 50, 10);
+                try(DeltaBinaryIndex idx = DeltaBinaryIndex.Open(Path.of(args[1]))){
+                    DeltaBloomFilter filter = DeltaBloomFilter.Of(idx, Double.parseDouble(options.getOrDefault("bloom-fpr", "0.01")));
+                    filter.Write(DeltaBloomFilter.SidecarOf(Path.of(args[1])));
+                    System.out.println(filter.Summary());
+                }
+            }else if(args[0].equalsIgnoreCase("CHECK")){
+                if(args.length < 4){
+                    System.out.println("needs 4 arguments \n" +
+                            "check <report file> <index file> folder1 folder2...\n");
+                    return;
+                }
+                ArrayList<Path> roots = new ArrayList<>();
+                for (int i = 3; i < args.length; i++)
+                    roots.add(Path.of(args[i]));
+                try(DeltaBinaryIndex idx = DeltaBinaryIndex.Open(Path.of(args[2]))){
+                    Path sidecar = DeltaBloomFilter.SidecarOf(Path.of(args[2]));
+                    DeltaBloomFilter filter = Files.exists(sidecar) ? DeltaBloomFilter.Read(sidecar) : null;
+                    // a filter of an older index would call files of the current one new
+                    if(filter != null && !filter.IsFor(idx)){
+                        System.out.println(" Bloom filter " + sidecar + " was built for another index, run INDEX again to rebuild it");
+                        filter = null;
+                    }
+                    System.out.println(filter == null ? " No bloom filter, every file is looked up" : filter.Summary());
+                    DeltaHash checkHash = new DeltaHash(DeltaHashProvider.Of(idx.getAlgorithm()), threads, readSize, scheduler);
+                    Files.write(Path.of(args[1]), CheckIngest(DeltaScanner.ListFiles(roots), idx, filter, checkHash));
+                }
+                return;
+            }else if(args[0].equalsIgnoreCase("LOOKUP")){
+                if(args.length < 3){
+                    System.out.println("needs 3 arguments \n" +
+                            "lookup <index file> <hash or file>...\n");
+                    return;
+                }
+                try(DeltaBinaryIndex idx = DeltaBinaryIndex.Open(Path.of(args[1]))){
+                    DeltaHash idxHash = new DeltaHash(idx.getAlgorithm());
+                    for (int i = 2; i < args.length; i++) {
+                        byte[] hash = Files.exists(Path.of(args[i]))
+                                ? idxHash.DeltaFileHash(Path.of(args[i]), idx.getChunkSize(), idx.getChunkCount())
+                                : DeltaUtil.HexStringToByte(args[i]);
+                        List<String> paths = idx.GetPaths(hash);
+                        System.out.println((paths.isEmpty() ? "UNKNOWN " : "KNOWN ") + DeltaUtil.ByteToHexString(hash));
+                        for (String p : paths)
+                            System.out.println(" : " + p);
+                    }
+                }
+                return;
+            }else if(args[0].equalsIgnoreCase("ENCRYPT") || args[0].equalsIgnoreCase("DECRYPT")){
+                boolean encrypt = args[0].equalsIgnoreCase("ENCRYPT");
+                if(args.length != 3 && (encrypt || args.length != 5)){
+                    System.out.println("needs 3 arguments \n" +
+                            "encrypt <file> <encrypted file>\n" +
+                            "decrypt <encrypted file> <file> [offset length]\n");
+                    return;
+                }
+                // every core unless told otherwise, the segments are independent
+                DeltaCipher cipher = new DeltaCipher(options.containsKey("threads") ? threads : Runtime.getRuntime().availableProcessors());
+                char[] password = ReadPassword(encrypt);
+                try {
+                    long start = System.nanoTime();
+                    if(encrypt){
+                        cipher.Encrypt(Path.of(args[1]), Path.of(args[2]), password,
+                                Integer.parseInt(options.getOrDefault("segment-size", "" + DeltaCipher.DEFAULT_SEGMENT_SIZE / 1024)) * 1024,
+                                Integer.parseInt(options.getOrDefault("kdf-iterations", "" + DeltaCipher.DEFAULT_ITERATIONS)));
+                    }else if(args.length == 5){
+                        cipher.DecryptRange(Path.of(args[1]), Path.of(args[2]), password, Long.parseLong(args[3]), Long.parseLong(args[4]));
+                    }else{
+                        cipher.Decrypt(Path.of(args[1]), Path.of(args[2]), password);
+                    }
+                    System.out.println((encrypt ? " Encrypted " : " Decrypted ") + DeltaUtil.GetHumanReadableSize(cipher.getBytesProcessed())
+                            + " in " + (System.nanoTime() - start) / 1000000 + " ms, " + String.format("%.1f", cipher.getMegabytesPerSecond()) + " MB/s");
+                } catch (GeneralSecurityException e) {
+                    System.out.println("Ran into a cipher failure " + e);
+                } finally {
+                    Arrays.fill(password, '\0');
+                }
+                return;
+            }else if(args[0].equalsIgnoreCase("KEYGEN")){
+                if(args.length != 2){
+                    System.out.println("needs 2 arguments \n" +
+                            "keygen <private key file>\n");
+                    return;
+                }
+                try {
+                    DeltaMerkleSignature.GenerateKeys(Path.of(args[1]));
+                    System.out.println(" Keys written to " + args[1] + " and " + DeltaMerkleSignature.PublicKeyOf(Path.of(args[1])));
+                } catch (GeneralSecurityException e) {
+                    System.out.println("Ran into a signature failure " + e);
+                }
+                return;
+            }else if(args[0].equalsIgnoreCase("SIGN") || args[0].equalsIgnoreCase("VERIFY")){
+                boolean sign = args[0].equalsIgnoreCase("SIGN");
+                if(args.length != 3 && (sign || args.length != 5)){
+                    System.out.println("needs 3 arguments \n" +
+                            "sign <file> <private key file>\n" +
+                            "verify <file> <public key file> [offset length]\n");
+                    return;
+                }
+                Path file = Path.of(args[1]);
+                Path sidecar = options.containsKey("signature") ? Path.of(options.get("signature")) : DeltaMerkleSignature.SidecarOf(file);
+                // every core unless told otherwise, the blocks are independent
+                int signThreads = options.containsKey("threads") ? threads : Runtime.getRuntime().availableProcessors();
+                try {
+                    long start = System.nanoTime();
+                    if(sign){
+                        DeltaMerkleSignature signature = DeltaMerkleSignature.Sign(file, DeltaMerkleSignature.ReadPrivateKey(Path.of(args[2])),
+                                DeltaHashProvider.Of(algorithm),
+                                Integer.parseInt(options.getOrDefault("block-size", "" + DeltaMerkleSignature.DEFAULT_BLOCK_SIZE / 1024)) * 1024,
+                                signThreads);
+                        signature.Write(sidecar);
+                        System.out.println("SIGNED " + signature.getBlockCount() + " blocks, root " + signature.getAlgorithm() + " "
+                                + DeltaUtil.ByteToHexString(signature.getRoot()) + " to " + sidecar);
+                    }else{
+                        DeltaMerkleSignature signature = DeltaMerkleSignature.Read(sidecar);
+                        if(!signature.VerifySignature(DeltaMerkleSignature.ReadPublicKey(Path.of(args[2])))){
+                            System.out.println("BAD SIGNATURE " + sidecar + " was not signed by this key or was changed");
+                            return;
+                        }
+                        long offset = args.length == 5 ? Long.parseLong(args[3]) : 0;
+                        long length = args.length == 5 ? Long.parseLong(args[4]) : signature.getLength();
+                        List<Long> corrupted = signature.VerifyRange(file, offset, length, signThreads);
+                        for (long b : corrupted)
+                            System.out.println("CORRUPT block " + b + " bytes " + b * signature.getBlockSize() + "-"
+                                    + Math.min(signature.getLength(), (b + 1) * signature.getBlockSize()));
+                        System.out.println((corrupted.isEmpty() ? "VERIFIED" : "FAILED") + " bytes " + offset + "-"
+                                + Math.min(signature.getLength(), offset + length) + " of " + signature.getLength());
+                    }
+                    System.out.println(" Took " + (System.nanoTime() - start) / 1000000 + " ms");
+                } catch (GeneralSecurityException e) {
+                    System.out.println("Ran into a signature failure " + e);
+                }
+                return;
+            }else if(args[0].equalsIgnoreCase("SYNC")){
+                if(args.length != 3){
+                    System.out.println("needs 3 arguments \n" +
+                            "sync <source folder> <destination folder>\n");
+                    return;
+                }
+                // every core unless told otherwise, the files are independent
+                DeltaSync sync = new DeltaSync(dh, options.containsKey("threads") ? threads : Runtime.getRuntime().availableProcessors(),
+                        Integer.parseInt(options.getOrDefault("block-size", "0")) * 1024, options.containsKey("delete"));
+                sync.Sync(Path.of(args[1]), Path.of(args[2]));
+                for (String conflict : sync.getConflicts())
+                    System.out.println("CONFLICT " + conflict + " is a file, folder or link on one side and another type on the other, left as it is without --delete");
+                System.out.println(sync.Summary());
+            }else if(args[0].toUpperCase().startsWith("H")){
+                Prefetch(pipeline, dh, args, 1);
+                byte[] hash = dh.DeltaFileHash(Path.of(args[1]), 50, 10);
+                System.out.println("HASH:- " +  DeltaUtil.ByteToHexString(hash) );
+            }else if(args[0].toUpperCase().startsWith("D")){
+                if(args.length < 3){
+                    System.out.println("needs 3 arguments \n" +
+                            "dump <dump file> hashfile1 hashfile2...\n");
+                    return;
+                }
+                Prefetch(pipeline, dh, args, 2);
+                boolean external = options.containsKey("external-sort");
+                int runLines = external ? Integer.parseInt(options.get("external-sort")) : 1;
+                // without an index to save the entries go to the sorter as they are hashed instead of staying in memory
+                try(DeltaExternalSorter spill = external && index == null ? new DeltaExternalSorter(Path.of(args[1] + ".dat").toAbsolutePath().getParent(), runLines) : null){
+                    dh.SpillTo(spill);
+                    for (int i = 2; i < args.length; i++) {
+                        System.out.println("HASHING " + args[i]);
+                        dh.DeltaFileHash(Path.of(args[i]), 50, 10);
+                    }
+                    dh.SpillTo(null);
+                    System.out.println(" saving ");
+                    // the sets go to AutoDelete.bat, so they are compared byte for byte unless asked not to
+                    DeltaDuplicateVerifier verifier = options.containsKey("no-verify") ? null : new DeltaDuplicateVerifier();
+                    if(spill != null)
+                        dh.DumpToFileStreaming(Path.of(args[1] + ".dat"), Path.of(args[1] + "SH.dat"), 1024*1024*10, spill, verifier);
+                    else if(external)
+                        dh.DumpToFileStreaming(Path.of(args[1] + ".dat"), Path.of(args[1] + "SH.dat"), 1024*1024*10, runLines, verifier);
+                    else
+                        dh.DumpToFileSorted(Path.of(args[1] + ".dat"), Path.of(args[1] + "SH.dat"), 1024*1024*10, verifier);
+                }
             }else{
                 System.out.println("Unknown argument " + args[0]);
+                return;
             }
 
+            if(pipeline != null)
+                System.out.println(pipeline.Throughput());
+            if(metrics.getFilesScanned() > 0)
+                System.out.println(metrics.getProgressLine());
+            if(index != null)
+                dh.DumpToFile(index);
+
         } catch (IOException e) {
             System.out.println("Ran into IO Exception");
             e.printStackTrace();
@@ -62,6 +477,144 @@ public class Delta {
         }
     }
 
+    // chunks every file under the roots for its signature and writes the similar groups
+    private static void DumpSimilar(Path output, List<Path> roots, HashMap<String,String> options, int readSize, int threads) throws IOException, NoSuchAlgorithmException {
+        String[] parts = options.getOrDefault("thresholds", "0.9,0.8").split(",");
+        double[] thresholds = new double[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            thresholds[i] = Double.parseDouble(parts[i]);
+        Path workDir = output.toAbsolutePath().getParent();
+        try(DeltaSimilarityIndex similar = new DeltaSimilarityIndex(workDir, Integer.parseInt(options.getOrDefault("bands", "16")), 1024*1024)){
+            long read = similar.AddFiles(DeltaScanner.ListFiles(roots), Integer.parseInt(options.getOrDefault("chunk-size", "8")) * 1024,
+                    DeltaHashProvider.Of(DeltaXXHash64.NAME), readSize, threads);
+            System.out.println(" Similarity read " + DeltaUtil.GetHumanReadableSize(read) + ", every file under the roots is read in full");
+            similar.DumpGroups(thresholds, output);
+        }
+    }
+
+    // answers the queries typed while the watcher runs, until quit or the end of the input
+    private static void WatchQueries(DeltaWatcher watcher) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        while ((line = br.readLine()) != null){
+            line = line.trim();
+            if(line.equalsIgnoreCase("quit"))
+                return;
+            if(line.isEmpty())
+                continue;
+            long start = System.nanoTime();
+            if(line.equalsIgnoreCase("status")){
+                System.out.println(watcher.Summary());
+            }else if(line.equalsIgnoreCase("groups")){
+                List<List<String>> groups = watcher.DuplicateGroups();
+                for (List<String> group : groups) {
+                    System.out.println("DUPLICATES " + group.size() + " files");
+                    for (String p : group)
+                        System.out.println(" : " + p);
+                }
+                System.out.println(" " + groups.size() + " groups in " + (System.nanoTime() - start) / 1000 + " us");
+            }else{
+                List<String> duplicates = watcher.Duplicates(new File(line).getCanonicalPath());
+                for (String p : duplicates)
+                    System.out.println(" : " + p);
+                System.out.println(" " + duplicates.size() + " duplicates in " + (System.nanoTime() - start) / 1000 + " us");
+            }
+        }
+    }
+
+    // NEW or KNOWN per file, a file missing the size filter is not read and one missing the hash filter is not looked up
+    private static List<String> CheckIngest(List<DeltaFileEntry> files, DeltaBinaryIndex idx, DeltaBloomFilter filter, DeltaHash checkHash) throws IOException, NoSuchAlgorithmException {
+        long start = System.nanoTime();
+        String[] lines = new String[files.size()];
+        ArrayList<DeltaFileEntry> sized = new ArrayList<>();
+        ArrayList<Integer> sizedAt = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            if(filter != null && !filter.MightContainSize(files.get(i).getSize())){
+                lines[i] = "NEW " + files.get(i).getCanonicalPath();
+                continue;
+            }
+            sized.add(files.get(i));
+            sizedAt.add(i);
+        }
+        ArrayList<byte[]> hashes = checkHash.HashAll(sized, idx.getChunkSize(), idx.getChunkCount());
+        int filtered = 0;
+        int lookups = 0;
+        int known = 0;
+        for (int j = 0; j < sized.size(); j++) {
+            DeltaFileEntry file = sized.get(j);
+            boolean found = false;
+            if(filter == null || filter.MightContain(file.getSize(), hashes.get(j))){
+                lookups++;
+                found = idx.Contains(hashes.get(j), file.getSize());
+            }else{
+                filtered++;
+            }
+            if(found)
+                known++;
+            lines[sizedAt.get(j)] = (found ? "KNOWN " : "NEW ") + file.getCanonicalPath();
+        }
+        System.out.println(" Checked " + files.size() + " files, " + known + " known, " + (files.size() - known) + " new, "
+                + (files.size() - sized.size()) + " not read by size, " + filtered + " not looked up by hash, "
+                + lookups + " index lookups, " + (filter == null ? 0 : lookups - known) + " false positives, " + (System.nanoTime() - start) / 1000000 + " ms");
+        return Arrays.asList(lines);
+    }
+
+    // from the console without echo when there is one, asked twice when encrypting, else the first line of the standard input
+    private static char[] ReadPassword(boolean confirm) throws IOException {
+        Console console = System.console();
+        if(console == null){
+            String line = new BufferedReader(new InputStreamReader(System.in)).readLine();
+            if(line == null)
+                throw new IOException("No password given on the standard input");
+            return line.toCharArray();
+        }
+        char[] password = console.readPassword("Password: ");
+        if(password == null)
+            throw new IOException("No password given");
+        if(confirm && !Arrays.equals(password, console.readPassword("Repeat password: ")))
+            throw new IOException("Passwords do not match");
+        return password;
+    }
+
+    // reads the small files under the roots through the pipeline, the folder hashes that follow find them cached
+    private static void Prefetch(DeltaReadPipeline pipeline, DeltaHash dh, String[] args, int firstRoot) throws IOException, NoSuchAlgorithmException {
+        if(pipeline == null)
+            return;
+        ArrayList<Path> roots = new ArrayList<>();
+        for (int i = firstRoot; i < args.length; i++)
+            roots.add(Path.of(args[i]));
+        System.out.println("PREFETCHING " + roots.size() + " roots");
+        // the folder hashes that follow take the children from this walk, every entry is read from the file system once
+        HashMap<String, List<DeltaFileEntry>> children = new HashMap<>();
+        List<DeltaFileEntry> files = DeltaScanner.ListTree(roots, children);
+        dh.UseListing(children);
+        // the hashing that follows reaches every listed file, which gives the progress an ETA
+        DeltaMetrics.Get().Expect(files.size());
+        pipeline.Prefetch(dh, files, 50, 10);
+    }
+
+    /**
+     * Splits the "--name=value" options out of the arguments
+     * @param args arguments as given to main
+     * @param options map filled with the option names and values, a bare "--name" is given the value "true"
+     * @return the remaining positional arguments in order
+     */
+    private static String[] ParseOptions(String[] args, HashMap<String,String> options){
+        ArrayList<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if(!arg.startsWith("--")){
+                positional.add(arg);
+                continue;
+            }
+            int n = arg.indexOf('=');
+            if(n < 0)
+                options.put(arg.substring(2).toLowerCase(), "true");
+            else
+                options.put(arg.substring(2, n).toLowerCase(), arg.substring(n + 1));
+        }
+        return positional.toArray(new String[0]);
+    }
+
     public static byte[] hash(Path fileToHash){
        byte[] hash = new byte[0];
         try {
@@ -0,0 +1,300 @@
+package com.irfanAK.delta;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Binary hash index that is memory mapped instead of parsed, lookups are a binary search over the mapped records
+ * the string table is mapped too, the record area and the string table offset are checked against the file size on open
+ *
+ * layout (big endian)
+ * - header, HEADER_SIZE bytes
+ * -- "DELTAIDX" magic, version, digest length, chunk size, chunk count, record count, string table offset, algorithm name
+ * - records sorted by digest (unsigned), fixed width
+ * -- digest, file size, offset of the key in the string table
+ * - string table
+ * -- int length followed by the UTF-8 "chunkSize:chunkCount:canonicalPath" key
+ */
+public class DeltaBinaryIndex implements AutoCloseable {
+
+    private static final byte[] MAGIC = "DELTAIDX".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 128;
+    private static final int ALGORITHM_OFFSET = 48;
+    private static final int ALGORITHM_LENGTH = 32;
+    // string maps overlap by this much so a key starting in one map ends in it, longer keys are read from the channel
+    private static final int STRING_OVERLAP = 1 << 16;
+    private static final long STRINGS_PER_MAP = Integer.MAX_VALUE - STRING_OVERLAP;
+
+    private final FileChannel channel;
+    private final String Algorithm;
+    private final int DigestLength;
+    private final int ChunkSize;
+    private final int ChunkCount;
+    private final long RecordCount;
+    private final int RecordSize;
+    // records are split over several maps since a single map is limited to 2GB
+    private final MappedByteBuffer[] RecordMaps;
+    private final long RecordsPerMap;
+    private final long StringsOffset;
+    private final long ByteSize;
+    // string table from StringsOffset to the end of the file, map i starts at i * STRINGS_PER_MAP
+    private final MappedByteBuffer[] StringMaps;
+
+    private DeltaBinaryIndex(FileChannel channel) throws IOException {
+        this.channel = channel;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if(channel.read(header, 0) != HEADER_SIZE)
+            throw new IOException("Index too short for a header");
+        header.flip();
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if(!Arrays.equals(magic, MAGIC))
+            throw new IOException("Not a Delta binary index");
+        int version = header.getInt();
+        if(version != VERSION)
+            throw new IOException("Unsupported index version " + version);
+        DigestLength = header.getInt();
+        ChunkSize = header.getInt();
+        ChunkCount = header.getInt();
+        RecordCount = header.getLong();
+        StringsOffset = header.getLong();
+        byte[] algorithm = new byte[ALGORITHM_LENGTH];
+        header.position(ALGORITHM_OFFSET);
+        header.get(algorithm);
+        int n = 0;
+        while (n < algorithm.length && algorithm[n] != 0)
+            n++;
+        Algorithm = new String(algorithm, 0, n, StandardCharsets.US_ASCII);
+
+        // a truncated or foreign file fails here instead of on a read past its end
+        ByteSize = channel.size();
+        // SHA-512 has the longest digest of the algorithms written
+        if(DigestLength < 0 || DigestLength > 64)
+            throw new IOException("Index has an invalid digest length " + DigestLength);
+        RecordSize = DigestLength + 16;
+        if(RecordCount < 0 || RecordCount > (ByteSize - HEADER_SIZE) / RecordSize)
+            throw new IOException("Index records do not fit in the file, " + RecordCount + " records in " + ByteSize + " bytes");
+        if(StringsOffset != HEADER_SIZE + RecordCount * RecordSize)
+            throw new IOException("Index string table offset " + StringsOffset + " does not follow the records");
+        RecordsPerMap = Integer.MAX_VALUE / RecordSize;
+        int maps = (int) ((RecordCount + RecordsPerMap - 1) / RecordsPerMap);
+        RecordMaps = new MappedByteBuffer[maps];
+        for (int i = 0; i < maps; i++) {
+            long first = i * RecordsPerMap;
+            long count = Math.min(RecordsPerMap, RecordCount - first);
+            RecordMaps[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * RecordSize, count * RecordSize);
+        }
+        long strings = ByteSize - StringsOffset;
+        StringMaps = new MappedByteBuffer[(int) ((strings + STRINGS_PER_MAP - 1) / STRINGS_PER_MAP)];
+        for (int i = 0; i < StringMaps.length; i++) {
+            long first = i * STRINGS_PER_MAP;
+            StringMaps[i] = channel.map(FileChannel.MapMode.READ_ONLY, StringsOffset + first, Math.min(Integer.MAX_VALUE, strings - first));
+        }
+    }
+
+    /**
+     * Opens and maps the index, the returned index must be closed
+     */
+    public static DeltaBinaryIndex Open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new DeltaBinaryIndex(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the entries of the given DeltaHash as a binary index
+     * @param chunkSize chunk size the entries were hashed with, recorded in the header
+     * @param chunkCount chunk count the entries were hashed with, recorded in the header
+     */
+    public static void Write(Path path, DeltaHash dh, int chunkSize, int chunkCount) throws IOException {
+        ArrayList<Map.Entry<String, DeltaHashEntry>> entries = new ArrayList<>(dh.getFilesHashed().entrySet());
+        entries.sort((a, b) -> {
+            int c = Arrays.compareUnsigned(a.getValue().getHash(), b.getValue().getHash());
+            return c != 0 ? c : a.getKey().compareTo(b.getKey());
+        });
+        int digestLength = entries.isEmpty() ? 0 : entries.get(0).getValue().getHash().length;
+        byte[] algorithm = dh.getAlgorithm().getBytes(StandardCharsets.US_ASCII);
+        if(algorithm.length > ALGORITHM_LENGTH)
+            throw new IllegalArgumentException("Algorithm name too long for the index header " + dh.getAlgorithm());
+
+        long recordSize = digestLength + 16;
+        long stringsOffset = HEADER_SIZE + entries.size() * recordSize;
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))){
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(digestLength);
+            header.putInt(chunkSize);
+            header.putInt(chunkCount);
+            header.putLong(entries.size());
+            header.putLong(stringsOffset);
+            header.position(ALGORITHM_OFFSET);
+            header.put(algorithm);
+            out.write(header.array());
+
+            long keyOffset = stringsOffset;
+            for (Map.Entry<String, DeltaHashEntry> e : entries) {
+                byte[] hash = e.getValue().getHash();
+                if(hash.length != digestLength)
+                    throw new IllegalArgumentException("Unmatched Length of digests");
+                out.write(hash);
+                out.writeLong(e.getValue().getSize());
+                out.writeLong(keyOffset);
+                keyOffset += 4 + e.getKey().getBytes(StandardCharsets.UTF_8).length;
+            }
+            for (Map.Entry<String, DeltaHashEntry> e : entries) {
+                byte[] key = e.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+            }
+        }
+    }
+
+    /**
+     * @return index of the first record with the given digest, -1 if the digest is not in the index
+     */
+    public long Find(byte[] digest){
+        if(digest.length != DigestLength)
+            return -1;
+        long low = 0, high = RecordCount;
+        while (low < high){
+            long mid = (low + high) >>> 1;
+            if(CompareDigest(mid, digest) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        if(low < RecordCount && CompareDigest(low, digest) == 0)
+            return low;
+        return -1;
+    }
+
+    public boolean Contains(byte[] digest){
+        return Find(digest) >= 0;
+    }
+
+    /**
+     * @return true if a record has the given digest and size, a sampled digest alone does not tell files of other sizes apart
+     */
+    public boolean Contains(byte[] digest, long size){
+        for (long i = Find(digest); i >= 0 && i < RecordCount && CompareDigest(i, digest) == 0; i++)
+            if(GetSize(i) == size)
+                return true;
+        return false;
+    }
+
+    /**
+     * @return the canonical paths of all the records with the given digest
+     */
+    public List<String> GetPaths(byte[] digest) throws IOException {
+        ArrayList<String> paths = new ArrayList<>();
+        for (long i = Find(digest); i >= 0 && i < RecordCount && CompareDigest(i, digest) == 0; i++)
+            paths.add(KeyPath(GetKey(i)));
+        return paths;
+    }
+
+    public byte[] GetDigest(long record){
+        byte[] digest = new byte[DigestLength];
+        MappedByteBuffer map = RecordMaps[(int) (record / RecordsPerMap)];
+        int position = (int) (record % RecordsPerMap) * RecordSize;
+        for (int i = 0; i < DigestLength; i++)
+            digest[i] = map.get(position + i);
+        return digest;
+    }
+
+    public long GetSize(long record){
+        MappedByteBuffer map = RecordMaps[(int) (record / RecordsPerMap)];
+        return map.getLong((int) (record % RecordsPerMap) * RecordSize + DigestLength);
+    }
+
+    /**
+     * @return the "chunkSize:chunkCount:canonicalPath" key of the record, read from the string table
+     */
+    public String GetKey(long record) throws IOException {
+        MappedByteBuffer map = RecordMaps[(int) (record / RecordsPerMap)];
+        long offset = map.getLong((int) (record % RecordsPerMap) * RecordSize + DigestLength + 8);
+        if(offset < StringsOffset || offset > ByteSize - 4)
+            throw new IOException("Key offset " + offset + " of record " + record + " is outside the string table");
+        long relative = offset - StringsOffset;
+        MappedByteBuffer strings = StringMaps[(int) (relative / STRINGS_PER_MAP)];
+        int position = (int) (relative % STRINGS_PER_MAP);
+        int length = strings.getInt(position);
+        if(length < 0 || length > ByteSize - offset - 4)
+            throw new IOException("Key length " + length + " of record " + record + " runs past the string table");
+        byte[] key = new byte[length];
+        if(position + 4L + length <= strings.capacity()){
+            for (int i = 0; i < length; i++)
+                key[i] = strings.get(position + 4 + i);
+        }else{
+            ReadFully(ByteBuffer.wrap(key), offset + 4);
+        }
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    public static String KeyPath(String key){
+        int n = key.indexOf(':');
+        return key.substring(key.indexOf(':', n + 1) + 1);
+    }
+
+    public String getAlgorithm(){
+        return Algorithm;
+    }
+
+    public int getChunkSize(){
+        return ChunkSize;
+    }
+
+    public int getChunkCount(){
+        return ChunkCount;
+    }
+
+    public long getRecordCount(){
+        return RecordCount;
+    }
+
+    /**
+     * @return size of the index file in bytes
+     */
+    public long getByteSize() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int CompareDigest(long record, byte[] digest){
+        MappedByteBuffer map = RecordMaps[(int) (record / RecordsPerMap)];
+        int position = (int) (record % RecordsPerMap) * RecordSize;
+        for (int i = 0; i < DigestLength; i++) {
+            int c = Byte.compareUnsigned(map.get(position + i), digest[i]);
+            if(c != 0)
+                return c;
+        }
+        return 0;
+    }
+
+    private void ReadFully(ByteBuffer bb, long position) throws IOException {
+        while (bb.hasRemaining()){
+            int n = channel.read(bb, position);
+            if(n < 0)
+                throw new IOException("Unexpected end of index");
+            position += n;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.irfanAK.delta;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Bloom filter sidecar of a binary index, saved next to it as "index.bloom", answers "certainly not in the index" without touching it
+ * two filters are kept, one keyed on the file size alone and one on the size and the hash as the index holds it (sampled for large files)
+ * a file whose size is in no entry is new before it is read, a file whose hash misses is new before the index is searched
+ * bits per entry are -ln(p) / ln(2)^2, about 9.6 for a 1% false positive rate, so 500M entries take about 600 MB
+ * the size filter gets an eighth of those bits, an archive holds far fewer distinct sizes than files
+ *
+ * the header records which index the filter was built from, CHECK does not use a filter built for another index
+ *
+ * layout (big endian)
+ * - "DELTABLM" magic, version, false positive rate, entry count, index record count, index fingerprint
+ * - size filter then entry filter, each: hash count, bit count, the bits as longs
+ */
+public class DeltaBloomFilter {
+
+    private static final byte[] MAGIC = "DELTABLM".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 2;
+    private static final long SIZE_SEED = 0x53495a45L;
+
+    private final double FalsePositiveRate;
+    private long EntryCount;
+    // record count and Fingerprint of the index the filter was built from, -1 and 0 when not built from one
+    private long IndexRecords;
+    private long IndexFingerprint;
+    private final Bits Sizes;
+    private final Bits Entries;
+
+    /**
+     * @param expectedEntries number of entries to be added
+     * @param falsePositiveRate wanted rate of entries not added being reported as maybe present, between 0 and 1
+     */
+    public DeltaBloomFilter(long expectedEntries, double falsePositiveRate){
+        if(expectedEntries < 0)
+            throw new IllegalArgumentException("Expected Entries must be a positive number. expectedEntries can not be " + expectedEntries + ".");
+        if(!(falsePositiveRate > 0 && falsePositiveRate < 1))
+            throw new IllegalArgumentException("False Positive Rate must be between 0 and 1. falsePositiveRate can not be " + falsePositiveRate + ".");
+        FalsePositiveRate = falsePositiveRate;
+        EntryCount = 0;
+        IndexRecords = -1;
+        long n = Math.max(1, expectedEntries);
+        long bits = Math.max(64, (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+        int k = (int) Math.max(1, Math.min(30, Math.round((double) bits / n * Math.log(2))));
+        Entries = new Bits(k, bits);
+        // at least 64 Kbit, so a small index with a size per file does not fill it
+        Sizes = new Bits(k, Math.max(1 << 16, bits / 8));
+    }
+
+    private DeltaBloomFilter(double falsePositiveRate, long entryCount, long indexRecords, long indexFingerprint, Bits sizes, Bits entries){
+        FalsePositiveRate = falsePositiveRate;
+        EntryCount = entryCount;
+        IndexRecords = indexRecords;
+        IndexFingerprint = indexFingerprint;
+        Sizes = sizes;
+        Entries = entries;
+    }
+
+    /**
+     * Builds the filter of every file record of the index, folders are left out
+     */
+    public static DeltaBloomFilter Of(DeltaBinaryIndex index, double falsePositiveRate) throws IOException {
+        DeltaBloomFilter filter = new DeltaBloomFilter(index.getRecordCount(), falsePositiveRate);
+        filter.IndexRecords = index.getRecordCount();
+        filter.IndexFingerprint = Fingerprint(index);
+        for (long r = 0; r < index.getRecordCount(); r++) {
+            long size = index.GetSize(r);
+            if(size >= 0)
+                filter.Add(size, index.GetDigest(r));
+        }
+        return filter;
+    }
+
+    /**
+     * @return true if the filter was built from this index, a filter left from an index written again since would answer for the old one
+     */
+    public boolean IsFor(DeltaBinaryIndex index) throws IOException {
+        return IndexRecords == index.getRecordCount() && IndexFingerprint == Fingerprint(index);
+    }
+
+    // quick identity of an index out of its byte size, record count and the first, middle and last records
+    // not a checksum of every record, an index written again from other files almost always differs in one of them
+    private static long Fingerprint(DeltaBinaryIndex index) throws IOException {
+        long records = index.getRecordCount();
+        long fingerprint = Mix(index.getByteSize() ^ Mix(records));
+        if(records > 0)
+            for (long r : new long[]{0, records / 2, records - 1})
+                fingerprint = Mix(fingerprint ^ Fold(index.GetDigest(r)) ^ Mix(index.GetSize(r)));
+        return fingerprint;
+    }
+
+    /**
+     * @return the sidecar path of the given index
+     */
+    public static Path SidecarOf(Path index){
+        return index.resolveSibling(index.getFileName() + ".bloom");
+    }
+
+    public void Add(long size, byte[] hash){
+        long h = Mix(size ^ SIZE_SEED);
+        Sizes.Add(h, Mix(h) | 1);
+        h = Mix(Mix(size) ^ Fold(hash));
+        Entries.Add(h, Mix(h) | 1);
+        EntryCount++;
+    }
+
+    /**
+     * @return false when no entry of this size was added, the file can then be treated as new without reading it
+     */
+    public boolean MightContainSize(long size){
+        long h = Mix(size ^ SIZE_SEED);
+        return Sizes.Test(h, Mix(h) | 1);
+    }
+
+    /**
+     * @return false when no entry of this size and hash was added
+     */
+    public boolean MightContain(long size, byte[] hash){
+        long h = Mix(Mix(size) ^ Fold(hash));
+        return Entries.Test(h, Mix(h) | 1);
+    }
+
+    public void Write(Path path) throws IOException {
+        try(FileChannel fc = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4 + 8 + 8 + 8 + 8);
+            header.put(MAGIC).putInt(VERSION).putDouble(FalsePositiveRate).putLong(EntryCount).putLong(IndexRecords).putLong(IndexFingerprint).flip();
+            WriteFully(fc, header);
+            Sizes.Write(fc);
+            Entries.Write(fc);
+        }
+    }
+
+    public static DeltaBloomFilter Read(Path path) throws IOException {
+        try(FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)){
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4 + 8 + 8);
+            ReadFully(fc, header);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if(!Arrays.equals(magic, MAGIC))
+                throw new IOException("Not a Delta bloom filter " + path);
+            int version = header.getInt();
+            if(version != VERSION && version != 1)
+                throw new IOException("Unsupported bloom filter version " + version);
+            double falsePositiveRate = header.getDouble();
+            long entryCount = header.getLong();
+            // version 1 does not record its index, it is never taken for one
+            long indexRecords = -1;
+            long indexFingerprint = 0;
+            if(version == VERSION){
+                ByteBuffer index = ByteBuffer.allocate(8 + 8);
+                ReadFully(fc, index);
+                indexRecords = index.getLong();
+                indexFingerprint = index.getLong();
+            }
+            Bits sizes = Bits.Read(fc);
+            Bits entries = Bits.Read(fc);
+            return new DeltaBloomFilter(falsePositiveRate, entryCount, indexRecords, indexFingerprint, sizes, entries);
+        }
+    }
+
+    public long getEntryCount(){
+        return EntryCount;
+    }
+
+    public double getFalsePositiveRate(){
+        return FalsePositiveRate;
+    }
+
+    /**
+     * @return false positive rate of the entry filter from the share of its bits set, the rate it actually gives
+     */
+    public double getEstimatedFalsePositiveRate(){
+        return Entries.EstimatedFalsePositiveRate();
+    }
+
+    public double getEstimatedSizeFalsePositiveRate(){
+        return Sizes.EstimatedFalsePositiveRate();
+    }
+
+    public long getMemoryBytes(){
+        return (Sizes.Words.length + Entries.Words.length) * 8L;
+    }
+
+    public String Summary(){
+        return String.format(" Bloom filter %d entries, %s, %d hashes, wanted fpr %.4f, estimated fpr %.4f, size filter fpr %.4f",
+                EntryCount, DeltaUtil.GetHumanReadableSize(getMemoryBytes()), Entries.K, FalsePositiveRate,
+                getEstimatedFalsePositiveRate(), getEstimatedSizeFalsePositiveRate());
+    }
+
+    // the hashes in the index are already uniform, their bytes only need folding into a long
+    private static long Fold(byte[] hash){
+        long v = 0;
+        for (byte b : hash)
+            v = Long.rotateLeft(v, 8) ^ (b & 0xff);
+        return v;
+    }
+
+    // SplitMix64 finalizer
+    private static long Mix(long z){
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static void WriteFully(FileChannel fc, ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining())
+            fc.write(bb);
+    }
+
+    private static void ReadFully(FileChannel fc, ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining())
+            if(fc.read(bb) < 0)
+                throw new IOException("Unexpected end of bloom filter");
+        bb.flip();
+    }
+
+    // k bit positions per key from two hashes, h1 + i * h2 (Kirsch and Mitzenmacher)
+    private static class Bits {
+        private static final int IO_WORDS = 1 << 16;
+
+        private final int K;
+        private final long BitCount;
+        private final long[] Words;
+
+        private Bits(int k, long bitCount){
+            if(bitCount > (long) Integer.MAX_VALUE * 64 - 64)
+                throw new IllegalArgumentException("Bit Count must fit in one array. bitCount can not be " + bitCount + ".");
+            K = k;
+            BitCount = bitCount;
+            Words = new long[(int) ((bitCount + 63) / 64)];
+        }
+
+        private void Add(long h1, long h2){
+            for (int i = 0; i < K; i++) {
+                long bit = Long.remainderUnsigned(h1 + i * h2, BitCount);
+                Words[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        private boolean Test(long h1, long h2){
+            for (int i = 0; i < K; i++) {
+                long bit = Long.remainderUnsigned(h1 + i * h2, BitCount);
+                if((Words[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                    return false;
+            }
+            return true;
+        }
+
+        private double EstimatedFalsePositiveRate(){
+            long set = 0;
+            for (long w : Words)
+                set += Long.bitCount(w);
+            return Math.pow((double) set / BitCount, K);
+        }
+
+        private void Write(FileChannel fc) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(12);
+            header.putInt(K).putLong(BitCount).flip();
+            WriteFully(fc, header);
+            ByteBuffer bb = ByteBuffer.allocate(IO_WORDS * 8);
+            LongBuffer lb = bb.asLongBuffer();
+            for (int i = 0; i < Words.length; i += IO_WORDS) {
+                int n = Math.min(IO_WORDS, Words.length - i);
+                lb.clear();
+                lb.put(Words, i, n);
+                bb.clear().limit(n * 8);
+                WriteFully(fc, bb);
+            }
+        }
+
+        private static Bits Read(FileChannel fc) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(12);
+            ReadFully(fc, header);
+            Bits bits = new Bits(header.getInt(), header.getLong());
+            ByteBuffer bb = ByteBuffer.allocate(IO_WORDS * 8);
+            for (int i = 0; i < bits.Words.length; i += IO_WORDS) {
+                int n = Math.min(IO_WORDS, bits.Words.length - i);
+                bb.clear().limit(n * 8);
+                ReadFully(fc, bb);
+                bb.asLongBuffer().get(bits.Words, i, n);
+            }
+            return bits;
+        }
+    }
+}
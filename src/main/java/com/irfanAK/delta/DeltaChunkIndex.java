@@ -0,0 +1,231 @@
+package com.irfanAK.delta;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Index of the content defined chunks of a set of files, for dedupe below the file level
+ * files that only differ in a few places, such as VM images or backups, share most of their chunks
+ * reports the bytes every file shares with the others, the file pairs sharing the most and the dedupe ratio of the whole set
+ */
+public class DeltaChunkIndex {
+
+    // chunks held by more files than this are counted but not paired, a chunk of zeros would otherwise pair every file
+    private static final int MAX_PAIRED_FILES = 16;
+
+    private final int AverageSize;
+    private final DeltaHashProvider Provider;
+    private final int ReadSize;
+    private final ConcurrentHashMap<ByteBuffer, ChunkStats> Chunks;
+    private final ArrayList<FileStats> Files;
+    // one chunker per pool thread, so its read buffer and digest are reused for every file
+    private final ThreadLocal<DeltaChunker> Chunkers;
+
+    /**
+     * @param averageSize average chunk size in bytes, a power of two
+     * @param provider digest identifying the chunks
+     * @param readSize size in bytes of the reads
+     */
+    public DeltaChunkIndex(int averageSize, DeltaHashProvider provider, int readSize){
+        if(readSize < 1)
+            throw new IllegalArgumentException("Read Size must be a positive number. readSize can not be " + readSize + ".");
+        AverageSize = averageSize;
+        Provider = provider;
+        ReadSize = readSize;
+        Chunks = new ConcurrentHashMap<>();
+        Files = new ArrayList<>();
+        Chunkers = new ThreadLocal<>();
+    }
+
+    /**
+     * Chunks the files on a pool of the given parallelism and adds their chunks to the index
+     */
+    public void AddFiles(List<DeltaFileEntry> files, int parallelism) throws IOException, NoSuchAlgorithmException {
+        // checks the chunk size and the algorithm before starting the pool
+        new DeltaChunker(AverageSize, Provider, ReadSize);
+        int first = Files.size();
+        for (DeltaFileEntry file : files)
+            Files.add(new FileStats(Files.size(), file));
+        List<FileStats> added = Files.subList(first, Files.size());
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.submit(() -> added.parallelStream().forEach(f -> {
+                try {
+                    AddFile(f);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted chunking", e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof UncheckedIOException)
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            throw new IOException("Failed chunking", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void AddFile(FileStats file) throws IOException, NoSuchAlgorithmException {
+        DeltaChunker chunker = Chunkers.get();
+        if(chunker == null){
+            chunker = new DeltaChunker(AverageSize, Provider, ReadSize);
+            Chunkers.set(chunker);
+        }
+        // the chunk hash is looked up through a reused wrapper, a key is only copied for a new chunk
+        byte[] lookup = new byte[Provider.getDigestLength()];
+        ByteBuffer lookupKey = ByteBuffer.wrap(lookup);
+        try(FileChannel fc = FileChannel.open(file.Entry.getPath(), StandardOpenOption.READ)){
+            file.Size = chunker.Chunk(fc, (offset, length, hash) -> {
+                System.arraycopy(hash, 0, lookup, 0, lookup.length);
+                ChunkStats chunk = Chunks.get(lookupKey);
+                if(chunk == null){
+                    ChunkStats created = new ChunkStats(length);
+                    chunk = Chunks.putIfAbsent(ByteBuffer.wrap(lookup.clone()), created);
+                    if(chunk == null)
+                        chunk = created;
+                }
+                chunk.Add(file.Id);
+                file.Chunks.add(chunk);
+            });
+        }
+    }
+
+    /**
+     * @return bytes of all the files over the bytes of their distinct chunks, 1 when nothing is shared
+     */
+    public double getDedupeRatio(){
+        long unique = getUniqueBytes();
+        return unique == 0 ? 1 : (double) getTotalBytes() / unique;
+    }
+
+    public long getTotalBytes(){
+        long total = 0;
+        for (FileStats f : Files)
+            total += f.Size;
+        return total;
+    }
+
+    public long getUniqueBytes(){
+        long unique = 0;
+        for (ChunkStats c : Chunks.values())
+            unique += c.Length;
+        return unique;
+    }
+
+    public int getChunkCount(){
+        int n = 0;
+        for (FileStats f : Files)
+            n += f.Chunks.size();
+        return n;
+    }
+
+    public int getUniqueChunkCount(){
+        return Chunks.size();
+    }
+
+    /**
+     * @return bytes of the file held in chunks that appear again, in this file or another one
+     */
+    public long SharedBytes(int file){
+        long shared = 0;
+        for (ChunkStats c : Files.get(file).Chunks)
+            if(c.References > 1)
+                shared += c.Length;
+        return shared;
+    }
+
+    /**
+     * @return the file pairs sharing the most bytes, as {file a, file b, shared bytes} ordered by shared bytes
+     */
+    public List<long[]> TopPairs(int count){
+        HashMap<Long, Long> pairs = new HashMap<>();
+        for (ChunkStats c : Chunks.values()) {
+            if(c.FileCount < 2 || c.FileCount > MAX_PAIRED_FILES)
+                continue;
+            for (int i = 0; i < c.FileCount; i++)
+                for (int j = i + 1; j < c.FileCount; j++) {
+                    int a = Math.min(c.FileIds[i], c.FileIds[j]);
+                    int b = Math.max(c.FileIds[i], c.FileIds[j]);
+                    pairs.merge(((long) a << 32) | b, (long) c.Length, Long::sum);
+                }
+        }
+        ArrayList<long[]> top = new ArrayList<>();
+        for (Map.Entry<Long, Long> e : pairs.entrySet())
+            top.add(new long[]{e.getKey() >>> 32, e.getKey() & 0xffffffffL, e.getValue()});
+        top.sort((x, y) -> Long.compare(y[2], x[2]));
+        return top.subList(0, Math.min(count, top.size()));
+    }
+
+    /**
+     * @return report lines, every file with its size and shared bytes then the pairs sharing the most
+     */
+    public List<String> ReportLines(int pairCount){
+        ArrayList<String> lines = new ArrayList<>();
+        for (FileStats f : Files) {
+            long shared = SharedBytes(f.Id);
+            lines.add("FILE " + DeltaUtil.GetHumanReadableSize(f.Size) + " shared " + DeltaUtil.GetHumanReadableSize(shared)
+                    + " " + (f.Size == 0 ? 0 : shared * 100 / f.Size) + "% " + f.Entry.getCanonicalPath());
+        }
+        for (long[] pair : TopPairs(pairCount))
+            lines.add("PAIR " + DeltaUtil.GetHumanReadableSize(pair[2]) + " " + Files.get((int) pair[0]).Entry.getCanonicalPath()
+                    + " " + Files.get((int) pair[1]).Entry.getCanonicalPath());
+        return lines;
+    }
+
+    public String Summary(){
+        return String.format(" Chunks %d, unique %d, total %s, unique %s, dedupe ratio %.2f",
+                getChunkCount(), getUniqueChunkCount(), DeltaUtil.GetHumanReadableSize(getTotalBytes()),
+                DeltaUtil.GetHumanReadableSize(getUniqueBytes()), getDedupeRatio());
+    }
+
+    private static class ChunkStats {
+        private final int Length;
+        private int References;
+        // distinct files holding the chunk, up to MAX_PAIRED_FILES + 1
+        private int[] FileIds;
+        private int FileCount;
+
+        private ChunkStats(int length){
+            Length = length;
+            FileIds = new int[2];
+        }
+
+        private synchronized void Add(int file){
+            References++;
+            for (int i = 0; i < FileCount; i++)
+                if(FileIds[i] == file)
+                    return;
+            if(FileCount > MAX_PAIRED_FILES)
+                return;
+            if(FileCount == FileIds.length)
+                FileIds = Arrays.copyOf(FileIds, FileIds.length * 2);
+            FileIds[FileCount++] = file;
+        }
+    }
+
+    private static class FileStats {
+        private final int Id;
+        private final DeltaFileEntry Entry;
+        private final ArrayList<ChunkStats> Chunks;
+        private long Size;
+
+        private FileStats(int id, DeltaFileEntry entry){
+            Id = id;
+            Entry = entry;
+            Chunks = new ArrayList<>();
+        }
+    }
+}
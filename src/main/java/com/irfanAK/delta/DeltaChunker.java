@@ -0,0 +1,176 @@
+package com.irfanAK.delta;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+/**
+ * Content defined chunking in the style of FastCDC, a gear hash rolls over the bytes and a chunk ends where its top bits are zero
+ * so an insert or delete only moves the chunk boundaries next to it, the chunks after it are found again in the other file
+ * normalized chunking: a stricter mask before the average size and a looser one after it keeps the sizes close to the average
+ * the bytes of a chunk are digested as they are scanned, nothing is copied and the scan loop does not allocate
+ * the reads go to a heap buffer of the chunker, the scan over its array is about a third faster than over a direct buffer
+ */
+public class DeltaChunker {
+
+    public static final int DEFAULT_AVERAGE_SIZE = 8 * 1024;
+
+    // one random value per byte, fixed seed so the boundaries are the same on every run and machine
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random r = new Random(0x44454c5441L);
+        for (int i = 0; i < GEAR.length; i++)
+            GEAR[i] = r.nextLong();
+    }
+
+    private final int MinSize;
+    private final int AverageSize;
+    private final int MaxSize;
+    // the fingerprint is shifted left per byte, so its top bits depend on the most bytes and are the ones masked
+    private final long MaskS;
+    private final long MaskL;
+    private final MessageDigest Digest;
+    private final byte[] ChunkHash;
+    private final ByteBuffer Buffer;
+
+    public DeltaChunker(int averageSize, DeltaHashProvider provider) throws NoSuchAlgorithmException {
+        this(averageSize, provider, DeltaHash.DEFAULT_READ_SIZE);
+    }
+
+    /**
+     * Chunks of averageSize / 4 to averageSize * 8 bytes
+     * @param averageSize average chunk size in bytes, a power of two
+     * @param provider digest of every chunk
+     * @param readSize size in bytes of the reads
+     */
+    public DeltaChunker(int averageSize, DeltaHashProvider provider, int readSize) throws NoSuchAlgorithmException {
+        if(readSize < 1)
+            throw new IllegalArgumentException("Read Size must be a positive number. readSize can not be " + readSize + ".");
+        if(averageSize < 256 || Integer.bitCount(averageSize) != 1)
+            throw new IllegalArgumentException("Average Size must be a power of two of at least 256. averageSize can not be " + averageSize + ".");
+        int bits = Integer.numberOfTrailingZeros(averageSize);
+        MinSize = averageSize / 4;
+        AverageSize = averageSize;
+        MaxSize = averageSize * 8;
+        MaskS = TopBits(bits + 2);
+        MaskL = TopBits(bits - 2);
+        Digest = provider.NewDigest();
+        ChunkHash = new byte[Digest.getDigestLength()];
+        Buffer = ByteBuffer.allocate(readSize);
+    }
+
+    private static long TopBits(int n){
+        return -1L << (64 - n);
+    }
+
+    /**
+     * Receives every chunk of a file in order, hash is reused for the next chunk and must be copied to be kept
+     */
+    public interface ChunkConsumer {
+        void Accept(long offset, int length, byte[] hash) throws IOException;
+    }
+
+    /**
+     * Reads the channel to its end and hands every chunk to the consumer
+     * @return number of bytes read
+     */
+    public long Chunk(SeekableByteChannel sbc, ChunkConsumer consumer) throws IOException {
+        ByteBuffer bb = Buffer;
+        long offset = 0;
+        long chunkStart = 0;
+        int length = 0;
+        long fp = 0;
+        Digest.reset();
+        while (true){
+            bb.clear();
+            int read = DeltaHash.ReadFully(sbc, bb);
+            if(read <= 0)
+                break;
+            int limit = read;
+            byte[] data = bb.array();
+            int pos = 0;
+            int start = 0;
+            while (pos < limit){
+                // the first MinSize bytes of a chunk can not hold a boundary and are not rolled
+                if(length < MinSize){
+                    int skip = Math.min(MinSize - length, limit - pos);
+                    pos += skip;
+                    length += skip;
+                    continue;
+                }
+                int end = Math.min(limit, pos + (MaxSize - length));
+                int normal = Math.min(end, pos + Math.max(0, AverageSize - length));
+                boolean cut = false;
+                // the two loops only differ in the mask, kept apart so each stays a tight loop
+                for (; pos < normal; pos++) {
+                    fp = (fp << 1) + GEAR[data[pos] & 0xff];
+                    if((fp & MaskS) == 0){
+                        pos++;
+                        cut = true;
+                        break;
+                    }
+                }
+                if(!cut){
+                    for (; pos < end; pos++) {
+                        fp = (fp << 1) + GEAR[data[pos] & 0xff];
+                        if((fp & MaskL) == 0){
+                            pos++;
+                            cut = true;
+                            break;
+                        }
+                    }
+                }
+                length = (int) (offset + pos - chunkStart);
+                if(cut || length >= MaxSize){
+                    Update(bb, start, pos);
+                    consumer.Accept(chunkStart, length, Finish());
+                    chunkStart = offset + pos;
+                    start = pos;
+                    length = 0;
+                    fp = 0;
+                }
+            }
+            Update(bb, start, limit);
+            offset += read;
+        }
+        if(offset > chunkStart)
+            consumer.Accept(chunkStart, (int) (offset - chunkStart), Finish());
+        return offset;
+    }
+
+    // digests bytes from to to of the buffer, the limit is put back for the absolute reads of the scan
+    private void Update(ByteBuffer bb, int from, int to){
+        if(to <= from)
+            return;
+        int limit = bb.limit();
+        bb.limit(to).position(from);
+        Digest.update(bb);
+        bb.limit(limit);
+    }
+
+    private byte[] Finish() {
+        try {
+            Digest.digest(ChunkHash, 0, ChunkHash.length);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        return ChunkHash;
+    }
+
+    public int getMinSize(){
+        return MinSize;
+    }
+
+    public int getAverageSize(){
+        return AverageSize;
+    }
+
+    public int getMaxSize(){
+        return MaxSize;
+    }
+}
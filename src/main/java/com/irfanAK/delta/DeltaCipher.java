@@ -0,0 +1,337 @@
+package com.irfanAK.delta;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Password based encryption of files as independent AES-GCM segments, so segments are encrypted on every core
+ * and any byte range can be decrypted by reading only the segments holding it
+ * the key is derived with PBKDF2-HMAC-SHA256 from the password and a random salt kept in the header
+ * the nonce of a segment is the random prefix of the file followed by the segment number, so no nonce repeats under a key
+ * the header and whether the segment is the last are authenticated with every segment, so segments can not be
+ * reordered, dropped, or the file cut at a segment boundary without decryption failing
+ * each thread holds one plain and one sealed segment, memory is bounded by threads * 2 * segmentSize whatever the file size
+ *
+ * layout (big endian)
+ * - header "DELTAENC" magic, version, PBKDF2 iterations, 16 byte salt, 8 byte nonce prefix, segment size, plain length
+ * - segments of segmentSize plain bytes each sealed with a 16 byte tag, the last one shorter, at least one segment
+ */
+public class DeltaCipher {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    public static final int DEFAULT_ITERATIONS = 600000;
+    private static final byte[] MAGIC = "DELTAENC".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int SALT_LENGTH = 16;
+    private static final int PREFIX_LENGTH = 8;
+    private static final int TAG_LENGTH = 16;
+    private static final int HEADER_LENGTH = MAGIC.length + 4 + 4 + SALT_LENGTH + PREFIX_LENGTH + 4 + 8;
+
+    private final int Threads;
+    private final AtomicLong BytesProcessed;
+    private final AtomicLong Nanos;
+
+    /**
+     * @param threads segments sealed or opened at once
+     */
+    public DeltaCipher(int threads){
+        if(threads < 1)
+            throw new IllegalArgumentException("Threads must be a positive number. threads can not be " + threads + ".");
+        Threads = threads;
+        BytesProcessed = new AtomicLong();
+        Nanos = new AtomicLong();
+    }
+
+    /**
+     * Encrypts the file into the output, which is replaced only once the whole file is encrypted
+     * @param segmentSize plain bytes per segment
+     * @param iterations PBKDF2 iterations, more make guessing the password slower
+     */
+    public void Encrypt(Path input, Path output, char[] password, int segmentSize, int iterations) throws IOException, GeneralSecurityException {
+        if(segmentSize < 1)
+            throw new IllegalArgumentException("Segment Size must be a positive number. segmentSize can not be " + segmentSize + ".");
+        if(iterations < 1)
+            throw new IllegalArgumentException("Iterations must be a positive number. iterations can not be " + iterations + ".");
+        SecureRandom random = new SecureRandom();
+        byte[] salt = new byte[SALT_LENGTH];
+        byte[] prefix = new byte[PREFIX_LENGTH];
+        random.nextBytes(salt);
+        random.nextBytes(prefix);
+        long length = DeltaFileEntry.Of(input).getSize();
+        Header header = new Header(iterations, salt, prefix, segmentSize, length);
+        SecretKeySpec key = DeriveKey(password, header);
+        Path temp = TempSibling(input, output);
+        try {
+            try(FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)){
+                WriteFully(out, ByteBuffer.wrap(header.Bytes), 0);
+                Run(input, out, header, key, true, 0, header.SegmentCount() - 1, 0, length);
+            }
+            Files.move(temp, output, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Decrypts the whole file into the output, which is replaced only once the whole file is decrypted
+     */
+    public void Decrypt(Path input, Path output, char[] password) throws IOException, GeneralSecurityException {
+        DecryptRange(input, output, password, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Decrypts the plain bytes from offset for length into the output, reading only the segments that hold them
+     * a range past the end is cut to the end
+     * @return number of plain bytes written
+     */
+    public long DecryptRange(Path input, Path output, char[] password, long offset, long length) throws IOException, GeneralSecurityException {
+        if(offset < 0)
+            throw new IllegalArgumentException("Offset must be a positive number. offset can not be " + offset + ".");
+        if(length < 0)
+            throw new IllegalArgumentException("Length must be a positive number. length can not be " + length + ".");
+        Header header = ReadHeader(input);
+        SecretKeySpec key = DeriveKey(password, header);
+        long end = Math.min(header.Length, offset + Math.min(length, Long.MAX_VALUE - offset));
+        long start = Math.min(offset, end);
+        // the segments opened before a failure are only ever in the temp file, the output is left as it was
+        Path temp = TempSibling(input, output);
+        try {
+            try(FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)){
+                if(header.Length == 0 || start == end){
+                    // the single empty segment is still opened so a wrong password or a forged header fails
+                    if(header.Length == 0)
+                        Run(input, out, header, key, false, 0, 0, 0, 0);
+                }else{
+                    Run(input, out, header, key, false, start / header.SegmentSize, (end - 1) / header.SegmentSize, start, end);
+                }
+            }
+            Files.move(temp, output, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return end - start;
+    }
+
+    // empty file next to the output to write into, on the same file system so it can be moved over the output atomically
+    private static Path TempSibling(Path input, Path output) throws IOException {
+        if(Files.exists(output) && Files.isSameFile(input, output))
+            throw new IllegalArgumentException("Output must be a different file than the input. output can not be " + output + ".");
+        Path parent = output.toAbsolutePath().getParent();
+        return Files.createTempFile(parent, "." + output.getFileName(), ".part");
+    }
+
+    /**
+     * @return the plain length recorded in the header of an encrypted file
+     */
+    public static long PlainLength(Path input) throws IOException {
+        return ReadHeader(input).Length;
+    }
+
+    // seals or opens the segments first to last on every thread, writing the bytes falling in [from, to) of the plain file
+    private void Run(Path input, FileChannel out, Header header, SecretKeySpec key, boolean encrypt,
+                     long first, long last, long from, long to) throws IOException, GeneralSecurityException {
+        // fails here instead of in the workers when the cipher is missing
+        Cipher.getInstance("AES/GCM/NoPadding");
+        AtomicLong next = new AtomicLong(first);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        long start = System.nanoTime();
+        Thread[] workers = new Thread[(int) Math.min(Threads, last - first + 1)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(() -> {
+                try(FileChannel in = FileChannel.open(input, StandardOpenOption.READ)){
+                    Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                    ByteBuffer sealed = ByteBuffer.allocateDirect(header.SegmentSize + TAG_LENGTH);
+                    for (long s = next.getAndIncrement(); s <= last && failure.get() == null; s = next.getAndIncrement()) {
+                        if(encrypt)
+                            Seal(in, out, cipher, header, key, s, sealed);
+                        else
+                            Open(in, out, cipher, header, key, s, sealed, from, to);
+                    }
+                } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "delta-cipher-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        try {
+            for (Thread t : workers)
+                t.join();
+        } catch (InterruptedException e) {
+            for (Thread t : workers)
+                t.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the cipher threads");
+        }
+        Nanos.addAndGet(System.nanoTime() - start);
+
+        Exception e = failure.get();
+        if(e instanceof IOException)
+            throw (IOException) e;
+        if(e instanceof GeneralSecurityException)
+            throw (GeneralSecurityException) e;
+        if(e != null)
+            throw (RuntimeException) e;
+    }
+
+    private void Seal(FileChannel in, FileChannel out, Cipher cipher, Header header, SecretKeySpec key, long segment, ByteBuffer sealed) throws IOException, GeneralSecurityException {
+        int plainSize = header.PlainSize(segment);
+        // the same thread local buffer FileChunkHash reads through
+        ByteBuffer plain = DeltaHash.ReadBuffer(plainSize);
+        in.position(segment * header.SegmentSize);
+        int n = Math.max(0, DeltaHash.ReadFully(in, plain));
+        if(n != plainSize)
+            throw new IOException("File changed while it was encrypted, segment " + segment + " read " + n + " of " + plainSize + " bytes");
+        plain.flip();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, header.Nonce(segment)));
+        cipher.updateAAD(header.Aad(segment));
+        sealed.clear();
+        cipher.doFinal(plain, sealed);
+        sealed.flip();
+        WriteFully(out, sealed, header.SealedPosition(segment));
+        BytesProcessed.addAndGet(plainSize);
+    }
+
+    private void Open(FileChannel in, FileChannel out, Cipher cipher, Header header, SecretKeySpec key, long segment, ByteBuffer sealed,
+                      long from, long to) throws IOException, GeneralSecurityException {
+        int sealedSize = header.PlainSize(segment) + TAG_LENGTH;
+        in.position(header.SealedPosition(segment));
+        sealed.clear().limit(sealedSize);
+        int n = Math.max(0, DeltaHash.ReadFully(in, sealed));
+        if(n != sealedSize)
+            throw new IOException("Encrypted file is truncated at segment " + segment);
+        sealed.flip();
+        ByteBuffer plain = DeltaHash.ReadBuffer(header.SegmentSize);
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, header.Nonce(segment)));
+        cipher.updateAAD(header.Aad(segment));
+        try {
+            cipher.doFinal(sealed, plain);
+        } catch (AEADBadTagException e) {
+            throw new IOException("Segment " + segment + " failed authentication, wrong password or the file was changed", e);
+        }
+        plain.flip();
+        // only the part of the segment inside the range is written, at its place relative to the range
+        long position = segment * header.SegmentSize;
+        int skip = (int) Math.max(0, from - position);
+        int keep = (int) Math.min(plain.limit(), to - position);
+        plain.position(skip).limit(keep);
+        BytesProcessed.addAndGet(keep - skip);
+        WriteFully(out, plain, position + skip - from);
+    }
+
+    private static SecretKeySpec DeriveKey(char[] password, Header header) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password, header.Salt, header.Iterations, 256);
+        try {
+            byte[] key = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            return new SecretKeySpec(key, "AES");
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static Header ReadHeader(Path input) throws IOException {
+        try(FileChannel in = FileChannel.open(input, StandardOpenOption.READ)){
+            ByteBuffer bb = ByteBuffer.allocate(HEADER_LENGTH);
+            if(DeltaHash.ReadFully(in, bb) != HEADER_LENGTH)
+                throw new IOException("Not a Delta encrypted file " + input);
+            bb.flip();
+            byte[] magic = new byte[MAGIC.length];
+            bb.get(magic);
+            if(!Arrays.equals(magic, MAGIC))
+                throw new IOException("Not a Delta encrypted file " + input);
+            int version = bb.getInt();
+            if(version != VERSION)
+                throw new IOException("Unsupported encrypted file version " + version);
+            int iterations = bb.getInt();
+            byte[] salt = new byte[SALT_LENGTH];
+            byte[] prefix = new byte[PREFIX_LENGTH];
+            bb.get(salt).get(prefix);
+            int segmentSize = bb.getInt();
+            long length = bb.getLong();
+            if(iterations < 1 || segmentSize < 1 || length < 0)
+                throw new IOException("Malformed encrypted file header " + input);
+            Header header = new Header(iterations, salt, prefix, segmentSize, length);
+            long expected = header.SealedPosition(header.SegmentCount() - 1) + header.PlainSize(header.SegmentCount() - 1) + TAG_LENGTH;
+            if(in.size() != expected)
+                throw new IOException("Encrypted file is " + in.size() + " bytes but its header describes " + expected);
+            return header;
+        }
+    }
+
+    private static void WriteFully(FileChannel fc, ByteBuffer bb, long position) throws IOException {
+        while (bb.hasRemaining())
+            position += fc.write(bb, position);
+    }
+
+    public long getBytesProcessed(){
+        return BytesProcessed.get();
+    }
+
+    public double getMegabytesPerSecond(){
+        long nanos = Nanos.get();
+        return nanos == 0 ? 0 : BytesProcessed.get() * 1e9 / nanos / (1024 * 1024);
+    }
+
+    private static class Header {
+        private final int Iterations;
+        private final byte[] Salt;
+        private final byte[] Prefix;
+        private final int SegmentSize;
+        private final long Length;
+        private final byte[] Bytes;
+
+        private Header(int iterations, byte[] salt, byte[] prefix, int segmentSize, long length){
+            Iterations = iterations;
+            Salt = salt;
+            Prefix = prefix;
+            SegmentSize = segmentSize;
+            Length = length;
+            if(SegmentCount() - 1 > 0xffffffffL)
+                throw new IllegalArgumentException("Segment Size must leave at most 2^32 segments. segmentSize can not be " + segmentSize + ".");
+            Bytes = ByteBuffer.allocate(HEADER_LENGTH).put(MAGIC).putInt(VERSION).putInt(iterations).put(salt).put(prefix)
+                    .putInt(segmentSize).putLong(length).array();
+        }
+
+        private long SegmentCount(){
+            return Math.max(1, (Length + SegmentSize - 1) / SegmentSize);
+        }
+
+        private int PlainSize(long segment){
+            return (int) Math.min(SegmentSize, Length - segment * SegmentSize);
+        }
+
+        private long SealedPosition(long segment){
+            return HEADER_LENGTH + segment * (SegmentSize + (long) TAG_LENGTH);
+        }
+
+        // prefix then the segment number, 12 bytes
+        private byte[] Nonce(long segment){
+            return ByteBuffer.allocate(PREFIX_LENGTH + 4).put(Prefix).putInt((int) segment).array();
+        }
+
+        // the header then 1 for the last segment and 0 for the others
+        private byte[] Aad(long segment){
+            byte[] aad = Arrays.copyOf(Bytes, HEADER_LENGTH + 1);
+            aad[HEADER_LENGTH] = (byte) (segment == SegmentCount() - 1 ? 1 : 0);
+            return aad;
+        }
+    }
+}
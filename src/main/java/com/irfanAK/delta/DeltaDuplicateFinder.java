@@ -0,0 +1,247 @@
+package com.irfanAK.delta;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Finds duplicate files in stages so that only files which can still be duplicates get read
+ * - SIZE    files are grouped by size, a file with a unique size can not have a duplicate
+ * - SAMPLED the size collisions are hashed with the sampled chunk hash
+ * - FULL    the sampled hash collisions are hashed fully
+ * - CONFIRM when the stages above used a non-cryptographic hash, the full hash collisions are confirmed with a cryptographic one
+ * - VERIFY  when a verifier is given, the remaining sets are compared byte for byte and split where the files differ
+ * every stage drops the groups left with a single file before handing over to the next one
+ * paths that are hard links to a file already listed are dropped before the stages, they take no extra space
+ */
+public class DeltaDuplicateFinder {
+
+    private final DeltaHash dh;
+    // null when the hashes of dh are reported as they are
+    private final DeltaHash confirm;
+    // reads the files of a stage that are fully hashed ahead of the hashing, null to leave all reads to the DeltaHash
+    private final DeltaReadPipeline pipeline;
+    // null when the hashes are trusted without comparing the files
+    private final DeltaDuplicateVerifier verifier;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final long minSize;
+
+    public DeltaDuplicateFinder(DeltaHash dh, int chunkSize, int chunkCount, long minSize){
+        this(dh, null, chunkSize, chunkCount, minSize);
+    }
+
+    /**
+     * @param dh DeltaHash used for the sampled and full hashes, its cache and thread pool are shared
+     * @param confirm DeltaHash used to confirm the full hash collisions before they are reported, null to report them as is
+     * @param chunkSize chunk size in kilobytes for the sampled stage
+     * @param chunkCount chunk count for the sampled stage
+     * @param minSize files smaller than this are not reported as duplicates
+     */
+    public DeltaDuplicateFinder(DeltaHash dh, DeltaHash confirm, int chunkSize, int chunkCount, long minSize){
+        this(dh, confirm, null, chunkSize, chunkCount, minSize);
+    }
+
+    /**
+     * Same as above, with the fully hashed files of every stage read through the given pipeline
+     * @param pipeline overlaps the reads and digests of the small files, null to hash them through the DeltaHash
+     */
+    public DeltaDuplicateFinder(DeltaHash dh, DeltaHash confirm, DeltaReadPipeline pipeline, int chunkSize, int chunkCount, long minSize){
+        this(dh, confirm, pipeline, null, chunkSize, chunkCount, minSize);
+    }
+
+    /**
+     * Same as above, with the sets compared byte for byte as the last stage
+     * @param verifier compares the files of the remaining sets, null to report the sets as hashed
+     */
+    public DeltaDuplicateFinder(DeltaHash dh, DeltaHash confirm, DeltaReadPipeline pipeline, DeltaDuplicateVerifier verifier, int chunkSize, int chunkCount, long minSize){
+        if(chunkCount < 0)
+            throw new IllegalArgumentException("Chunk Count must be a positive number. chunkCount can not be " + chunkCount + ".");
+        this.dh = dh;
+        this.confirm = confirm;
+        this.pipeline = pipeline;
+        this.verifier = verifier;
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+        this.minSize = minSize;
+    }
+
+    public ArrayList<DeltaDuplicateSet> FindDuplicates(List<Path> roots) throws IOException, NoSuchAlgorithmException {
+        ArrayList<DeltaDuplicateSet> duplicateSets = new ArrayList<>();
+        for (ArrayList<DeltaFileEntry> group : FindDuplicateGroups(roots))
+            duplicateSets.add(ToDuplicateSet(group, group.get(0).getSize()));
+
+        Collections.sort(duplicateSets);
+        return duplicateSets;
+    }
+
+    /**
+     * Same as FindDuplicates, with the groups of duplicate files as scanned
+     */
+    public ArrayList<ArrayList<DeltaFileEntry>> FindDuplicateGroups(List<Path> roots) throws IOException, NoSuchAlgorithmException {
+        // stage 1, group by size
+        HashMap<Long, ArrayList<DeltaFileEntry>> sizeGroups = new HashMap<>();
+        HashSet<String> inodes = new HashSet<>();
+        int scanned = 0;
+        int links = 0;
+        for (DeltaFileEntry file : DeltaScanner.ListFiles(roots)) {
+            if(file.getSize() < minSize)
+                continue;
+            String fileKey = DeltaHashEntry.FileKeyString(file.getAttributes().fileKey());
+            if(!fileKey.equals("-") && !inodes.add(fileKey)){
+                links++;
+                continue;
+            }
+            sizeGroups.computeIfAbsent(file.getSize(), k -> new ArrayList<>()).add(file);
+            scanned++;
+        }
+        if(links > 0)
+            System.out.println(" Skipped " + links + " hard links to files already listed");
+        ArrayList<ArrayList<DeltaFileEntry>> candidates = new ArrayList<>();
+        for (ArrayList<DeltaFileEntry> group : sizeGroups.values())
+            if(group.size() > 1)
+                candidates.add(group);
+        ReportStage("SIZE", scanned, CountFiles(candidates), 0);
+
+        // stage 2, sampled hash on the size collisions
+        // files small enough to be fully hashed here are already final and skip stage 3
+        ArrayList<ArrayList<DeltaFileEntry>> sampledGroups = new ArrayList<>();
+        ArrayList<Boolean> sampledIsFull = new ArrayList<>();
+        long bytesRead = 0;
+        int before = CountFiles(candidates);
+        // each stage adds the files it hashes to the total the progress ETA is worked out against
+        DeltaMetrics.Get().Expect(before);
+        Prefetch(dh, candidates, chunkCount);
+        for (ArrayList<DeltaFileEntry> group : candidates) {
+            long size = group.get(0).getSize();
+            boolean full = dh.IsFullHashed(size, chunkSize, chunkCount);
+            bytesRead += group.size() * (full ? size : Math.min(size, (long) (chunkCount + 2) * chunkSize * 1024L));
+            for (ArrayList<DeltaFileEntry> split : SplitByHash(dh, group, chunkCount)) {
+                sampledGroups.add(split);
+                sampledIsFull.add(full);
+            }
+        }
+        ReportStage("SAMPLED", before, CountFiles(sampledGroups), bytesRead);
+
+        // stage 3, full hash only where the sampled hash still collides
+        ArrayList<ArrayList<DeltaFileEntry>> fullGroups = new ArrayList<>();
+        before = CountFiles(sampledGroups);
+        bytesRead = 0;
+        for (int i = 0; i < sampledGroups.size(); i++)
+            if(!sampledIsFull.get(i))
+                DeltaMetrics.Get().Expect(sampledGroups.get(i).size());
+        Prefetch(dh, sampledGroups, -1);
+        for (int i = 0; i < sampledGroups.size(); i++) {
+            ArrayList<DeltaFileEntry> group = sampledGroups.get(i);
+            if(sampledIsFull.get(i)){
+                fullGroups.add(group);
+            }else{
+                bytesRead += group.size() * group.get(0).getSize();
+                fullGroups.addAll(SplitByHash(dh, group, -1));
+            }
+        }
+        ReportStage("FULL", before, CountFiles(fullGroups), bytesRead);
+
+        // stage 4, confirm the remaining collisions with the cryptographic hash
+        if(confirm != null){
+            ArrayList<ArrayList<DeltaFileEntry>> confirmedGroups = new ArrayList<>();
+            before = CountFiles(fullGroups);
+            bytesRead = 0;
+            DeltaMetrics.Get().Expect(before);
+            Prefetch(confirm, fullGroups, -1);
+            for (ArrayList<DeltaFileEntry> group : fullGroups) {
+                bytesRead += group.size() * group.get(0).getSize();
+                confirmedGroups.addAll(SplitByHash(confirm, group, -1));
+            }
+            ReportStage("CONFIRM", before, CountFiles(confirmedGroups), bytesRead);
+            fullGroups = confirmedGroups;
+        }
+
+        // stage 5, byte for byte comparison, one sequential read of every remaining file
+        if(verifier != null){
+            ArrayList<ArrayList<DeltaFileEntry>> verifiedGroups = new ArrayList<>();
+            before = CountFiles(fullGroups);
+            long bytesBefore = verifier.getBytesRead();
+            for (ArrayList<DeltaFileEntry> group : fullGroups) {
+                ArrayList<Path> paths = new ArrayList<>();
+                for (DeltaFileEntry file : group)
+                    paths.add(file.getPath());
+                for (List<Integer> identical : verifier.Split(paths)) {
+                    ArrayList<DeltaFileEntry> split = new ArrayList<>();
+                    for (int i : identical)
+                        split.add(group.get(i));
+                    verifiedGroups.add(split);
+                }
+            }
+            ReportStage("VERIFY", before, CountFiles(verifiedGroups), verifier.getBytesRead() - bytesBefore);
+            fullGroups = verifiedGroups;
+        }
+
+        return fullGroups;
+    }
+
+    /**
+     * Writes the duplicate sets, the first path of a set is treated as the original
+     */
+    public static void DumpDuplicates(ArrayList<DeltaDuplicateSet> duplicateSets, Path output) throws IOException {
+        int number_of_duplicates = 0;
+        long size_saved = 0;
+        try(BufferedWriter bw = Files.newBufferedWriter(output)){
+            for (DeltaDuplicateSet dds : duplicateSets) {
+                bw.write(dds.getHash());
+                bw.newLine();
+                for (String p : dds.getFile_Hashes()) {
+                    bw.write(p);
+                    bw.newLine();
+                }
+                bw.newLine();
+                number_of_duplicates += dds.getFile_Hashes().size();
+                size_saved += (dds.getFile_Hashes().size() - 1) * dds.getSize();
+            }
+        }
+        System.out.println(" Duplicate files found " + number_of_duplicates + " using " + DeltaUtil.GetHumanReadableSize(size_saved) + " extra data");
+    }
+
+    private List<ArrayList<DeltaFileEntry>> SplitByHash(DeltaHash hasher, ArrayList<DeltaFileEntry> group, int chunkCount) throws IOException, NoSuchAlgorithmException {
+        ArrayList<byte[]> hashes = hasher.HashAll(group, chunkSize, chunkCount);
+        HashMap<String, ArrayList<DeltaFileEntry>> byHash = new HashMap<>();
+        for (int i = 0; i < group.size(); i++)
+            byHash.computeIfAbsent(DeltaUtil.ByteToHexString(hashes.get(i)), k -> new ArrayList<>()).add(group.get(i));
+        return byHash.values().stream().filter(g -> g.size() > 1).collect(Collectors.toList());
+    }
+
+    // one pipeline run over every group of the stage, the split that follows then finds the hashes cached
+    private void Prefetch(DeltaHash hasher, List<ArrayList<DeltaFileEntry>> groups, int chunkCount) throws IOException, NoSuchAlgorithmException {
+        if(pipeline == null)
+            return;
+        ArrayList<DeltaFileEntry> files = new ArrayList<>();
+        for (ArrayList<DeltaFileEntry> group : groups)
+            files.addAll(group);
+        pipeline.Prefetch(hasher, files, chunkSize, chunkCount);
+    }
+
+    private DeltaDuplicateSet ToDuplicateSet(ArrayList<DeltaFileEntry> group, long size) throws IOException, NoSuchAlgorithmException {
+        DeltaHash hasher = confirm != null ? confirm : dh;
+        String hash = hasher.getAlgorithm() + " " + DeltaUtil.ByteToHexString(hasher.HashEntry(group.get(0), chunkSize, -1).getHash());
+        DeltaDuplicateSet dds = new DeltaDuplicateSet(DeltaUtil.GetHumanReadableSize(size) + " " + hash, size);
+        for (DeltaFileEntry file : group)
+            dds.addHash(file.getCanonicalPath());
+        Collections.sort(dds.getFile_Hashes());
+        return dds;
+    }
+
+    private static void ReportStage(String stage, int before, int after, long bytesRead){
+        System.out.println(" Stage " + stage + " " + before + " candidates, removed " + (before - after) + ", remaining " + after + ", hashed " + DeltaUtil.GetHumanReadableSize(bytesRead));
+    }
+
+    private static int CountFiles(List<ArrayList<DeltaFileEntry>> groups){
+        int n = 0;
+        for (ArrayList<DeltaFileEntry> group : groups)
+            n += group.size();
+        return n;
+    }
+}
@@ -6,10 +6,17 @@ public class DeltaDuplicateSet  implements Comparable<DeltaDuplicateSet>{
 
     private String Hash;
     private ArrayList<String> File_Hashes ;
+    // size of each file in the set, -1 when unknown or a folder
+    private long Size;
 
     public DeltaDuplicateSet(String hash){
+        this(hash, -1);
+    }
+
+    public DeltaDuplicateSet(String hash, long size){
         Hash = hash;
         File_Hashes = new ArrayList<>();
+        Size = size;
     }
 
     public void addHash(String hash){
@@ -20,6 +27,10 @@ public class DeltaDuplicateSet  implements Comparable<DeltaDuplicateSet>{
         return Hash;
     }
 
+    public long getSize(){
+        return Size;
+    }
+
     public ArrayList<String> getFile_Hashes(){
         return File_Hashes;
     }
@@ -0,0 +1,274 @@
+package com.irfanAK.delta;
+
+import java.io.IOException;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Byte for byte check of a set of files reported as duplicates, so a sampled or non-cryptographic hash
+ * can not get a file deleted that only matched in the parts that were hashed
+ * all members are read in lockstep, one block of each at a time, the set is split as soon as members differ
+ * and a member left on its own is closed without reading the rest of it
+ * sets larger than MAX_OPEN_FILES are read the same way but open each member only for the block being read
+ */
+public class DeltaDuplicateVerifier {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    public static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
+    // larger sets open each member for every block read instead of keeping them all open
+    private static final int MAX_OPEN_FILES = 64;
+
+    private final int BlockSize;
+    private final long MemoryBudget;
+    // sliced into one block per member, grown up to the memory budget
+    private ByteBuffer Blocks;
+    private long SetsVerified;
+    private long SetsSplit;
+    private long FilesDropped;
+    private long BytesRead;
+
+    public DeltaDuplicateVerifier(){
+        this(DEFAULT_BLOCK_SIZE, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * @param blockSize bytes read from each member per step
+     * @param memoryBudget bytes of buffers for all members of a set, large sets read smaller blocks to stay within it
+     */
+    public DeltaDuplicateVerifier(int blockSize, long memoryBudget){
+        if(blockSize < 1)
+            throw new IllegalArgumentException("Block Size must be a positive number. blockSize can not be " + blockSize + ".");
+        if(memoryBudget < 1)
+            throw new IllegalArgumentException("Memory Budget must be a positive number. memoryBudget can not be " + memoryBudget + ".");
+        BlockSize = blockSize;
+        MemoryBudget = Math.min(memoryBudget, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param files members of a duplicate set
+     * @return the indexes of the files in groups of byte identical files, files without an identical one are left out
+     */
+    public List<List<Integer>> Split(List<Path> files) throws IOException {
+        SetsVerified++;
+        List<List<Integer>> identical = Lockstep(files);
+        int kept = 0;
+        for (List<Integer> group : identical)
+            kept += group.size();
+        if(files.size() > 1 && (identical.size() != 1 || kept < files.size()))
+            SetsSplit++;
+        FilesDropped += files.size() - kept;
+        return identical;
+    }
+
+    // the lockstep compare behind Split, only the bytes read are counted
+    private List<List<Integer>> Lockstep(List<Path> files) throws IOException {
+        int n = files.size();
+        if(n < 2)
+            return new ArrayList<>();
+        int block = (int) Math.max(1, Math.min(BlockSize, MemoryBudget / n));
+        ByteBuffer[] buffers = MemberBuffers(n, block);
+        FileChannel[] channels = new FileChannel[n];
+        List<List<Integer>> identical = new ArrayList<>();
+        // every member open at once would run out of file descriptors on sets of hundreds of files
+        boolean reopen = n > MAX_OPEN_FILES;
+        long offset = 0;
+        try {
+            if(!reopen)
+                for (int i = 0; i < n; i++)
+                    channels[i] = FileChannel.open(files.get(i), StandardOpenOption.READ);
+
+            List<List<Integer>> open = new ArrayList<>();
+            ArrayList<Integer> all = new ArrayList<>();
+            for (int i = 0; i < n; i++)
+                all.add(i);
+            open.add(all);
+
+            while (!open.isEmpty()){
+                List<List<Integer>> next = new ArrayList<>();
+                for (List<Integer> group : open) {
+                    boolean ended = true;
+                    for (int i : group) {
+                        ByteBuffer bb = buffers[i];
+                        bb.clear();
+                        int read;
+                        if(reopen){
+                            try(FileChannel channel = FileChannel.open(files.get(i), StandardOpenOption.READ)){
+                                channel.position(offset);
+                                read = DeltaHash.ReadFully(channel, bb);
+                            }
+                        }else{
+                            read = DeltaHash.ReadFully(channels[i], bb);
+                        }
+                        BytesRead += Math.max(read, 0);
+                        ended &= read <= 0;
+                        bb.flip();
+                    }
+                    // ByteBuffer.equals compares the bytes between position and limit, so a shorter file is never equal
+                    for (List<Integer> part : Partition(group, buffers)) {
+                        if(part.size() < 2){
+                            if(channels[part.get(0)] != null)
+                                channels[part.get(0)].close();
+                        }else if(ended){
+                            identical.add(part);
+                        }else{
+                            next.add(part);
+                        }
+                    }
+                }
+                open = next;
+                offset += block;
+            }
+        } finally {
+            for (FileChannel channel : channels)
+                if(channel != null)
+                    channel.close();
+        }
+        return identical;
+    }
+
+    /**
+     * Splits a set of folders into groups of folders holding the same files under the same relative paths
+     * each folder is compared with the first folder of every group so far, file pair by file pair through Split
+     * folder hashes leave names out, so folders with the same hash can still differ in their names
+     * @return the sets the given folder set splits into, only holding identical folders
+     */
+    public List<DeltaDuplicateSet> VerifyFolders(DeltaDuplicateSet set, List<Path> folders) throws IOException {
+        ArrayList<List<Integer>> groups = new ArrayList<>();
+        ArrayList<TreeMap<String, DeltaFileEntry>> trees = new ArrayList<>();
+        for (int i = 0; i < folders.size(); i++) {
+            TreeMap<String, DeltaFileEntry> tree = Tree(folders.get(i));
+            List<Integer> match = null;
+            if(tree != null){
+                for (List<Integer> group : groups) {
+                    if(SameTree(trees.get(group.get(0)), tree)){
+                        match = group;
+                        break;
+                    }
+                }
+            }
+            trees.add(tree);
+            if(match == null){
+                match = new ArrayList<>();
+                groups.add(match);
+            }
+            match.add(i);
+        }
+        SetsVerified++;
+        if(groups.size() > 1)
+            SetsSplit++;
+        ArrayList<DeltaDuplicateSet> verified = new ArrayList<>();
+        for (List<Integer> group : groups) {
+            if(group.size() < 2){
+                FilesDropped++;
+                continue;
+            }
+            DeltaDuplicateSet dds = new DeltaDuplicateSet(set.getHash(), set.getSize());
+            for (int i : group)
+                dds.addHash(set.getFile_Hashes().get(i));
+            verified.add(dds);
+        }
+        return verified;
+    }
+
+    // files under the folder by relative path, null when a file lies outside it through a link, such a folder is never matched
+    private static TreeMap<String, DeltaFileEntry> Tree(Path folder) throws IOException {
+        String root = folder.toFile().getCanonicalPath() + File.separator;
+        TreeMap<String, DeltaFileEntry> tree = new TreeMap<>();
+        for (DeltaFileEntry file : DeltaScanner.ListFiles(List.of(folder))) {
+            if(!file.getCanonicalPath().startsWith(root))
+                return null;
+            tree.put(file.getCanonicalPath().substring(root.length()), file);
+        }
+        return tree;
+    }
+
+    private boolean SameTree(TreeMap<String, DeltaFileEntry> a, TreeMap<String, DeltaFileEntry> b) throws IOException {
+        if(a == null || !a.keySet().equals(b.keySet()))
+            return false;
+        for (Map.Entry<String, DeltaFileEntry> e : a.entrySet())
+            if(e.getValue().getSize() != b.get(e.getKey()).getSize())
+                return false;
+        // the pairs are steps of the folder set, they are not counted as sets of their own
+        for (Map.Entry<String, DeltaFileEntry> e : a.entrySet())
+            if(Lockstep(List.of(e.getValue().getPath(), b.get(e.getKey()).getPath())).size() != 1)
+                return false;
+        return true;
+    }
+
+    /**
+     * @return the sets the given set splits into, with the same hash and size, only holding byte identical files
+     */
+    public List<DeltaDuplicateSet> Verify(DeltaDuplicateSet set, List<Path> files) throws IOException {
+        ArrayList<DeltaDuplicateSet> verified = new ArrayList<>();
+        for (List<Integer> group : Split(files)) {
+            DeltaDuplicateSet dds = new DeltaDuplicateSet(set.getHash(), set.getSize());
+            for (int i : group)
+                dds.addHash(set.getFile_Hashes().get(i));
+            verified.add(dds);
+        }
+        return verified;
+    }
+
+    // groups members whose current block is equal, in the order they are first seen
+    private static List<List<Integer>> Partition(List<Integer> group, ByteBuffer[] buffers){
+        List<List<Integer>> parts = new ArrayList<>();
+        for (int i : group) {
+            List<Integer> match = null;
+            for (List<Integer> part : parts) {
+                if(buffers[part.get(0)].equals(buffers[i])){
+                    match = part;
+                    break;
+                }
+            }
+            if(match == null){
+                match = new ArrayList<>();
+                parts.add(match);
+            }
+            match.add(i);
+        }
+        return parts;
+    }
+
+    private ByteBuffer[] MemberBuffers(int n, int block){
+        int needed = (int) Math.min(Integer.MAX_VALUE, (long) n * block);
+        if(Blocks == null || Blocks.capacity() < needed)
+            Blocks = ByteBuffer.allocateDirect(needed);
+        ByteBuffer[] buffers = new ByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            ByteBuffer bb = Blocks.duplicate();
+            bb.position(i * block).limit((i + 1) * block);
+            buffers[i] = bb.slice();
+        }
+        return buffers;
+    }
+
+    /**
+     * @return one line report of the sets verified, the sets that turned out to hold different files and the bytes read
+     */
+    public String Report(){
+        return " Verified " + SetsVerified + " sets, " + SetsSplit + " splits, " + FilesDropped + " files dropped, read " + DeltaUtil.GetHumanReadableSize(BytesRead);
+    }
+
+    public long getSetsVerified(){
+        return SetsVerified;
+    }
+
+    public long getSetsSplit(){
+        return SetsSplit;
+    }
+
+    public long getFilesDropped(){
+        return FilesDropped;
+    }
+
+    public long getBytesRead(){
+        return BytesRead;
+    }
+}
@@ -0,0 +1,164 @@
+package com.irfanAK.delta;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts lines that may not fit in memory
+ * lines are collected into runs of runLines, each run is sorted and spilled to a temp file
+ * the runs are then k-way merged and read back in order one line at a time with Next
+ * usage: Add all lines, Finish, Next until null, close
+ */
+public class DeltaExternalSorter implements Closeable {
+
+    // max number of runs merged at once, more runs are first merged into bigger runs
+    private static final int MERGE_FAN_IN = 128;
+
+    private final Path tempDir;
+    private final int runLines;
+    private final ArrayList<String> run;
+    private final ArrayList<Path> runFiles;
+    private PriorityQueue<RunReader> merge;
+
+    /**
+     * @param tempDir folder the sorted runs are spilled into
+     * @param runLines number of lines kept in memory before a run is spilled
+     */
+    public DeltaExternalSorter(Path tempDir, int runLines){
+        if(runLines < 1)
+            throw new IllegalArgumentException("Run Lines must be a positive number. runLines can not be " + runLines + ".");
+        this.tempDir = tempDir;
+        this.runLines = runLines;
+        run = new ArrayList<>();
+        runFiles = new ArrayList<>();
+    }
+
+    public void Add(String line) throws IOException {
+        if(merge != null)
+            throw new IllegalStateException("Lines can not be added after Finish");
+        run.add(line);
+        if(run.size() >= runLines)
+            SpillRun();
+    }
+
+    /**
+     * Spills the last run and starts the merge, after this the lines are read with Next
+     */
+    public void Finish() throws IOException {
+        if(!run.isEmpty())
+            SpillRun();
+        while (runFiles.size() > MERGE_FAN_IN){
+            ArrayList<Path> merged = new ArrayList<>();
+            for (int i = 0; i < runFiles.size(); i += MERGE_FAN_IN)
+                merged.add(MergeRuns(runFiles.subList(i, Math.min(i + MERGE_FAN_IN, runFiles.size()))));
+            runFiles.clear();
+            runFiles.addAll(merged);
+        }
+        merge = OpenRuns(runFiles);
+    }
+
+    /**
+     * @return the next line in sorted order, null once all lines have been read
+     */
+    public String Next() throws IOException {
+        if(merge == null)
+            throw new IllegalStateException("Finish must be called before Next");
+        RunReader reader = merge.poll();
+        if(reader == null)
+            return null;
+        String line = reader.line;
+        if(reader.Advance())
+            merge.add(reader);
+        else
+            reader.close();
+        return line;
+    }
+
+    public int getRunCount(){
+        return runFiles.size();
+    }
+
+    /**
+     * Closes the open runs and deletes the temp files
+     */
+    @Override
+    public void close() throws IOException {
+        if(merge != null)
+            for (RunReader reader : merge)
+                reader.close();
+        for (Path p : runFiles)
+            Files.deleteIfExists(p);
+        runFiles.clear();
+    }
+
+    private void SpillRun() throws IOException {
+        Collections.sort(run);
+        Path runFile = Files.createTempFile(tempDir, "delta", ".run");
+        runFiles.add(runFile);
+        try(BufferedWriter bw = Files.newBufferedWriter(runFile)){
+            for (String line : run) {
+                bw.write(line);
+                bw.newLine();
+            }
+        }
+        run.clear();
+    }
+
+    private Path MergeRuns(List<Path> runs) throws IOException {
+        Path runFile = Files.createTempFile(tempDir, "delta", ".run");
+        PriorityQueue<RunReader> queue = OpenRuns(runs);
+        try(BufferedWriter bw = Files.newBufferedWriter(runFile)){
+            RunReader reader;
+            while ((reader = queue.poll()) != null){
+                bw.write(reader.line);
+                bw.newLine();
+                if(reader.Advance())
+                    queue.add(reader);
+                else
+                    reader.close();
+            }
+        }
+        for (Path p : runs)
+            Files.delete(p);
+        return runFile;
+    }
+
+    private static PriorityQueue<RunReader> OpenRuns(List<Path> runs) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, runs.size()), (a, b) -> a.line.compareTo(b.line));
+        for (Path p : runs) {
+            RunReader reader = new RunReader(Files.newBufferedReader(p));
+            if(reader.Advance())
+                queue.add(reader);
+            else
+                reader.close();
+        }
+        return queue;
+    }
+
+    private static class RunReader implements Closeable {
+        private final BufferedReader br;
+        private String line;
+
+        private RunReader(BufferedReader br){
+            this.br = br;
+        }
+
+        private boolean Advance() throws IOException {
+            line = br.readLine();
+            return line != null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            br.close();
+        }
+    }
+}
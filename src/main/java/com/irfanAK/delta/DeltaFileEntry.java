@@ -0,0 +1,63 @@
+package com.irfanAK.delta;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A scanned file or folder with the attributes read for it, so the size, type, mtime and file key
+ * reach hashing and reporting without asking the file system again
+ */
+public class DeltaFileEntry {
+
+    private final Path Path;
+    private final String CanonicalPath;
+    private final BasicFileAttributes Attributes;
+
+    public DeltaFileEntry(Path path, String canonicalPath, BasicFileAttributes attributes){
+        Path = path;
+        CanonicalPath = canonicalPath;
+        Attributes = attributes;
+    }
+
+    /**
+     * Reads the entry of a single path, following symbolic links
+     * used for the paths given by the user, the children of a folder come from DeltaScanner
+     */
+    public static DeltaFileEntry Of(Path path) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(" no file at " + path.toFile().getCanonicalPath());
+        }
+        return new DeltaFileEntry(path, path.toFile().getCanonicalPath(), attrs);
+    }
+
+    public Path getPath(){
+        return Path;
+    }
+
+    public String getCanonicalPath(){
+        return CanonicalPath;
+    }
+
+    public BasicFileAttributes getAttributes(){
+        return Attributes;
+    }
+
+    public boolean isRegularFile(){
+        return Attributes.isRegularFile();
+    }
+
+    public boolean isDirectory(){
+        return Attributes.isDirectory();
+    }
+
+    public long getSize(){
+        return Attributes.size();
+    }
+}
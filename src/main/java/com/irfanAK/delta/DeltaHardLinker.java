@@ -0,0 +1,187 @@
+package com.irfanAK.delta;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replaces duplicate files with hard links to one copy, the native replacement of AutoDelete.bat
+ * every duplicate is swapped in one rename, a link to the kept copy is made next to it under a temporary name
+ * and renamed over it, so the path always holds either the old file or the link
+ * the duplicate takes the permissions, owner and times of the kept copy, they share one inode from then on
+ * the groups should be byte identical, DeltaDuplicateFinder with a DeltaDuplicateVerifier gives such groups
+ */
+public class DeltaHardLinker {
+
+    // links applied by one task, so the pool is not handed one task per file
+    public static final int BATCH_SIZE = 256;
+    private static final String TEMP_PREFIX = ".delta-link-";
+
+    private final int Parallelism;
+    private final boolean DryRun;
+    private final AtomicLong Linked;
+    private final AtomicLong Skipped;
+    private final AtomicLong Failed;
+    private final AtomicLong BytesReclaimed;
+
+    /**
+     * @param parallelism threads applying the links
+     * @param dryRun only checks and counts the links, nothing on disk is changed
+     */
+    public DeltaHardLinker(int parallelism, boolean dryRun){
+        if(parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be a positive number. parallelism can not be " + parallelism + ".");
+        Parallelism = parallelism;
+        DryRun = dryRun;
+        Linked = new AtomicLong();
+        Skipped = new AtomicLong();
+        Failed = new AtomicLong();
+        BytesReclaimed = new AtomicLong();
+    }
+
+    /**
+     * Keeps the file with the lowest canonical path of every group, the others are to be linked to it
+     * duplicates on another device than the kept file can not be linked and are left out
+     */
+    public List<Link> Plan(List<? extends List<DeltaFileEntry>> groups){
+        ArrayList<Link> links = new ArrayList<>();
+        for (List<DeltaFileEntry> group : groups) {
+            ArrayList<DeltaFileEntry> sorted = new ArrayList<>(group);
+            sorted.sort(Comparator.comparing(DeltaFileEntry::getCanonicalPath));
+            DeltaFileEntry original = sorted.get(0);
+            for (DeltaFileEntry duplicate : sorted.subList(1, sorted.size())) {
+                if(!DeltaIOScheduler.StoreKey(duplicate).equals(DeltaIOScheduler.StoreKey(original))){
+                    Skipped.incrementAndGet();
+                    continue;
+                }
+                links.add(new Link(original, duplicate));
+            }
+        }
+        return links;
+    }
+
+    /**
+     * Applies the links in batches on a pool of the given parallelism, a link whose files changed since they were scanned is skipped
+     * @return one report line per link, in the order of the list
+     */
+    public List<String> Apply(List<Link> links) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(Parallelism);
+        try {
+            ArrayList<Callable<List<String>>> batches = new ArrayList<>();
+            for (int start = 0; start < links.size(); start += BATCH_SIZE) {
+                List<Link> batch = links.subList(start, Math.min(links.size(), start + BATCH_SIZE));
+                batches.add(() -> {
+                    ArrayList<String> lines = new ArrayList<>();
+                    for (Link link : batch)
+                        lines.add(Apply(link));
+                    return lines;
+                });
+            }
+            ArrayList<String> report = new ArrayList<>();
+            for (Future<List<String>> f : pool.invokeAll(batches))
+                report.addAll(f.get());
+            return report;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted applying the links", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed applying the links", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private String Apply(Link link){
+        Path original = Path.of(link.Original.getCanonicalPath());
+        Path duplicate = Path.of(link.Duplicate.getCanonicalPath());
+        try {
+            BasicFileAttributes originalAttrs = Files.readAttributes(original, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            BasicFileAttributes duplicateAttrs = Files.readAttributes(duplicate, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if(!Unchanged(link.Original, originalAttrs) || !Unchanged(link.Duplicate, duplicateAttrs)){
+                Skipped.incrementAndGet();
+                return "SKIP changed since scanned " + duplicate;
+            }
+            // the space only comes back when this path was the last link to the duplicate inode
+            long reclaimed = LinkCount(duplicate) <= 1 ? duplicateAttrs.size() : 0;
+            if(!DryRun){
+                Path temp = duplicate.resolveSibling(TEMP_PREFIX + duplicate.getFileName() + "-" + Thread.currentThread().getId());
+                Files.createLink(temp, original);
+                try {
+                    Files.move(temp, duplicate, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    Files.deleteIfExists(temp);
+                    throw e;
+                }
+            }
+            Linked.incrementAndGet();
+            BytesReclaimed.addAndGet(reclaimed);
+            return "LINK " + duplicate + " -> " + original;
+        } catch (IOException | UnsupportedOperationException e) {
+            Failed.incrementAndGet();
+            return "FAIL " + duplicate + " " + e;
+        }
+    }
+
+    private static boolean Unchanged(DeltaFileEntry scanned, BasicFileAttributes attrs){
+        return attrs.isRegularFile() && new DeltaHashEntry(null, scanned.getAttributes()).Matches(attrs);
+    }
+
+    // hard link count on file systems that have one, 1 anywhere else
+    private static int LinkCount(Path path){
+        try {
+            return (Integer) Files.getAttribute(path, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * @return one line report of the links made or, on a dry run, the links that would be made
+     */
+    public String Report(){
+        return (DryRun ? " Dry run, would link " : " Linked ") + Linked.get() + " files, " + Skipped.get() + " skipped, " + Failed.get() + " failed, "
+                + (DryRun ? "would reclaim " : "reclaimed ") + DeltaUtil.GetHumanReadableSize(BytesReclaimed.get());
+    }
+
+    public long getLinked(){
+        return Linked.get();
+    }
+
+    public long getSkipped(){
+        return Skipped.get();
+    }
+
+    public long getFailed(){
+        return Failed.get();
+    }
+
+    public long getBytesReclaimed(){
+        return BytesReclaimed.get();
+    }
+
+    public static class Link {
+        private final DeltaFileEntry Original;
+        private final DeltaFileEntry Duplicate;
+
+        private Link(DeltaFileEntry original, DeltaFileEntry duplicate){
+            Original = original;
+            Duplicate = duplicate;
+        }
+
+        public DeltaFileEntry getOriginal(){
+            return Original;
+        }
+
+        public DeltaFileEntry getDuplicate(){
+            return Duplicate;
+        }
+    }
+}
@@ -2,35 +2,122 @@ package com.irfanAK.delta;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 
 public class DeltaHash {
 
     // String is Chunk Size Chunk Count : Canonical Path "##:##:<Canonical Path>"
-    private final HashMap<String,byte[]> FilesHashed;
+    // concurrent since folder children can be hashed by several threads at once
+    private final ConcurrentHashMap<String,DeltaHashEntry> FilesHashed;
+    // entries loaded by LoadFromFile, moved into FilesHashed once they are confirmed unchanged
+    private final ConcurrentHashMap<String,DeltaHashEntry> IndexedHashes;
+    // "chunkSize:chunkCount" of every folder entry, used to find the ancestors of a changed entry
+    private final Set<String> FolderKeyPrefixes;
+    // file entries keyed by "chunkSize:chunkCount:fileKey", so a hard link to a file hashed in this run is not read again
+    private final ConcurrentHashMap<String,DeltaHashEntry> InodeHashes;
+    // index lines of other algorithms, kept as is so saving the index does not drop them
+    private final List<String> OtherIndexLines;
     private final String Algorithm;
+    private final DeltaHashProvider Provider;
     // Threshold before which partial hashing is ignored and will do a full hash to save time
     // for example if a partial hash of a file is hashing 5mb and the file is 7mb,
     //          it may be better to just do a full hash
     // this value is kept as percentage
     private final int FullHashingThreshold;
+    // work-stealing pool used to hash the children of folders in parallel
+    // null when everything is hashed on the calling thread
+    private final ForkJoinPool HashingPool;
+    // block size in bytes used to read files that are fully hashed
+    private final int ReadSize;
+    // per store read limits, null to read without limits
+    private final DeltaIOScheduler Scheduler;
+    // children of folders already listed by a walk, taken by FolderHash instead of listing the folder again
+    private final ConcurrentHashMap<String, List<DeltaFileEntry>> Listed = new ConcurrentHashMap<>();
+    // takes every entry as it is hashed instead of FilesHashed, null to keep the entries
+    private volatile DeltaExternalSorter SpillSorter;
+    private static final ThreadLocal<ByteBuffer> ReadBuffers = new ThreadLocal<>();
+
+    public static final int DEFAULT_READ_SIZE = 1024 * 1024;
+    private static final String INDEX_HEADER = "#DELTA-INDEX:2";
+    private static final String INDEX_HEADER_V1 = "#DELTA-INDEX:1:";
 
     public DeltaHash(String algorithm){
-        FilesHashed = new HashMap<>();
-        Algorithm = algorithm;
+        this(algorithm, 1);
+    }
+
+    /**
+     * @param algorithm MessageDigest algorithm or "XXH64", used for files and folders
+     * @param parallelism number of threads used to hash, 1 hashes everything on the calling thread
+     */
+    public DeltaHash(String algorithm, int parallelism){
+        this(algorithm, parallelism, DEFAULT_READ_SIZE);
+    }
+
+    /**
+     * @param algorithm MessageDigest algorithm or "XXH64", used for files and folders
+     * @param parallelism number of threads used to hash, 1 hashes everything on the calling thread
+     * @param readSize size in bytes of the reads when a file is fully hashed, independent of the sampling chunk size
+     */
+    public DeltaHash(String algorithm, int parallelism, int readSize){
+        this(DeltaHashProvider.Of(algorithm), parallelism, readSize);
+    }
+
+    /**
+     * @param provider digests used for files and folders
+     * @param parallelism number of threads used to hash, 1 hashes everything on the calling thread
+     * @param readSize size in bytes of the reads when a file is fully hashed, independent of the sampling chunk size
+     */
+    public DeltaHash(DeltaHashProvider provider, int parallelism, int readSize){
+        this(provider, parallelism, readSize, null);
+    }
+
+    /**
+     * @param provider digests used for files and folders
+     * @param parallelism number of threads used to hash, 1 hashes everything on the calling thread
+     * @param readSize size in bytes of the reads when a file is fully hashed, independent of the sampling chunk size
+     * @param scheduler limits the concurrent reads per store, null to read without limits
+     */
+    public DeltaHash(DeltaHashProvider provider, int parallelism, int readSize, DeltaIOScheduler scheduler){
+        if(readSize < 1)
+            throw new IllegalArgumentException("Read Size must be a positive number. readSize can not be " + readSize + ".");
+        if(parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be a positive number. parallelism can not be " + parallelism + ".");
+        FilesHashed = new ConcurrentHashMap<>();
+        IndexedHashes = new ConcurrentHashMap<>();
+        FolderKeyPrefixes = ConcurrentHashMap.newKeySet();
+        InodeHashes = new ConcurrentHashMap<>();
+        OtherIndexLines = Collections.synchronizedList(new ArrayList<>());
+        Provider = provider;
+        Algorithm = provider.getName();
         FullHashingThreshold = 50;
+        // threads blocked on a read permit are made up for by spare threads, at most parallelism of them,
+        // past that a blocked thread just waits, so threads and their read buffers stay bounded
+        HashingPool = parallelism > 1 ? new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, false,
+                0, 2 * parallelism, 1, pool -> true, 60, TimeUnit.SECONDS) : null;
+        if(HashingPool != null){
+            ForkJoinPool pool = HashingPool;
+            DeltaMetrics.Get().Gauge("pool " + Algorithm + " queued", () -> pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount());
+        }
+        ReadSize = readSize;
+        Scheduler = scheduler;
     }
 
     /**
@@ -44,6 +131,13 @@ public class DeltaHash {
      * @return byte hash of the file or folder
      */
     public byte[] DeltaFileHash(Path path, int chunkSize, int chunkCount) throws IOException, NoSuchAlgorithmException {
+        return HashEntry(path, chunkSize, chunkCount).getHash();
+    }
+
+    /**
+     * Same as DeltaFileHash but returns the cache entry, which tells whether the hash was reused
+     */
+    DeltaHashEntry HashEntry(Path path, int chunkSize, int chunkCount) throws IOException, NoSuchAlgorithmException {
         // Sanity check of the given file
         if(path == null)
             throw new NullPointerException();
@@ -51,72 +145,342 @@ public class DeltaHash {
             throw new IllegalArgumentException("Chunk Count must be a positive number or -1. chunkCount can not be " + chunkCount + ".");
         if(chunkSize < 0)
             throw new IllegalArgumentException("Chunk Size must be a positive number. chunkSize can not be " + chunkCount + ".");
-        if(!Files.exists(path))
-            throw new FileNotFoundException(" no file at " + path.toFile().getCanonicalPath());
 
-        String canonicalPath = path.toFile().getCanonicalPath();
+        // calls from outside the pool are handed over to it, the task then fans out over the folder children
+        if(HashingPool != null && ForkJoinTask.getPool() != HashingPool)
+            return InvokeInPool(new DeltaHashingTask(this, path, chunkSize, chunkCount));
+
+        return HashEntry(DeltaFileEntry.Of(path), chunkSize, chunkCount);
+    }
+
+    /**
+     * Hashes an already scanned entry, its attributes are used as they are without reading them again
+     */
+    DeltaHashEntry HashEntry(DeltaFileEntry file, int chunkSize, int chunkCount) throws IOException, NoSuchAlgorithmException {
+        Path path = file.getPath();
+        String canonicalPath = file.getCanonicalPath();
         String key = chunkSize + ":" + chunkCount + ":" + canonicalPath;
-        System.out.println("Working on " + path);
-        boolean isFile =      Files.isRegularFile(path);  // Check if it's a regular file
-        boolean isDirectory = Files.isDirectory(path);    // Check if it's a directory
+        BasicFileAttributes attrs = file.getAttributes();
+        boolean isFile =      attrs.isRegularFile();  // Check if it's a regular file
+        boolean isDirectory = attrs.isDirectory();    // Check if it's a directory
         if(!isDirectory && !isFile)
             throw new IllegalArgumentException("File is not regular file, can not be hashed.");
 
         if(isFile)
-            if ( ( (Files.size(path)/100)  * FullHashingThreshold) < (long) chunkCount * (long) chunkSize * 1024L)
+            if (IsFullHashed(attrs.size(), chunkSize, chunkCount))
                 chunkCount = -1;
 
         if(chunkCount == -1)
             key = "FULL:0:" + canonicalPath;
 
-        if(FilesHashed.containsKey(key))
-            return FilesHashed.get(key);
-
-        // If cache misses we will try to hash the file and store in hashmap
-        byte[] hash;
+        // If cache misses or the file changed since, we will try to hash the file and store in hashmap
+        DeltaHashEntry entry;
         if(isFile){
-            //System.out.println("Hashing " + key);
-            hash = FileChunkHash(path, chunkSize, chunkCount, Algorithm);
-            FilesHashed.put(key,hash);
+            DeltaMetrics metrics = DeltaMetrics.Get();
+            DeltaHashEntry cached = CachedFile(key, attrs);
+            if(cached != null){
+                metrics.FileScanned(canonicalPath, true);
+                return Spill(key, cached);
+            }
+            // a new path to an inode hashed in this run, stored as a new entry since the path was not cached
+            DeltaHashEntry linked = InodeEntry(key, attrs);
+            if(linked != null){
+                metrics.FileScanned(canonicalPath, true);
+                return Spill(key, PutFile(key, file, linked.getHash()));
+            }
+            byte[] hash;
+            long start = System.nanoTime();
+            DeltaIOScheduler.Permit permit = Scheduler == null ? null : Scheduler.Acquire(file);
+            try {
+                hash = FileChunkHash(path, attrs.size(), chunkSize, chunkCount, Provider, ReadSize);
+            } finally {
+                if(permit != null)
+                    permit.close();
+            }
+            metrics.Record(DeltaMetrics.Stage.FILE, System.nanoTime() - start);
+            metrics.FileScanned(canonicalPath, false);
+            entry = Spill(key, PutFile(key, file, hash));
         }else{
-            hash = FolderHash(path, chunkSize, chunkCount);
-            if(hash != null)
-                FilesHashed.put(key,hash);
-            else{
-                hash = new byte[32];
+            DeltaHashEntry cached = FilesHashed.get(key);
+            if(cached == null)
+                cached = IndexedHashes.get(key);
+            entry = FolderHash(file, chunkSize, chunkCount, cached);
+            if(entry != null){
+                FolderKeyPrefixes.add(chunkSize + ":" + chunkCount);
+                FilesHashed.put(key,entry);
+                if(!entry.isReused())
+                    InvalidateAncestors(canonicalPath);
+                entry = Spill(key, entry);
+            }else{
+                byte[] hash = new byte[Provider.getDigestLength()];
                 Arrays.fill(hash, (byte)0);
+                entry = new DeltaHashEntry(hash, attrs);
             }
 
         }
-        return hash;
+        return entry;
+    }
+
+    /**
+     * @return the key a file is cached under, the chunks are replaced by "FULL:0" when the file is fully hashed with them
+     */
+    String FileKey(DeltaFileEntry file, int chunkSize, int chunkCount){
+        if(IsFullHashed(file.getSize(), chunkSize, chunkCount))
+            return "FULL:0:" + file.getCanonicalPath();
+        return chunkSize + ":" + chunkCount + ":" + file.getCanonicalPath();
     }
 
-    private byte[] FolderHash(Path path, int chunkSize, int chunkCount) throws NoSuchAlgorithmException, IOException {
-        List<Path> filepath = Files.walk(path,1).filter(f -> Files.isRegularFile(f) || Files.isDirectory(f)).collect(Collectors.toList());
-        filepath.remove(path);
-        if(filepath.size() == 0){
+    /**
+     * @return the cached entry of a file that did not change since it was hashed, flagged as reused, null when it has to be hashed
+     */
+    DeltaHashEntry CachedFile(String key, BasicFileAttributes attrs){
+        DeltaHashEntry cached = FilesHashed.get(key);
+        if(cached == null)
+            cached = IndexedHashes.get(key);
+        if(cached == null || !cached.Matches(attrs))
+            return null;
+        FilesHashed.put(key,cached);
+        return cached.AsReused();
+    }
+
+    /**
+     * @return the entry of another path to the same inode hashed with the same chunks in this run, null if there is none
+     * or the inode changed since, file systems without file keys never match
+     */
+    DeltaHashEntry InodeEntry(String key, BasicFileAttributes attrs){
+        String fileKey = DeltaHashEntry.FileKeyString(attrs.fileKey());
+        if(fileKey.equals("-"))
             return null;
+        DeltaHashEntry entry = InodeHashes.get(InodeKey(key, fileKey));
+        if(entry == null || !entry.Matches(attrs))
+            return null;
+        return entry;
+    }
+
+    // "chunkSize:chunkCount:fileKey" out of a "chunkSize:chunkCount:canonicalPath" key
+    private static String InodeKey(String key, String fileKey){
+        return key.substring(0, key.length() - KeyPath(key).length()) + fileKey;
+    }
+
+    /**
+     * Stores the hash of a file that was just read, used by HashEntry and by hashes read ahead through DeltaReadPipeline
+     */
+    DeltaHashEntry PutFile(String key, DeltaFileEntry file, byte[] hash){
+        DeltaHashEntry entry = new DeltaHashEntry(hash, file.getAttributes());
+        FilesHashed.put(key,entry);
+        // spilled entries are not kept, neither are their inodes, another link to one is read again
+        if(SpillSorter == null && !entry.getFileKey().equals("-"))
+            InodeHashes.put(InodeKey(key, entry.getFileKey()), entry);
+        InvalidateAncestors(file.getCanonicalPath());
+        return entry;
+    }
+
+    /**
+     * Hands every entry hashed from now on to the sorter instead of keeping it, for DumpToFileStreaming
+     * an entry is only held until the folder above it is hashed, so FilesHashed stays empty and the index can not be saved
+     * entries read ahead by DeltaReadPipeline are held until the walk reaches them
+     * @param sorter null to keep the entries again
+     */
+    public void SpillTo(DeltaExternalSorter sorter){
+        SpillSorter = sorter;
+    }
+
+    // with a spill sorter the entry goes to it and is dropped from FilesHashed, the folder hashing it still gets it
+    private DeltaHashEntry Spill(String key, DeltaHashEntry entry) throws IOException {
+        DeltaExternalSorter sorter = SpillSorter;
+        if(sorter == null)
+            return entry;
+        FilesHashed.remove(key);
+        synchronized (sorter){
+            sorter.Add(SortedLine(key, entry));
         }
-        ArrayList<DeltaHashingThread> threadList = new ArrayList<>();
+        return entry;
+    }
+
+    /**
+     * Drops the cached entry of a file or folder that changed outside of a hash run and the folder entries above it
+     * so the next hash of an ancestor recomputes it, used when a change is known without rescanning the tree
+     */
+    void Forget(String canonicalPath, int chunkSize, int chunkCount){
+        for (String key : new String[]{chunkSize + ":" + chunkCount + ":" + canonicalPath, "FULL:0:" + canonicalPath}) {
+            FilesHashed.remove(key);
+            IndexedHashes.remove(key);
+        }
+        for (Path parent = Path.of(canonicalPath).getParent(); parent != null; parent = parent.getParent()) {
+            String key = chunkSize + ":" + chunkCount + ":" + parent;
+            FilesHashed.remove(key);
+            IndexedHashes.remove(key);
+        }
+    }
+
+    /**
+     * Drops the cached hashes of all folders above a changed file or folder
+     * so they can not be reused with a stale hash when their own attributes did not change
+     */
+    private void InvalidateAncestors(String canonicalPath){
+        for (Path parent = Path.of(canonicalPath).getParent(); parent != null; parent = parent.getParent()) {
+            for (String prefix : FolderKeyPrefixes) {
+                String key = prefix + ":" + parent;
+                IndexedHashes.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Hashes the children of the folder and combines them, the cached folder hash is only
+     * reused when the folder itself is unchanged and every child was served from the cache
+     * so a changed file only recomputes the folders on its path
+     */
+    private DeltaHashEntry FolderHash(DeltaFileEntry folder, int chunkSize, int chunkCount, DeltaHashEntry cached) throws NoSuchAlgorithmException, IOException {
+        List<DeltaFileEntry> children = Listed.remove(folder.getCanonicalPath());
+        if(children == null)
+            children = DeltaScanner.ListChildren(folder);
+        if(children.size() == 0){
+            return null;
+        }
+        ArrayList<DeltaHashEntry> entries = new ArrayList<>();
+        if(HashingPool != null && ForkJoinTask.getPool() == HashingPool){
+            ArrayList<DeltaHashingTask> tasks = new ArrayList<>();
+            for (DeltaFileEntry child : children)
+                tasks.add(new DeltaHashingTask(this, child, chunkSize, chunkCount));
+            ForkJoinTask.invokeAll(tasks);
+            for (DeltaHashingTask task : tasks)
+                entries.add(task.join());
+        }else{
+            for (DeltaFileEntry child : children)
+                entries.add(HashEntry(child, chunkSize, chunkCount));
+        }
+
+        boolean childrenReused = true;
         ArrayList<byte[]> hashes = new ArrayList<>();
-        for (Path p : filepath) {
-            if(p.compareTo(path) == 0)
-                continue;
-            if(!Files.isRegularFile(p) && !Files.isDirectory(p) || p.toFile().getCanonicalPath().contains("$RECYCLE.BIN") || p.toFile().getCanonicalPath().contains("System Volume Information"))
-                continue;
+        for (DeltaHashEntry e : entries) {
+            childrenReused &= e.isReused();
+            hashes.add(e.getHash());
+        }
+        if(childrenReused && cached != null && cached.Matches(folder.getAttributes()))
+            return cached.AsReused();
+
+        return new DeltaHashEntry(FolderArrayHash(hashes, Provider), folder.getAttributes());
+    }
+
+    /**
+     * Hands over the children of folders listed by DeltaScanner.ListTree, each folder hashed next uses them once
+     */
+    public void UseListing(Map<String, List<DeltaFileEntry>> children){
+        Listed.putAll(children);
+    }
+
+    /**
+     * Hashes all the given paths, in parallel when this instance has a hashing pool
+     * @param paths files or folders to be hashed
+     * @param chunkSize same as DeltaFileHash
+     * @param chunkCount same as DeltaFileHash
+     * @return the hashes in the same order as the given paths
+     */
+    public ArrayList<byte[]> DeltaFileHashAll(List<Path> paths, int chunkSize, int chunkCount) throws IOException, NoSuchAlgorithmException {
+        ArrayList<DeltaFileEntry> files = new ArrayList<>();
+        for (Path p : paths)
+            files.add(DeltaFileEntry.Of(p));
+        return HashAll(files, chunkSize, chunkCount);
+    }
+
+    /**
+     * Same as DeltaFileHashAll for entries that were already scanned
+     */
+    public ArrayList<byte[]> HashAll(List<DeltaFileEntry> files, int chunkSize, int chunkCount) throws IOException, NoSuchAlgorithmException {
+        if(chunkCount < 0 && chunkCount != -1)
+            throw new IllegalArgumentException("Chunk Count must be a positive number or -1. chunkCount can not be " + chunkCount + ".");
+        if(chunkSize < 0)
+            throw new IllegalArgumentException("Chunk Size must be a positive number. chunkSize can not be " + chunkCount + ".");
+        ArrayList<byte[]> hashes = new ArrayList<>();
+        if(HashingPool == null){
+            for (DeltaFileEntry file : files)
+                hashes.add(HashEntry(file, chunkSize, chunkCount).getHash());
+            return hashes;
+        }
+        // with a scheduler the files are submitted in path order, the store then hands out the waiting reads in elevator order
+        Integer[] order = new Integer[files.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        if(Scheduler != null)
+            Arrays.sort(order, Comparator.comparing(i -> files.get(i).getCanonicalPath()));
+        DeltaHashingTask[] tasks = new DeltaHashingTask[files.size()];
+        for (int i : order) {
+            tasks[i] = new DeltaHashingTask(this, files.get(i), chunkSize, chunkCount);
+            HashingPool.execute(tasks[i]);
+        }
+        try {
+            for (DeltaHashingTask task : tasks)
+                hashes.add(task.join().getHash());
+        } catch (RuntimeException e) {
+            throw UnwrapTaskException(e);
+        }
+        return hashes;
+    }
+
+    /**
+     * @return true if a file of the given size would be fully hashed instead of sampled with the given chunks
+     */
+    public boolean IsFullHashed(long size, int chunkSize, int chunkCount){
+        return IsFullHashed(size, chunkSize, chunkCount, FullHashingThreshold);
+    }
+
+    /**
+     * Same as above for a given threshold, so the decision can be made without a DeltaHash
+     * @param threshold percentage of the file the chunks must stay under to be sampled, see getFullHashingThreshold
+     */
+    static boolean IsFullHashed(long size, int chunkSize, int chunkCount, int threshold){
+        if(chunkCount == -1)
+            return true;
+        return ( (size/100)  * threshold) < (long) chunkCount * (long) chunkSize * 1024L;
+    }
+
+    public int getFullHashingThreshold(){
+        return FullHashingThreshold;
+    }
+
+    public String getAlgorithm(){
+        return Algorithm;
+    }
+
+    public DeltaHashProvider getProvider(){
+        return Provider;
+    }
 
+    /**
+     * @return read only view of the entries hashed or confirmed in this run, keyed by "chunkSize:chunkCount:canonicalPath"
+     */
+    public Map<String,DeltaHashEntry> getFilesHashed(){
+        return Collections.unmodifiableMap(FilesHashed);
+    }
 
-            byte[] fileHash = DeltaFileHash(p, chunkSize, chunkCount);
-            hashes.add(fileHash);
+    /**
+     * @return read only view of the entries loaded by LoadFromFile, keyed as getFilesHashed
+     */
+    Map<String,DeltaHashEntry> getIndexedHashes(){
+        return Collections.unmodifiableMap(IndexedHashes);
+    }
 
+    private DeltaHashEntry InvokeInPool(DeltaHashingTask task) throws IOException, NoSuchAlgorithmException {
+        try {
+            return HashingPool.invoke(task);
+        } catch (RuntimeException e) {
+            throw UnwrapTaskException(e);
         }
+    }
 
-        return FolderArrayHash(hashes, Algorithm);
+    // rethrows the checked exceptions wrapped by DeltaHashingTask, returns any other exception as is
+    private static RuntimeException UnwrapTaskException(RuntimeException e) throws IOException, NoSuchAlgorithmException {
+        if(e instanceof UncheckedIOException)
+            throw ((UncheckedIOException) e).getCause();
+        if(e instanceof IllegalStateException && e.getCause() instanceof NoSuchAlgorithmException)
+            throw (NoSuchAlgorithmException) e.getCause();
+        return e;
     }
 
-    private static byte[] FolderArrayHash(ArrayList<byte[]> hashes, String algorithm) throws NoSuchAlgorithmException {
+    static byte[] FolderArrayHash(ArrayList<byte[]> hashes, DeltaHashProvider provider) throws NoSuchAlgorithmException {
         hashes = DeltaUtil.HashesSort(hashes);
-        MessageDigest md = MessageDigest.getInstance(algorithm);
+        MessageDigest md = provider.NewDigest();
         for (byte[] hash : hashes)
             md.update(hash);
         return md.digest();
@@ -125,83 +489,218 @@ public class DeltaHash {
     /**
      * Hashes the given file
      * @param path to the file to be hash
+     * @param size size of the file as scanned, used to place the chunks
      * @param chunkSize the number of chunks in Kilobytes if chunk size is -1 will consider full hash and ignore chunking
      * @param chunkCount the amount of chunks plus 2 to be used to divide the file into example: if chunk size is given as 4 the code will use 4 + 2 = 6 chunks
      * @return byte hash of the given file using the chunks and chunk count
      */
-    private static byte[] FileChunkHash(Path path, int chunkSize, int chunkCount, String algorithm) throws IOException, NoSuchAlgorithmException {
+    static byte[] FileChunkHash(Path path, long size, int chunkSize, int chunkCount, DeltaHashProvider provider, int readBlockSize) throws IOException, NoSuchAlgorithmException {
         if(path == null)
             throw new NullPointerException();
         if(chunkCount < 0 && chunkCount != -1)
             throw new IllegalArgumentException("Chunk Count must be a positive number or -1. chunkCount can not be " + chunkCount + ".");
         if(chunkSize < 0)
             throw new IllegalArgumentException("Chunk Size must be a positive number. chunkSize can not be " + chunkCount + ".");
-        if(!Files.exists(path))
-            throw new FileNotFoundException();
 
         boolean fullHash = chunkCount == -1;
         byte[] hash;
 
         try(SeekableByteChannel sbc = FileChannel.open(path, StandardOpenOption.READ)){
-            MessageDigest md = MessageDigest.getInstance(algorithm);
-            long size,deltaPosition = 0;
-            int bbSize = 1024 * chunkSize;
+            MessageDigest md = provider.NewDigest();
+            long deltaPosition = 0;
+            // full hashes read in readBlockSize blocks, the sampled chunks keep their own size
+            int bbSize = fullHash ? readBlockSize : 1024 * chunkSize;
 
             if(!fullHash) {
-                size = sbc.size();
                 chunkCount += 2;
                 deltaPosition = (size - (long) chunkCount * bbSize) / (chunkCount - 1);
             }
+            ByteBuffer bb = ReadBuffer(bbSize);
+            // the time is split between reading and digesting, two clock reads per block
+            long readNanos = 0, digestNanos = 0, bytes = 0;
+            long t0 = System.nanoTime();
             for (int i = 0; i < chunkCount || fullHash; i++) {
-                ByteBuffer bb = ByteBuffer.allocate(bbSize);
-                int readSize = sbc.read(bb);
+                bb.clear().limit(bbSize);
+                int readSize = ReadFully(sbc, bb);
+                long t1 = System.nanoTime();
+                readNanos += t1 - t0;
                 if(readSize <= 0)
                     break;
-                if(readSize == bbSize)
-                    md.update(bb.array());
-                else
-                    md.update(Arrays.copyOf(bb.array(), readSize));
-
+                bytes += readSize;
+                bb.flip();
+                md.update(bb);
 
                 if(!fullHash)
                     sbc.position(deltaPosition + sbc.position());
+                t0 = System.nanoTime();
+                digestNanos += t0 - t1;
             }
             hash = md.digest();
+            DeltaMetrics metrics = DeltaMetrics.Get();
+            metrics.Record(DeltaMetrics.Stage.READ, readNanos);
+            metrics.Record(DeltaMetrics.Stage.DIGEST, digestNanos + System.nanoTime() - t0);
+            metrics.BytesRead(bytes);
         }
         return hash;
     }
 
+    /**
+     * @return the direct read buffer of the calling thread, grown to at least the given size
+     * the buffer is reused for every file the thread reads so hashing does not allocate per chunk
+     */
+    static ByteBuffer ReadBuffer(int size){
+        ByteBuffer bb = ReadBuffers.get();
+        if(bb == null || bb.capacity() < size){
+            bb = ByteBuffer.allocateDirect(size);
+            ReadBuffers.set(bb);
+        }
+        bb.clear().limit(size);
+        return bb;
+    }
+
+    // reads until the buffer is full or the end of the channel, returns the bytes read or -1 at the end
+    static int ReadFully(SeekableByteChannel sbc, ByteBuffer bb) throws IOException {
+        int total = 0;
+        while (bb.hasRemaining()){
+            int n = sbc.read(bb);
+            if(n < 0)
+                return total == 0 ? -1 : total;
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Saves the cache as an index that LoadFromFile can read back on the next run
+     * entries loaded from an earlier index that were not seen in this run are kept while their file still exists
+     * each line is "algorithm:HEX:size:mtime:fileKey:chunkSize:chunkCount:canonicalPath"
+     * so entries of several algorithms can share one index, lines of other algorithms are written back as loaded
+     */
     public void DumpToFile(Path path) throws IOException {
-        BufferedWriter bw = Files.newBufferedWriter(path);
-        for(String key : FilesHashed.keySet()){
-            byte[] hash = FilesHashed.get(key);
-            String hexHash = DeltaUtil.ByteToHexString(hash) + ":" + key ;
-            bw.write(hexHash);
+        try(BufferedWriter bw = Files.newBufferedWriter(path)){
+            bw.write(INDEX_HEADER);
             bw.newLine();
-            bw.flush();
+            for(String key : FilesHashed.keySet())
+                WriteIndexLine(bw, key, FilesHashed.get(key));
+            for(String key : IndexedHashes.keySet()){
+                if(FilesHashed.containsKey(key) || !Files.exists(Path.of(KeyPath(key))))
+                    continue;
+                WriteIndexLine(bw, key, IndexedHashes.get(key));
+            }
+            synchronized (OtherIndexLines){
+                for (String line : OtherIndexLines) {
+                    bw.write(line);
+                    bw.newLine();
+                }
+            }
         }
-        bw.close();
     }
 
+    /**
+     * Loads the entries of this algorithm from an index saved by DumpToFile, loaded entries are only
+     * used once the size, modification time and file key of the file on disk match the entry
+     * loading again replaces the kept lines of other algorithms
+     */
     public void LoadFromFile(Path path) throws IOException {
-        BufferedReader br = Files.newBufferedReader(path);
-        String line;
-        do{
-            line = br.readLine();
-            if(line != null){
-                int n = line.indexOf(":");
+        OtherIndexLines.clear();
+        ReadIndex(path, (line, parts) -> {
+            if(!parts[0].equals(Algorithm)){
+                OtherIndexLines.add(line);
+                return;
+            }
+            IndexedHashes.put(parts[5] + ":" + parts[6] + ":" + parts[7], IndexEntry(parts));
+            if(!parts[5].equals("FULL"))
+                FolderKeyPrefixes.add(parts[5] + ":" + parts[6]);
+        });
+    }
+
+    /**
+     * Reads only the entries of the algorithm at or under the given canonical path out of an index saved by DumpToFile
+     * the index is read through once, nothing else of it is kept
+     * @return the entries keyed "chunkSize:chunkCount:canonicalPath"
+     */
+    static HashMap<String, DeltaHashEntry> LoadSubtree(Path path, String algorithm, String root) throws IOException {
+        HashMap<String, DeltaHashEntry> entries = new HashMap<>();
+        String under = root.endsWith(File.separator) ? root : root + File.separator;
+        ReadEntries(path, algorithm, (key, entry) -> {
+            String entryPath = KeyPath(key);
+            if(entryPath.equals(root) || entryPath.startsWith(under))
+                entries.put(key, entry);
+        });
+        return entries;
+    }
 
+    /**
+     * Gives every entry of the algorithm in an index saved by DumpToFile as it is read, none of them are kept
+     * @param consumer takes the key "chunkSize:chunkCount:canonicalPath" and the entry
+     */
+    static void ReadEntries(Path path, String algorithm, BiConsumer<String, DeltaHashEntry> consumer) throws IOException {
+        ReadIndex(path, (line, parts) -> {
+            if(parts[0].equals(algorithm))
+                consumer.accept(parts[5] + ":" + parts[6] + ":" + parts[7], IndexEntry(parts));
+        });
+    }
+
+    private interface IndexLineConsumer {
+        void Accept(String line, String[] parts);
+    }
+
+    // gives every entry line of an index with its 8 parts, lines of a version 1 index are given the algorithm of its header
+    private static void ReadIndex(Path path, IndexLineConsumer consumer) throws IOException {
+        try(BufferedReader br = Files.newBufferedReader(path)){
+            String line = br.readLine();
+            // version 1 indexes hold a single algorithm named in the header
+            String fileAlgorithm = null;
+            if(line != null && line.startsWith(INDEX_HEADER_V1))
+                fileAlgorithm = line.substring(INDEX_HEADER_V1.length());
+            else if(line == null || !line.equals(INDEX_HEADER))
+                throw new IOException("Not a Delta index file " + path);
+            while ((line = br.readLine()) != null){
+                if(line.isEmpty())
+                    continue;
+                if(fileAlgorithm != null)
+                    line = fileAlgorithm + ":" + line;
+                // the canonical path may hold ':' so it is kept whole as the last part
+                String[] parts = line.split(":", 8);
+                if(parts.length != 8)
+                    throw new IOException("Malformed index line " + line);
+                consumer.Accept(line, parts);
             }
-        }while(line != null);
-        br.close();
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed index file " + path, e);
+        }
+    }
+
+    private static DeltaHashEntry IndexEntry(String[] parts){
+        return new DeltaHashEntry(DeltaUtil.HexStringToByte(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts[4]);
+    }
+
+    private void WriteIndexLine(BufferedWriter bw, String key, DeltaHashEntry entry) throws IOException {
+        bw.write(Algorithm + ":" + DeltaUtil.ByteToHexString(entry.getHash()) + ":" + entry.getSize() + ":" + entry.getModifiedTime() + ":" + entry.getFileKey() + ":" + key);
+        bw.newLine();
+    }
+
+    // canonical path out of a "chunkSize:chunkCount:canonicalPath" key
+    static String KeyPath(String key){
+        int n = key.indexOf(':');
+        return key.substring(key.indexOf(':', n + 1) + 1);
     }
 
     public void DumpToFileSorted(Path dataFilePath, Path duplicated, long min_size) throws IOException {
+        DumpToFileSorted(dataFilePath, duplicated, min_size, null);
+    }
+
+    /**
+     * @param verifier compares the files of every duplicate set byte for byte before they are written as deletable,
+     *                 folder sets are compared file by file under the same relative paths,
+     *                 null to trust the hashes, folder sets are then reported without being written as deletable
+     */
+    public void DumpToFileSorted(Path dataFilePath, Path duplicated, long min_size, DeltaDuplicateVerifier verifier) throws IOException {
         BufferedWriter bw = Files.newBufferedWriter(dataFilePath);
         BufferedWriter bwd = Files.newBufferedWriter(duplicated);
         ArrayList<String> hashes = new ArrayList<>();
         for(String key : FilesHashed.keySet()){
-            byte[] hash = FilesHashed.get(key);
+            byte[] hash = FilesHashed.get(key).getHash();
             String hexHash = DeltaUtil.ByteToHexString(hash) + ":" + key ;
             hashes.add(hexHash);
         }
@@ -222,16 +721,17 @@ public class DeltaHash {
             if(GetHash(hashes.get(i)).equals(GetHash(hashes.get(i - 1)))){
                 String hash = GetHash(hashes.get(i));
 
-                long file_size = Files.size(Path.of(GetPaths(hashes.get(i - 1))));
-                boolean isDir = Files.isDirectory(Path.of(GetPaths(hashes.get(i - 1))));
+                // size and type come from the cache entry, the duplicates are not looked up on disk again
+                DeltaHashEntry entry = FilesHashed.get(GetKey(hashes.get(i - 1)));
+                boolean isDir = entry.isDirectory();
+                long file_size = isDir ? 0 : entry.getSize();
                 if(file_size < min_size &&  !isDir )
                     continue;
-                String file_size_string = "DIR";
-                if(!isDir)
-                    file_size_string = padLeftZeros(file_size + "", 15) + "#" + DeltaUtil.GetHumanReadableSize(file_size);
-                file_size_string += " " + hash.substring(0,6);
+                String file_size_string = DuplicateSizeString(hash, file_size, isDir);
 
-                DeltaDuplicateSet dds = new DeltaDuplicateSet(file_size_string + " " + hash);
+                DeltaDuplicateSet dds = new DeltaDuplicateSet(file_size_string + " " + hash, isDir ? -1 : file_size);
+                // hard links to one inode only take its size once
+                HashSet<String> inodes = new HashSet<>();
                 while((i < hashes.size()) && GetHash(hashes.get(i)).equals(GetHash(hashes.get(i - 1)))){
                     duplicates.add(file_size_string + " " + GetPaths(hashes.get(i - 1)));
                     dds.addHash(file_size_string + " " + GetPaths(hashes.get(i - 1)));
@@ -239,10 +739,12 @@ public class DeltaHash {
                         duplicateFolders.add(GetPaths(hashes.get(i - 1)));
                     duplicateParentFolders.add(GetParentPath(hashes.get(i - 1)));
 
+                    inodes.add(InodeOf(hashes.get(i - 1)));
                     i++;
-                    size_saved += file_size;
                     number_of_duplicates++;
                 }
+                inodes.add(InodeOf(hashes.get(i - 1)));
+                size_saved += (inodes.size() - 1) * file_size;
 
                 dds.addHash(file_size_string + " " + GetPaths(hashes.get(i - 1)));
                 duplicates.add(file_size_string + " " + GetPaths(hashes.get(i - 1)));
@@ -271,41 +773,8 @@ public class DeltaHash {
 //        }
         Collections.sort(duplicateSets);
         BufferedWriter batADbw = Files.newBufferedWriter(Path.of("AutoDelete.bat"));
-        for(DeltaDuplicateSet dds : duplicateSets){
-            boolean isDir = false;
-            ArrayList<String> ddsHashes = dds.getFile_Hashes();
-            ArrayList<String> pathDelBat = new ArrayList<>();
-
-            if(ddsHashes.size() <= 1)
-                continue;
-
-            for(String h : ddsHashes){
-                h = RemoveFileSize(h);
-                isDir = h.substring(0,3).equalsIgnoreCase("DIR");
-                bwd.write(h);
-                bwd.newLine();
-                h = h.substring(h.indexOf(" ")+ 1);
-                h = h.substring(h.indexOf(" ") + 1);
-
-                pathDelBat.add(h);
-            }
-            bwd.newLine();
-
-            String cmd = isDir ? "RMDIR" : "DEL";
-            String cmdEnd = isDir ? " /s /q" : "";
-            String org = pathDelBat.remove(0);
-            for(String s : pathDelBat){
-                bwd.write("ECHO orginal is located at " + org + " > \"" + s + "\".txt\n" );
-                bwd.write(cmd + " \"" + s + "\"" + cmdEnd + "\n");
-
-
-                batADbw.write("ECHO orginal is located at " + org + " > \"" + s + "\".txt\n" );
-                batADbw.write(cmd + " \"" + s + "\"" + cmdEnd + "\n");
-            }
-            bwd.newLine();
-            bwd.newLine();
-
-        }
+        for(DeltaDuplicateSet dds : duplicateSets)
+            WriteVerifiedSet(dds, verifier, bwd, batADbw);
 
 
         batADbw.flush();
@@ -313,28 +782,199 @@ public class DeltaHash {
 
 
         System.out.println(" Duplicate files found " + number_of_duplicates + " using " + DeltaUtil.GetHumanReadableSize(size_saved) + " extra data");
+        if(verifier != null)
+            System.out.println(verifier.Report());
         bw.flush();
         bw.close();
         bwd.flush();
         bwd.close();
     }
 
-    public String FolderRelation(String PathA,String PathB){
+    /**
+     * Same output as DumpToFileSorted but sorts through DeltaExternalSorter so the sort and the duplicate sets stay bounded
+     * the duplicate sets are written as they are found during the merge, ordered by hash instead of by size
+     * the sorted lines carry the size and file key, the merge does not look anything up in FilesHashed
+     * this sorts the entries kept in FilesHashed, which holds every entry of the run, to keep them out of memory
+     * spill them with SpillTo while hashing and dump them with the sorter instead
+     * @param runLines number of lines sorted in memory before a run is spilled next to the data file
+     */
+    public void DumpToFileStreaming(Path dataFilePath, Path duplicated, long min_size, int runLines) throws IOException {
+        DumpToFileStreaming(dataFilePath, duplicated, min_size, runLines, null);
+    }
+
+    /**
+     * @param verifier same as DumpToFileSorted
+     */
+    public void DumpToFileStreaming(Path dataFilePath, Path duplicated, long min_size, int runLines, DeltaDuplicateVerifier verifier) throws IOException {
+        try(DeltaExternalSorter sorter = new DeltaExternalSorter(dataFilePath.toAbsolutePath().getParent(), runLines)){
+            for(Map.Entry<String, DeltaHashEntry> e : FilesHashed.entrySet())
+                sorter.Add(SortedLine(e.getKey(), e.getValue()));
+            DumpToFileStreaming(dataFilePath, duplicated, min_size, sorter, verifier);
+        }
+    }
+
+    /**
+     * Same as above for the entries spilled into the sorter by SpillTo, the sorter is finished and read here and closed by the caller
+     */
+    public void DumpToFileStreaming(Path dataFilePath, Path duplicated, long min_size, DeltaExternalSorter sorter, DeltaDuplicateVerifier verifier) throws IOException {
+        int number_of_duplicates = 0;
+        long size_saved = 0;
+        try(BufferedWriter bw = Files.newBufferedWriter(dataFilePath);
+            BufferedWriter bwd = Files.newBufferedWriter(duplicated);
+            BufferedWriter batADbw = Files.newBufferedWriter(Path.of("AutoDelete.bat"))){
+            sorter.Finish();
+
+            // only the lines of the current hash are held in memory
+            ArrayList<String> group = new ArrayList<>();
+            String line;
+            String previous = null;
+            do{
+                line = sorter.Next();
+                // a path hashed twice in a run is spilled twice, the copies sort next to each other
+                if(line != null && previous != null && SortedHashKey(line).equals(previous))
+                    continue;
+                if(line != null){
+                    previous = SortedHashKey(line);
+                    bw.write(SortedHashKey(line));
+                    bw.newLine();
+                }
+                if(!group.isEmpty() && (line == null || !GetHash(line).equals(GetHash(group.get(0))))){
+                    if(group.size() > 1){
+                        String hash = GetHash(group.get(0));
+                        long size = Long.parseLong(SortedField(group.get(0), 1));
+                        boolean isDir = size < 0;
+                        long file_size = isDir ? 0 : size;
+                        if(file_size >= min_size || isDir){
+                            String file_size_string = DuplicateSizeString(hash, file_size, isDir);
+                            DeltaDuplicateSet dds = new DeltaDuplicateSet(file_size_string + " " + hash, isDir ? -1 : file_size);
+                            for (String g : group)
+                                dds.addHash(file_size_string + " " + GetPaths(SortedHashKey(g)));
+                            WriteVerifiedSet(dds, verifier, bwd, batADbw);
+                            HashSet<String> inodes = new HashSet<>();
+                            for (String g : group){
+                                String fileKey = SortedField(g, 0);
+                                inodes.add(fileKey.equals("-") ? GetPaths(SortedHashKey(g)) : fileKey);
+                            }
+                            number_of_duplicates += group.size();
+                            size_saved += (inodes.size() - 1) * file_size;
+                        }
+                    }
+                    group.clear();
+                }
+                if(line != null)
+                    group.add(line);
+            }while(line != null);
+        }
+        System.out.println(" Duplicate files found " + number_of_duplicates + " using " + DeltaUtil.GetHumanReadableSize(size_saved) + " extra data");
+        if(verifier != null)
+            System.out.println(verifier.Report());
+    }
+
+    private static String SortedLine(String key, DeltaHashEntry entry){
+        return DeltaUtil.ByteToHexString(entry.getHash()) + ":" + key + "\t" + entry.getSize() + "\t" + entry.getFileKey();
+    }
+
+    // "HEX:key" out of a sorted "HEX:key\tsize\tfileKey" line, the tab sorts before any path character so the order is that of "HEX:key"
+    private static String SortedHashKey(String line){
+        return line.substring(0, line.lastIndexOf('\t', line.lastIndexOf('\t') - 1));
+    }
+
+    // fields after the key of a sorted line counted from the end, 0 is the file key and 1 the size
+    private static String SortedField(String line, int fromEnd){
+        int end = line.length();
+        for (int i = 0; i < fromEnd; i++)
+            end = line.lastIndexOf('\t', end - 1);
+        return line.substring(line.lastIndexOf('\t', end - 1) + 1, end);
+    }
+
+    private String DuplicateSizeString(String hash, long file_size, boolean isDir){
+        String file_size_string = "DIR";
+        if(!isDir)
+            file_size_string = padLeftZeros(file_size + "", 15) + "#" + DeltaUtil.GetHumanReadableSize(file_size);
+        return file_size_string + " " + hash.substring(0,6);
+    }
+
+    // writes the set, or with a verifier only the parts of a file set that are byte identical
+    // folder sets are verified member by member, without a verifier they are reported but never written as deletable
+    private void WriteVerifiedSet(DeltaDuplicateSet dds, DeltaDuplicateVerifier verifier, BufferedWriter bwd, BufferedWriter batADbw) throws IOException {
+        if(verifier == null){
+            WriteDuplicateSet(dds, bwd, dds.getSize() < 0 ? null : batADbw);
+            return;
+        }
+        ArrayList<Path> paths = new ArrayList<>();
+        for(String h : dds.getFile_Hashes())
+            paths.add(Path.of(DuplicatePath(h)));
+        List<DeltaDuplicateSet> verified = dds.getSize() < 0 ? verifier.VerifyFolders(dds, paths) : verifier.Verify(dds, paths);
+        for(DeltaDuplicateSet v : verified)
+            WriteDuplicateSet(v, bwd, batADbw);
+    }
+
+    // path out of a "size#readable hash path" duplicate set entry
+    private String DuplicatePath(String h){
+        h = RemoveFileSize(h);
+        h = h.substring(h.indexOf(" ")+ 1);
+        return h.substring(h.indexOf(" ") + 1);
+    }
+
+    // batADbw null writes the set without any delete command
+    private void WriteDuplicateSet(DeltaDuplicateSet dds, BufferedWriter bwd, BufferedWriter batADbw) throws IOException {
+        boolean isDir = false;
+        ArrayList<String> ddsHashes = dds.getFile_Hashes();
+        ArrayList<String> pathDelBat = new ArrayList<>();
+
+        if(ddsHashes.size() <= 1)
+            return;
+
+        for(String h : ddsHashes){
+            h = RemoveFileSize(h);
+            isDir = h.substring(0,3).equalsIgnoreCase("DIR");
+            bwd.write(h);
+            bwd.newLine();
+            h = h.substring(h.indexOf(" ")+ 1);
+            h = h.substring(h.indexOf(" ") + 1);
+
+            pathDelBat.add(h);
+        }
+        bwd.newLine();
+        if(batADbw == null){
+            bwd.write("REM not verified byte for byte, nothing is deleted\n");
+            bwd.newLine();
+            return;
+        }
+
+        String cmd = isDir ? "RMDIR" : "DEL";
+        String cmdEnd = isDir ? " /s /q" : "";
+        String org = pathDelBat.remove(0);
+        for(String s : pathDelBat){
+            bwd.write("ECHO orginal is located at " + org + " > \"" + s + "\".txt\n" );
+            bwd.write(cmd + " \"" + s + "\"" + cmdEnd + "\n");
+
+
+            batADbw.write("ECHO orginal is located at " + org + " > \"" + s + "\".txt\n" );
+            batADbw.write(cmd + " \"" + s + "\"" + cmdEnd + "\n");
+        }
+        bwd.newLine();
+        bwd.newLine();
+    }
+
+    public String FolderRelation(String PathA,String PathB) throws IOException, NoSuchAlgorithmException {
 
         /*
-         * - UNRELATED
-         * --  if both directories only have one file in common
+         * - UR UNRELATED
+         * --  if both directories have no file in common
          *
-         * - MULTIPLE MATCHING
+         * - MM MULTIPLE MATCHING
          * -- having multiple files matching over the directories but each directory has other non related files
          *
-         * - SubSet A to B
+         * - AB SubSet A to B
          * -- B has all the files of A
          *
-         * - SubSet B to A
+         * - BA SubSet B to A
          * -- A has all the files of B
          *
-         * - folders matches
+         * - FM folders matches
+         *
+         * the relation is taken from a DeltaTreeDiff of the two folders, by content with the chunks used by the command line
          */
         //boolean isFileA =      Files.isRegularFile(Path.of(PathA));
         boolean isDirA =       Files.isDirectory(Path.of(PathA));
@@ -345,7 +985,21 @@ public class DeltaHash {
             return "FF"; //files
         }
 
-        return "UR";  // unrelated
+        DeltaTreeDiff diff = new DeltaTreeDiff(
+                DeltaTreeDiff.Snapshot.Of(this, Path.of(PathA), 50, 10),
+                DeltaTreeDiff.Snapshot.Of(this, Path.of(PathB), 50, 10));
+        switch (diff.getRelation()){
+            case IDENTICAL:
+                return "FM";
+            case SUBSET:
+                return "AB";
+            case SUPERSET:
+                return "BA";
+            case OVERLAPPING:
+                return "MM";
+            default:
+                return "UR";  // unrelated
+        }
     }
 
     private String RemoveFileSize(String s){
@@ -359,8 +1013,19 @@ public class DeltaHash {
         return sb.substring(s.length()) + s;
     }
 
+    // file key of the entry of a "HEX:key" line, the path when the file system has no file keys
+    private String InodeOf(String hashKey){
+        String fileKey = FilesHashed.get(GetKey(hashKey)).getFileKey();
+        return fileKey.equals("-") ? GetPaths(hashKey) : fileKey;
+    }
+
+    // "chunkSize:chunkCount:canonicalPath" key out of a "HEX:key" line
+    private String GetKey(String hashKey) {
+        return hashKey.substring(hashKey.indexOf(':') + 1);
+    }
+
     private String GetPaths(String hashKey) {
-        String path = hashKey.substring(65);
+        String path = hashKey.substring(hashKey.indexOf(':') + 1);
         for (int i = 0; i < 2; i++) {
             int n = path.indexOf(':');
             path = path.substring(n + 1);
@@ -370,11 +1035,11 @@ public class DeltaHash {
 
     private String GetParentPath(String hashKey) {
         String path = GetPaths(hashKey);
-        int n = path.lastIndexOf("\\");
+        int n = Math.max(path.lastIndexOf('\\'), path.lastIndexOf('/'));
         return path.substring(0,n);
     }
 
     public static String GetHash(String hashKey){
-        return hashKey.substring(0,64);
+        return hashKey.substring(0,hashKey.indexOf(':'));
     }
 }
@@ -0,0 +1,83 @@
+package com.irfanAK.delta;
+
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A hash in the DeltaHash cache along with the attributes of the file or folder at the time it was hashed
+ * the attributes are compared on a rescan, a matching entry is served without opening the file
+ */
+public class DeltaHashEntry {
+
+    private final byte[] Hash;
+    // -1 for folders, the size the file system gives a folder says nothing about its content
+    private final long Size;
+    private final long ModifiedTime;
+    // file key (inode on unix) as a string, "-" when the file system has none
+    private final String FileKey;
+    // true when this entry was served from the cache instead of being hashed
+    private final boolean Reused;
+
+    public DeltaHashEntry(byte[] hash, long size, long modifiedTime, String fileKey){
+        this(hash, size, modifiedTime, fileKey, false);
+    }
+
+    public DeltaHashEntry(byte[] hash, BasicFileAttributes attrs){
+        this(hash, attrs.isDirectory() ? -1 : attrs.size(), attrs.lastModifiedTime().toMillis(), FileKeyString(attrs.fileKey()), false);
+    }
+
+    private DeltaHashEntry(byte[] hash, long size, long modifiedTime, String fileKey, boolean reused){
+        Hash = hash;
+        Size = size;
+        ModifiedTime = modifiedTime;
+        FileKey = fileKey;
+        Reused = reused;
+    }
+
+    /**
+     * @return true if the file or folder still has the attributes it was hashed with
+     */
+    public boolean Matches(BasicFileAttributes attrs){
+        boolean sizeMatches = Size < 0 ? attrs.isDirectory() : Size == attrs.size();
+        return sizeMatches
+                && ModifiedTime == attrs.lastModifiedTime().toMillis()
+                && FileKey.equals(FileKeyString(attrs.fileKey()));
+    }
+
+    /**
+     * @return copy of this entry flagged as served from the cache
+     */
+    public DeltaHashEntry AsReused(){
+        return new DeltaHashEntry(Hash, Size, ModifiedTime, FileKey, true);
+    }
+
+    public byte[] getHash(){
+        return Hash;
+    }
+
+    public long getSize(){
+        return Size;
+    }
+
+    public long getModifiedTime(){
+        return ModifiedTime;
+    }
+
+    public String getFileKey(){
+        return FileKey;
+    }
+
+    public boolean isDirectory(){
+        return Size < 0;
+    }
+
+    public boolean isReused(){
+        return Reused;
+    }
+
+    // the key is stored in the ':' separated index lines so it can not hold a ':'
+    public static String FileKeyString(Object fileKey){
+        if(fileKey == null)
+            return "-";
+        return fileKey.toString().replace(':', ';');
+    }
+}
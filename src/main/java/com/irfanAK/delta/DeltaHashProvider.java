@@ -0,0 +1,79 @@
+package com.irfanAK.delta;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Source of the digests DeltaHash hashes files and folders with
+ * either a JCA MessageDigest such as SHA-256, or the fast non-cryptographic XXH64
+ * a non-cryptographic provider is only fit for finding candidates, matches have to be confirmed with a cryptographic one
+ */
+public interface DeltaHashProvider {
+
+    String getName();
+
+    boolean isCryptographic();
+
+    int getDigestLength() throws NoSuchAlgorithmException;
+
+    MessageDigest NewDigest() throws NoSuchAlgorithmException;
+
+    /**
+     * @param name "XXH64" or the name of a MessageDigest algorithm, a MessageDigest name is only checked when first used
+     */
+    static DeltaHashProvider Of(String name){
+        if(name.equalsIgnoreCase(DeltaXXHash64.NAME))
+            return new XXHash64();
+        return new Jca(name);
+    }
+
+    class Jca implements DeltaHashProvider {
+        private final String Algorithm;
+
+        public Jca(String algorithm){
+            Algorithm = algorithm;
+        }
+
+        @Override
+        public String getName() {
+            return Algorithm;
+        }
+
+        @Override
+        public boolean isCryptographic() {
+            return true;
+        }
+
+        @Override
+        public int getDigestLength() throws NoSuchAlgorithmException {
+            return NewDigest().getDigestLength();
+        }
+
+        @Override
+        public MessageDigest NewDigest() throws NoSuchAlgorithmException {
+            return MessageDigest.getInstance(Algorithm);
+        }
+    }
+
+    class XXHash64 implements DeltaHashProvider {
+        @Override
+        public String getName() {
+            return DeltaXXHash64.NAME;
+        }
+
+        @Override
+        public boolean isCryptographic() {
+            return false;
+        }
+
+        @Override
+        public int getDigestLength() {
+            return 8;
+        }
+
+        @Override
+        public MessageDigest NewDigest() {
+            return new DeltaXXHash64();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.irfanAK.delta;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fork-join task hashing a single file or folder with the given DeltaHash
+ * folders fork one task per child from within DeltaHash.FolderHash so idle threads can steal them
+ * checked exceptions are wrapped as UncheckedIOException / IllegalStateException and unwrapped by DeltaHash
+ */
+public class DeltaHashingTask extends RecursiveTask<DeltaHashEntry> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DeltaHash dh;
+    private final Path path;
+    // already scanned entry, null when only the path is known
+    private final DeltaFileEntry file;
+    private final int chunkSize;
+    private final int chunkCount;
+
+    public DeltaHashingTask(DeltaHash dh, Path path, int chunkSize, int chunkCount){
+        this.dh = dh;
+        this.path = path;
+        this.file = null;
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+    }
+
+    public DeltaHashingTask(DeltaHash dh, DeltaFileEntry file, int chunkSize, int chunkCount){
+        this.dh = dh;
+        this.path = file.getPath();
+        this.file = file;
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+    }
+
+    @Override
+    protected DeltaHashEntry compute() {
+        try {
+            if(file != null)
+                return dh.HashEntry(file, chunkSize, chunkCount);
+            return dh.HashEntry(path, chunkSize, chunkCount);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.irfanAK.delta;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Limits how many files are read at once from each storage device
+ * spinning disks get a small limit so parallel hashing does not make them seek between files,
+ * solid state and unknown stores get a deep limit so they are kept busy
+ * reads waiting for a permit inside the hashing pool block through ForkJoinPool.managedBlock,
+ * so the pool can start other threads for files on stores that still have permits
+ * permits are handed out by the store, never taken by a thread passing by, the waiting reads of a spinning disk
+ * are served in elevator order of their inode, or path without file keys, from where the disk last read
+ * the other stores serve their waiting reads first come first served
+ */
+public class DeltaIOScheduler {
+
+    private final int RotationalLimit;
+    private final int SolidStateLimit;
+    // keyed by the device of the file key, or the path root on file systems without file keys
+    private final ConcurrentHashMap<String, Store> Stores;
+
+    /**
+     * @param rotationalLimit concurrent reads allowed on a spinning disk
+     * @param solidStateLimit concurrent reads allowed on any other store
+     */
+    public DeltaIOScheduler(int rotationalLimit, int solidStateLimit){
+        if(rotationalLimit < 1)
+            throw new IllegalArgumentException("Rotational Limit must be a positive number. rotationalLimit can not be " + rotationalLimit + ".");
+        if(solidStateLimit < 1)
+            throw new IllegalArgumentException("Solid State Limit must be a positive number. solidStateLimit can not be " + solidStateLimit + ".");
+        RotationalLimit = rotationalLimit;
+        SolidStateLimit = solidStateLimit;
+        Stores = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Waits for a read permit on the store of the given file, the permit must be closed once the file is read
+     */
+    public Permit Acquire(DeltaFileEntry file) throws IOException {
+        Store store = GetStore(file);
+        Waiter waiter = store.Enqueue(store.rotational ? OrderKey(file) : "");
+        if(waiter == null)
+            return store.permit;
+        try {
+            ForkJoinPool.managedBlock(waiter);
+        } catch (InterruptedException e) {
+            if(!store.Cancel(waiter))
+                store.Release();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to read " + file.getPath());
+        }
+        return store.permit;
+    }
+
+    private Store GetStore(DeltaFileEntry file) throws IOException {
+        String key = StoreKey(file);
+        Store store = Stores.get(key);
+        if(store != null)
+            return store;
+        FileStore fileStore = Files.getFileStore(file.getPath());
+        boolean rotational = IsRotational(fileStore);
+        int limit = rotational ? RotationalLimit : SolidStateLimit;
+        store = new Store(limit, rotational);
+        Store existing = Stores.putIfAbsent(key, store);
+        if(existing != null)
+            return existing;
+        System.out.println(" Store " + fileStore.name() + " " + (rotational ? "rotational" : "solid state") + ", " + limit + " concurrent reads");
+        return store;
+    }
+
+    // the "dev=" part of a unix file key, so the store is found without asking the file system for every file
+    static String StoreKey(DeltaFileEntry file){
+        Object fileKey = file.getAttributes().fileKey();
+        if(fileKey != null){
+            String s = fileKey.toString();
+            int n = s.indexOf("dev=");
+            if(n >= 0){
+                int end = s.indexOf(',', n);
+                return s.substring(n, end < 0 ? s.length() : end);
+            }
+        }
+        Path root = file.getPath().toAbsolutePath().getRoot();
+        return root == null ? "" : root.toString();
+    }
+
+    // the "ino=" part of a unix file key zero padded so it sorts as a number, the canonical path without one
+    static String OrderKey(DeltaFileEntry file){
+        Object fileKey = file.getAttributes().fileKey();
+        if(fileKey != null){
+            String s = fileKey.toString();
+            int n = s.indexOf("ino=");
+            if(n >= 0){
+                int end = s.indexOf(')', n);
+                String inode = s.substring(n + 4, end < 0 ? s.length() : end);
+                return "0".repeat(Math.max(0, 20 - inode.length())) + inode;
+            }
+        }
+        return file.getCanonicalPath();
+    }
+
+    /**
+     * Linux only, reads the rotational flag the kernel keeps for the block device of the store
+     * any other platform or a store without a block device is treated as solid state
+     */
+    private static boolean IsRotational(FileStore fileStore){
+        String name = fileStore.name();
+        if(!name.startsWith("/dev/"))
+            return false;
+        try {
+            // resolves /dev/mapper and /dev/disk links to the kernel name, sda1 -> /sys/class/block/sda1
+            Path device = Path.of(name).toRealPath();
+            Path block = Path.of("/sys/class/block", device.getFileName().toString()).toRealPath();
+            // a partition has no queue of its own, it uses the one of its disk
+            Path rotational = block.resolve("queue/rotational");
+            if(!Files.exists(rotational))
+                rotational = block.getParent().resolve("queue/rotational");
+            return Files.readString(rotational).trim().equals("1");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static class Permit implements AutoCloseable {
+        private final Store store;
+
+        private Permit(Store store){
+            this.store = store;
+        }
+
+        @Override
+        public void close() {
+            store.Release();
+        }
+    }
+
+    private static class Store {
+        private final int limit;
+        private final boolean rotational;
+        private final Permit permit;
+        private final TreeSet<Waiter> waiting;
+        private int active;
+        private long sequence;
+        // key of the last read handed out, the elevator carries on from here
+        private String head;
+
+        private Store(int limit, boolean rotational){
+            this.limit = limit;
+            this.rotational = rotational;
+            this.permit = new Permit(this);
+            this.waiting = new TreeSet<>(Comparator.comparing((Waiter w) -> w.key).thenComparingLong(w -> w.sequence));
+            this.head = "";
+        }
+
+        // null when a permit was free and nobody was waiting, the waiter to block on otherwise
+        private synchronized Waiter Enqueue(String key){
+            if(active < limit && waiting.isEmpty()){
+                active++;
+                head = key;
+                return null;
+            }
+            Waiter waiter = new Waiter(key, sequence++);
+            waiting.add(waiter);
+            return waiter;
+        }
+
+        // the permit goes straight to the next waiter, so a thread arriving now can not take it first
+        private synchronized void Release(){
+            Waiter next = waiting.ceiling(new Waiter(head, -1));
+            if(next == null && !waiting.isEmpty())
+                next = waiting.first();
+            if(next == null){
+                active--;
+                return;
+            }
+            waiting.remove(next);
+            head = next.key;
+            next.Grant();
+        }
+
+        // false when the permit was handed over before the wait could be given up
+        private synchronized boolean Cancel(Waiter waiter){
+            return waiting.remove(waiter);
+        }
+    }
+
+    private static class Waiter implements ForkJoinPool.ManagedBlocker {
+        private final String key;
+        private final long sequence;
+        private boolean granted;
+
+        private Waiter(String key, long sequence){
+            this.key = key;
+            this.sequence = sequence;
+        }
+
+        private synchronized void Grant(){
+            granted = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized boolean block() throws InterruptedException {
+            while (!granted)
+                wait();
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isReleasable() {
+            return granted;
+        }
+    }
+}
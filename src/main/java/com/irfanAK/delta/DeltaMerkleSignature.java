@@ -0,0 +1,309 @@
+package com.irfanAK.delta;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.*;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Signature of a file as a Merkle tree over fixed size blocks, the root is signed with an EC P-256 key pair
+ * the blocks are hashed on several threads, and any byte range is verified by hashing only the blocks holding it
+ * against the signed leaves, which also tells which blocks were corrupted
+ * a leaf is H(0 || block) and a node H(1 || left || right), a node without a right child is carried up as it is
+ * the sidecar keeps the leaves, the levels above them are rebuilt from the leaves when it is verified
+ *
+ * layout (big endian), saved next to the file as "file.sig"
+ * - "DELTASIG" magic, version, algorithm, block size, file length, leaf count, digest length, the leaves
+ * - signature length and the signature over everything before the leaves followed by the root
+ */
+public class DeltaMerkleSignature {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    private static final byte[] MAGIC = "DELTASIG".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final String SIGNATURE_ALGORITHM = "SHA256withECDSA";
+
+    private final String Algorithm;
+    private final int BlockSize;
+    private final long Length;
+    private final byte[][] Leaves;
+    private final byte[] Root;
+    private final byte[] Signature;
+
+    private DeltaMerkleSignature(String algorithm, int blockSize, long length, byte[][] leaves, byte[] signature) throws NoSuchAlgorithmException {
+        Algorithm = algorithm;
+        BlockSize = blockSize;
+        Length = length;
+        Leaves = leaves;
+        Root = Root(leaves, DeltaHashProvider.Of(algorithm));
+        Signature = signature;
+    }
+
+    /**
+     * Hashes the blocks of the file on the given threads and signs the root of their tree
+     * @param blockSize bytes per leaf, the smallest range a corruption is located to
+     */
+    public static DeltaMerkleSignature Sign(Path file, PrivateKey key, DeltaHashProvider provider, int blockSize, int threads) throws IOException, GeneralSecurityException {
+        if(!provider.isCryptographic())
+            throw new IllegalArgumentException("Algorithm must be cryptographic to sign. algorithm can not be " + provider.getName() + ".");
+        if(blockSize < 1)
+            throw new IllegalArgumentException("Block Size must be a positive number. blockSize can not be " + blockSize + ".");
+        long length = DeltaFileEntry.Of(file).getSize();
+        long leafCount = Math.max(1, (length + blockSize - 1) / blockSize);
+        if(leafCount > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Block Size must leave fewer than 2^31 blocks. blockSize can not be " + blockSize + ".");
+        byte[][] leaves = HashBlocks(file, provider, blockSize, length, 0, (int) leafCount - 1, threads);
+        DeltaMerkleSignature unsigned = new DeltaMerkleSignature(provider.getName(), blockSize, length, leaves, new byte[0]);
+        java.security.Signature signer = java.security.Signature.getInstance(SIGNATURE_ALGORITHM);
+        signer.initSign(key);
+        signer.update(unsigned.Signed());
+        return new DeltaMerkleSignature(provider.getName(), blockSize, length, leaves, signer.sign());
+    }
+
+    /**
+     * @return whether the root of the leaves is the one signed by the key, the leaves can be trusted only then
+     */
+    public boolean VerifySignature(PublicKey key) throws IOException, GeneralSecurityException {
+        java.security.Signature verifier = java.security.Signature.getInstance(SIGNATURE_ALGORITHM);
+        verifier.initVerify(key);
+        verifier.update(Signed());
+        return verifier.verify(Signature);
+    }
+
+    /**
+     * Hashes the blocks holding the bytes from offset for length and compares them with the leaves
+     * the signature is not checked here, call VerifySignature first
+     * @return numbers of the blocks that differ from the signed ones, empty when the range is intact
+     */
+    public List<Long> VerifyRange(Path file, long offset, long length, int threads) throws IOException, NoSuchAlgorithmException {
+        if(offset < 0)
+            throw new IllegalArgumentException("Offset must be a positive number. offset can not be " + offset + ".");
+        if(length < 0)
+            throw new IllegalArgumentException("Length must be a positive number. length can not be " + length + ".");
+        long fileLength = DeltaFileEntry.Of(file).getSize();
+        long end = Math.min(Length, offset + Math.min(length, Long.MAX_VALUE - offset));
+        int first = (int) Math.min(Leaves.length - 1, offset / BlockSize);
+        int last = end <= offset ? first : (int) ((end - 1) / BlockSize);
+        // blocks are hashed as far as the signed length, a file grown past it fails on its last block below
+        byte[][] hashes = HashBlocks(file, DeltaHashProvider.Of(Algorithm), BlockSize, Math.min(fileLength, Length), first, last, threads);
+        ArrayList<Long> corrupted = new ArrayList<>();
+        for (int b = first; b <= last; b++)
+            if(!MessageDigest.isEqual(hashes[b - first], Leaves[b]))
+                corrupted.add((long) b);
+        if(last == Leaves.length - 1 && fileLength != Length && !corrupted.contains((long) last))
+            corrupted.add((long) last);
+        return corrupted;
+    }
+
+    // leaves first to last, each block read through the same thread local buffer FileChunkHash reads through
+    private static byte[][] HashBlocks(Path file, DeltaHashProvider provider, int blockSize, long length, int first, int last, int threads) throws IOException, NoSuchAlgorithmException {
+        if(threads < 1)
+            throw new IllegalArgumentException("Threads must be a positive number. threads can not be " + threads + ".");
+        // fails here instead of in the workers when the algorithm is missing
+        provider.NewDigest();
+        byte[][] hashes = new byte[last - first + 1][];
+        AtomicLong next = new AtomicLong(first);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread[] workers = new Thread[Math.min(threads, hashes.length)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(() -> {
+                try(FileChannel in = FileChannel.open(file, StandardOpenOption.READ)){
+                    MessageDigest md = provider.NewDigest();
+                    for (long b = next.getAndIncrement(); b <= last && failure.get() == null; b = next.getAndIncrement()) {
+                        int size = (int) Math.max(0, Math.min(blockSize, length - b * blockSize));
+                        ByteBuffer bb = DeltaHash.ReadBuffer(size);
+                        in.position(b * blockSize);
+                        DeltaHash.ReadFully(in, bb);
+                        bb.flip();
+                        md.update((byte) 0);
+                        md.update(bb);
+                        hashes[(int) (b - first)] = md.digest();
+                    }
+                } catch (IOException | NoSuchAlgorithmException | RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "delta-merkle-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        try {
+            for (Thread t : workers)
+                t.join();
+        } catch (InterruptedException e) {
+            for (Thread t : workers)
+                t.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the block hashes");
+        }
+
+        Exception e = failure.get();
+        if(e instanceof IOException)
+            throw (IOException) e;
+        if(e instanceof NoSuchAlgorithmException)
+            throw (NoSuchAlgorithmException) e;
+        if(e != null)
+            throw (RuntimeException) e;
+        return hashes;
+    }
+
+    private static byte[] Root(byte[][] leaves, DeltaHashProvider provider) throws NoSuchAlgorithmException {
+        MessageDigest md = provider.NewDigest();
+        byte[][] level = leaves;
+        while (level.length > 1){
+            byte[][] up = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < up.length; i++) {
+                if(2 * i + 1 == level.length){
+                    up[i] = level[2 * i];
+                    continue;
+                }
+                md.update((byte) 1);
+                md.update(level[2 * i]);
+                md.update(level[2 * i + 1]);
+                up[i] = md.digest();
+            }
+            level = up;
+        }
+        return level[0];
+    }
+
+    // the header as written then the root
+    private byte[] Signed() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        WriteHeader(out);
+        out.write(Root);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void WriteHeader(DataOutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(Algorithm);
+        out.writeInt(BlockSize);
+        out.writeLong(Length);
+        out.writeInt(Leaves.length);
+        out.writeInt(Root.length);
+    }
+
+    /**
+     * @return the sidecar path of the given file
+     */
+    public static Path SidecarOf(Path file){
+        return file.resolveSibling(file.getFileName() + ".sig");
+    }
+
+    public void Write(Path sidecar) throws IOException {
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(sidecar)))){
+            WriteHeader(out);
+            for (byte[] leaf : Leaves)
+                out.write(leaf);
+            out.writeInt(Signature.length);
+            out.write(Signature);
+        }
+    }
+
+    public static DeltaMerkleSignature Read(Path sidecar) throws IOException, NoSuchAlgorithmException {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(sidecar)))){
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if(!Arrays.equals(magic, MAGIC))
+                throw new IOException("Not a Delta signature " + sidecar);
+            int version = in.readInt();
+            if(version != VERSION)
+                throw new IOException("Unsupported signature version " + version);
+            String algorithm = in.readUTF();
+            int blockSize = in.readInt();
+            long length = in.readLong();
+            int leafCount = in.readInt();
+            int digestLength = in.readInt();
+            if(blockSize < 1 || length < 0 || leafCount != Math.max(1, (length + blockSize - 1) / blockSize)
+                    || digestLength != DeltaHashProvider.Of(algorithm).getDigestLength())
+                throw new IOException("Malformed signature header " + sidecar);
+            byte[][] leaves = new byte[leafCount][digestLength];
+            for (byte[] leaf : leaves)
+                in.readFully(leaf);
+            int signatureLength = in.readInt();
+            if(signatureLength < 0 || signatureLength > 1024)
+                throw new IOException("Malformed signature " + sidecar);
+            byte[] signature = new byte[signatureLength];
+            in.readFully(signature);
+            return new DeltaMerkleSignature(algorithm, blockSize, length, leaves, signature);
+        } catch (EOFException e) {
+            throw new IOException("Signature is truncated " + sidecar, e);
+        }
+    }
+
+    /**
+     * Writes a new key pair, the private key to the given path as PKCS#8 and the public key next to it as "key.pub"
+     * existing keys are never replaced, the private key is created readable by the owner only where the file system has posix permissions
+     */
+    public static void GenerateKeys(Path privateKey) throws IOException, GeneralSecurityException {
+        Path publicKey = PublicKeyOf(privateKey);
+        if(Files.exists(publicKey, LinkOption.NOFOLLOW_LINKS))
+            throw new FileAlreadyExistsException(publicKey.toString());
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair pair = generator.generateKeyPair();
+        EnumSet<StandardOpenOption> options = EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        FileAttribute<?>[] ownerOnly = privateKey.getFileSystem().supportedFileAttributeViews().contains("posix")
+                ? new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))}
+                : new FileAttribute<?>[0];
+        try(SeekableByteChannel out = Files.newByteChannel(privateKey, options, ownerOnly)){
+            ByteBuffer bb = ByteBuffer.wrap(pair.getPrivate().getEncoded());
+            while (bb.hasRemaining())
+                out.write(bb);
+        }
+        Files.write(publicKey, pair.getPublic().getEncoded(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    public static Path PublicKeyOf(Path privateKey){
+        return privateKey.resolveSibling(privateKey.getFileName() + ".pub");
+    }
+
+    public static PrivateKey ReadPrivateKey(Path path) throws IOException, GeneralSecurityException {
+        return KeyFactory.getInstance("EC").generatePrivate(new PKCS8EncodedKeySpec(Files.readAllBytes(path)));
+    }
+
+    public static PublicKey ReadPublicKey(Path path) throws IOException, GeneralSecurityException {
+        return KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(Files.readAllBytes(path)));
+    }
+
+    public String getAlgorithm(){
+        return Algorithm;
+    }
+
+    public int getBlockSize(){
+        return BlockSize;
+    }
+
+    public long getLength(){
+        return Length;
+    }
+
+    public long getBlockCount(){
+        return Leaves.length;
+    }
+
+    public byte[] getRoot(){
+        return Root;
+    }
+}
@@ -0,0 +1,285 @@
+package com.irfanAK.delta;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters of a scan, shared by every DeltaHash, pipeline and scanner of the process
+ * the hot path only adds to LongAdders, which are striped per thread, so counting costs no contention
+ * the rates, ratios and percentiles are only worked out when read, by the progress line or over JMX
+ * latencies go into histograms of power of two buckets, a percentile is the upper bound of its bucket
+ */
+public class DeltaMetrics implements DeltaMetricsMXBean {
+
+    public enum Stage {
+        STAT,   // listing a folder with the attributes of its entries
+        READ,   // reading a file, summed over its reads
+        DIGEST, // digesting a file, summed over its updates
+        FILE    // hashing a file end to end
+    }
+
+    private static final DeltaMetrics GLOBAL = new DeltaMetrics();
+    private static final String OBJECT_NAME = "com.irfanAK.delta:type=Metrics";
+    private static final int BUCKETS = 64;
+
+    private final LongAdder FilesScanned;
+    private final LongAdder FilesHashed;
+    private final LongAdder FoldersScanned;
+    private final LongAdder BytesRead;
+    private final LongAdder CacheHits;
+    private final LongAdder CacheMisses;
+    private final LongAdder[] StageNanos;
+    private final LongAdder[][] Histograms;
+    private final LongAdder ExpectedFiles;
+    // named gauges read when reported, such as the depth of a queue
+    private final ConcurrentHashMap<String, LongSupplier> Gauges;
+    private final long StartNanos;
+    private volatile String CurrentPath;
+    private ScheduledExecutorService Progress;
+
+    DeltaMetrics(){
+        FilesScanned = new LongAdder();
+        FilesHashed = new LongAdder();
+        FoldersScanned = new LongAdder();
+        BytesRead = new LongAdder();
+        CacheHits = new LongAdder();
+        CacheMisses = new LongAdder();
+        StageNanos = new LongAdder[Stage.values().length];
+        Histograms = new LongAdder[Stage.values().length][BUCKETS];
+        for (int s = 0; s < StageNanos.length; s++) {
+            StageNanos[s] = new LongAdder();
+            for (int b = 0; b < BUCKETS; b++)
+                Histograms[s][b] = new LongAdder();
+        }
+        ExpectedFiles = new LongAdder();
+        Gauges = new ConcurrentHashMap<>();
+        StartNanos = System.nanoTime();
+        CurrentPath = "";
+    }
+
+    /**
+     * @return the metrics of this process
+     */
+    public static DeltaMetrics Get(){
+        return GLOBAL;
+    }
+
+    public void Record(Stage stage, long nanos){
+        StageNanos[stage.ordinal()].add(nanos);
+        Histograms[stage.ordinal()][BUCKETS - Long.numberOfLeadingZeros(Math.max(1, nanos))].increment();
+    }
+
+    /**
+     * A file reached, served from the cache or hashed from disk
+     */
+    public void FileScanned(String path, boolean cached){
+        FilesScanned.increment();
+        (cached ? CacheHits : CacheMisses).increment();
+        if(!cached)
+            FilesHashed.increment();
+        CurrentPath = path;
+    }
+
+    /**
+     * Files hashed ahead by the read pipeline, they are found in the cache once the walk reaches them
+     * so they are moved from the hits they will be counted as to the misses they were
+     */
+    public void Prefetched(long files){
+        CacheHits.add(-files);
+        CacheMisses.add(files);
+        FilesHashed.add(files);
+    }
+
+    public void FolderScanned(){
+        FoldersScanned.increment();
+    }
+
+    public void BytesRead(long bytes){
+        BytesRead.add(bytes);
+    }
+
+    /**
+     * Adds files to the total the ETA is worked out against, called by whatever listed them first
+     */
+    public void Expect(long files){
+        ExpectedFiles.add(files);
+    }
+
+    public void Gauge(String name, LongSupplier gauge){
+        Gauges.put(name, gauge);
+    }
+
+    public void RemoveGauge(String name){
+        Gauges.remove(name);
+    }
+
+    @Override
+    public long getFilesScanned(){
+        return FilesScanned.sum();
+    }
+
+    @Override
+    public long getFilesHashed(){
+        return FilesHashed.sum();
+    }
+
+    @Override
+    public long getFoldersScanned(){
+        return FoldersScanned.sum();
+    }
+
+    @Override
+    public long getBytesRead(){
+        return BytesRead.sum();
+    }
+
+    @Override
+    public double getFilesPerSecond(){
+        return getFilesScanned() / Seconds();
+    }
+
+    @Override
+    public double getBytesPerSecond(){
+        return getBytesRead() / Seconds();
+    }
+
+    @Override
+    public double getCacheHitRatio(){
+        long hits = CacheHits.sum();
+        long total = hits + CacheMisses.sum();
+        // below zero until the walk reaches the prefetched files
+        return total <= 0 ? 0 : Math.max(0, (double) hits / total);
+    }
+
+    @Override
+    public Map<String, Double> getStageSeconds(){
+        LinkedHashMap<String, Double> seconds = new LinkedHashMap<>();
+        for (Stage s : Stage.values())
+            seconds.put(s.name(), StageNanos[s.ordinal()].sum() / 1e9);
+        return seconds;
+    }
+
+    @Override
+    public Map<String, Double> getStageLatencyMicros(){
+        LinkedHashMap<String, Double> latencies = new LinkedHashMap<>();
+        for (Stage s : Stage.values())
+            for (double q : new double[]{0.5, 0.9, 0.99})
+                latencies.put(s.name() + " p" + Math.round(q * 100), Percentile(s, q) / 1e3);
+        return latencies;
+    }
+
+    /**
+     * @return upper bound in nanoseconds of the bucket holding the given quantile, 0 when nothing was recorded
+     */
+    public long Percentile(Stage stage, double quantile){
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            counts[b] = Histograms[stage.ordinal()][b].sum();
+            total += counts[b];
+        }
+        if(total == 0)
+            return 0;
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts[b];
+            if(seen >= rank)
+                return b >= 63 ? Long.MAX_VALUE : 1L << b;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public Map<String, Long> getQueueDepths(){
+        LinkedHashMap<String, Long> depths = new LinkedHashMap<>();
+        for (Map.Entry<String, LongSupplier> e : Gauges.entrySet())
+            depths.put(e.getKey(), e.getValue().getAsLong());
+        return depths;
+    }
+
+    @Override
+    public long getEtaSeconds(){
+        long expected = ExpectedFiles.sum();
+        long scanned = getFilesScanned();
+        if(expected == 0 || scanned == 0)
+            return -1;
+        return (long) (Math.max(0, expected - scanned) / getFilesPerSecond());
+    }
+
+    @Override
+    public String getCurrentPath(){
+        return CurrentPath;
+    }
+
+    @Override
+    public String getProgressLine(){
+        StringBuilder sb = new StringBuilder(" Progress ");
+        sb.append(getFilesScanned()).append(" files ").append(DeltaUtil.GetHumanReadableSize(getBytesRead()));
+        sb.append(String.format(" | %.0f files/s %s/s | cache %.0f%%", getFilesPerSecond(),
+                DeltaUtil.GetHumanReadableSize((long) getBytesPerSecond()), getCacheHitRatio() * 100));
+        long stat = StageNanos[Stage.STAT.ordinal()].sum();
+        long read = StageNanos[Stage.READ.ordinal()].sum();
+        long digest = StageNanos[Stage.DIGEST.ordinal()].sum();
+        long split = Math.max(1, stat + read + digest);
+        sb.append(String.format(" | stat %d%% read %d%% digest %d%%", stat * 100 / split, read * 100 / split, digest * 100 / split));
+        sb.append(String.format(" | file p50 %.2f ms p99 %.2f ms", Percentile(Stage.FILE, 0.5) / 1e6, Percentile(Stage.FILE, 0.99) / 1e6));
+        for (Map.Entry<String, Long> e : getQueueDepths().entrySet())
+            sb.append(" | ").append(e.getKey()).append(' ').append(e.getValue());
+        long eta = getEtaSeconds();
+        if(eta >= 0)
+            sb.append(String.format(" | ETA %d:%02d:%02d", eta / 3600, eta / 60 % 60, eta % 60));
+        sb.append(" | ").append(CurrentPath);
+        return sb.toString();
+    }
+
+    /**
+     * Prints the progress line every given number of seconds on a daemon thread until StopProgress
+     */
+    public synchronized void StartProgress(long seconds){
+        if(seconds < 1)
+            throw new IllegalArgumentException("Seconds must be a positive number. seconds can not be " + seconds + ".");
+        StopProgress();
+        Progress = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "delta-progress");
+            t.setDaemon(true);
+            return t;
+        });
+        // nothing is printed while nothing is scanned, a watch or a server stays quiet when idle
+        long[] last = {-1};
+        Progress.scheduleAtFixedRate(() -> {
+            long done = getFilesScanned() + getFoldersScanned() + getBytesRead();
+            if(done != last[0])
+                System.out.println(getProgressLine());
+            last[0] = done;
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void StopProgress(){
+        if(Progress != null)
+            Progress.shutdownNow();
+        Progress = null;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, once per process
+     */
+    public void Register() throws JMException {
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if(!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    }
+
+    private double Seconds(){
+        return Math.max(1e-9, (System.nanoTime() - StartNanos) / 1e9);
+    }
+}
@@ -0,0 +1,38 @@
+package com.irfanAK.delta;
+
+import java.util.Map;
+
+/**
+ * The scan metrics as seen over JMX, registered as "com.irfanAK.delta:type=Metrics"
+ */
+public interface DeltaMetricsMXBean {
+
+    long getFilesScanned();
+
+    long getFilesHashed();
+
+    long getFoldersScanned();
+
+    long getBytesRead();
+
+    double getFilesPerSecond();
+
+    double getBytesPerSecond();
+
+    double getCacheHitRatio();
+
+    // seconds spent per stage, summed over the threads
+    Map<String, Double> getStageSeconds();
+
+    // p50, p90 and p99 per stage in microseconds
+    Map<String, Double> getStageLatencyMicros();
+
+    Map<String, Long> getQueueDepths();
+
+    // -1 while the totals are not known
+    long getEtaSeconds();
+
+    String getCurrentPath();
+
+    String getProgressLine();
+}
@@ -0,0 +1,255 @@
+package com.irfanAK.delta;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers lookups against a hash index over a loopback socket, so a job asking whether some content is already
+ * in the archive does not load the index for every question
+ * the index is loaded once into an immutable snapshot, readers never lock, a reload builds a new one and swaps the reference
+ * the index lines go straight into the maps of the snapshot, so a reload holds the old and the new maps and nothing else
+ * the protocol is one request per line and one response per line, in order, paths in a response are separated by tabs
+ *   HASH <hex> <size> -> FOUND <n> FULL|SAMPLED\t<path>\t<path>... or MISSING
+ *   PATH <path>       -> FOUND <hex> <size> or MISSING, size is -1 for folders
+ *   FILE <path>       -> hashes the file on the server with the chunks of the index then answers as HASH
+ * HASH and FILE only match files of the same size, SAMPLED means only the sampled chunks of the files are known to match
+ * folder hashes are only answered by PATH, hashes of other chunks than the ones FILE uses are not answered at all
+ *   STATS, RELOAD
+ * a batch is any number of request lines written at once, the responses are flushed once the lines read so far are answered
+ */
+public class DeltaQueryServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 7373;
+    private static final int CHUNK_SIZE = 50;
+    private static final int CHUNK_COUNT = 10;
+
+    private final Path Index;
+    private final String Algorithm;
+    private final int Port;
+    private final ExecutorService Workers;
+    private final AtomicLong Requests;
+    private final AtomicLong Hits;
+    private final AtomicLong Connections;
+    private volatile Snapshot Current;
+    private ServerSocket Server;
+    private Thread Acceptor;
+
+    /**
+     * @param index text index saved by DumpToFile
+     * @param algorithm algorithm of the index lines to load
+     * @param port loopback port, 0 for any free port
+     * @param threads connections served at once, further connections wait
+     */
+    public DeltaQueryServer(Path index, String algorithm, int port, int threads) throws IOException {
+        if(threads < 1)
+            throw new IllegalArgumentException("Threads must be a positive number. threads can not be " + threads + ".");
+        Index = index;
+        Algorithm = algorithm;
+        Port = port;
+        Workers = Executors.newFixedThreadPool(threads);
+        Requests = new AtomicLong();
+        Hits = new AtomicLong();
+        Connections = new AtomicLong();
+        Reload();
+    }
+
+    /**
+     * Loads the index again and swaps it in, requests being answered keep the snapshot they started with
+     */
+    public void Reload() throws IOException {
+        Current = new Snapshot(new DeltaHash(Algorithm), Index);
+    }
+
+    /**
+     * Starts accepting connections on the loopback address
+     */
+    public void Start() throws IOException {
+        Server = new ServerSocket(Port, 128, InetAddress.getLoopbackAddress());
+        Acceptor = new Thread(this::Accept, "delta-query-accept");
+        Acceptor.start();
+    }
+
+    private void Accept(){
+        try {
+            while (!Server.isClosed()){
+                Socket socket = Server.accept();
+                Connections.incrementAndGet();
+                Workers.execute(() -> Serve(socket));
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    private void Serve(Socket socket){
+        try(socket;
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 64 * 1024)){
+            socket.setTcpNoDelay(true);
+            String line;
+            while ((line = in.readLine()) != null){
+                out.write(Answer(line));
+                out.newLine();
+                // the rest of a batch is answered before anything is sent
+                if(!in.ready())
+                    out.flush();
+            }
+        } catch (SocketException e) {
+            // client went away
+        } catch (IOException e) {
+            System.out.println(" Query connection failed " + e);
+        }
+    }
+
+    /**
+     * @return the response line to one request line
+     */
+    public String Answer(String request){
+        Requests.incrementAndGet();
+        int n = request.indexOf(' ');
+        String command = (n < 0 ? request : request.substring(0, n)).toUpperCase();
+        String argument = n < 0 ? "" : request.substring(n + 1);
+        Snapshot snapshot = Current;
+        try {
+            switch (command){
+                case "HASH": {
+                    String[] parts = argument.trim().split(" ");
+                    if(parts.length != 2)
+                        return "ERROR HASH needs a hash and a size";
+                    return Found(snapshot.ByHash.get(HashKey(DeltaUtil.HexStringToByte(parts[0]), Long.parseLong(parts[1]))));
+                }
+                case "PATH": {
+                    String found = snapshot.ByPath.get(argument);
+                    if(found == null)
+                        return "MISSING";
+                    Hits.incrementAndGet();
+                    return "FOUND " + found;
+                }
+                case "FILE": {
+                    DeltaFileEntry file = DeltaFileEntry.Of(Path.of(argument));
+                    return Found(snapshot.ByHash.get(HashKey(snapshot.FileHash(file), file.getSize())));
+                }
+                case "STATS":
+                    return "STATS requests " + Requests.get() + " hits " + Hits.get() + " connections " + Connections.get()
+                            + " hashes " + snapshot.ByHash.size() + " paths " + snapshot.ByPath.size();
+                case "RELOAD":
+                    Reload();
+                    return "RELOADED " + Current.ByPath.size() + " paths";
+                default:
+                    return "ERROR unknown request " + command;
+            }
+        } catch (IOException | NoSuchAlgorithmException | RuntimeException e) {
+            return "ERROR " + e.toString().replace('\n', ' ');
+        }
+    }
+
+    private String Found(Match match){
+        if(match == null)
+            return "MISSING";
+        Hits.incrementAndGet();
+        StringBuilder sb = new StringBuilder("FOUND ").append(match.Paths.length).append(match.Sampled ? " SAMPLED" : " FULL");
+        for (String p : match.Paths)
+            sb.append('\t').append(p);
+        return sb.toString();
+    }
+
+    // the hash followed by the size, files only match when both are the same
+    private static ByteBuffer HashKey(byte[] hash, long size){
+        return ByteBuffer.allocate(hash.length + Long.BYTES).put(hash).putLong(size).flip();
+    }
+
+    public int getPort(){
+        return Server == null ? Port : Server.getLocalPort();
+    }
+
+    public long getRequests(){
+        return Requests.get();
+    }
+
+    public long getHits(){
+        return Hits.get();
+    }
+
+    /**
+     * Blocks until the server is closed
+     */
+    public void Join() throws InterruptedException {
+        if(Acceptor != null)
+            Acceptor.join();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(Server != null)
+            Server.close();
+        Workers.shutdownNow();
+    }
+
+    // the files with one hash and size
+    private static class Match {
+        private final String[] Paths;
+        // true when the files were hashed from sampled chunks, so only those chunks are known to match
+        private final boolean Sampled;
+
+        private Match(String[] paths, boolean sampled){
+            Paths = paths;
+            Sampled = sampled;
+        }
+    }
+
+    // the maps are filled once and only read afterwards, so the readers need no locks
+    private static class Snapshot {
+        // keyed by HashKey, full hashes and hashes sampled with the chunks FileHash uses, no folders
+        private final HashMap<ByteBuffer, Match> ByHash;
+        // "hex size" per canonical path, the full hash of a file is preferred over a sampled one
+        private final HashMap<String, String> ByPath;
+        // only what FileHash needs of the DeltaHash the index was read for, the DeltaHash itself is not kept
+        private final DeltaHashProvider Provider;
+        private final int FullHashingThreshold;
+
+        private Snapshot(DeltaHash dh, Path index) throws IOException {
+            Provider = dh.getProvider();
+            FullHashingThreshold = dh.getFullHashingThreshold();
+            HashMap<ByteBuffer, LinkedHashSet<String>> byHash = new HashMap<>();
+            HashSet<ByteBuffer> sampled = new HashSet<>();
+            ByPath = new HashMap<>();
+            String chunks = CHUNK_SIZE + ":" + CHUNK_COUNT + ":";
+            DeltaHash.ReadEntries(index, dh.getAlgorithm(), (key, entry) -> {
+                String path = DeltaHash.KeyPath(key);
+                if(!entry.isDirectory() && (key.startsWith("FULL:0:") || key.startsWith(chunks))){
+                    ByteBuffer hashKey = HashKey(entry.getHash(), entry.getSize());
+                    byHash.computeIfAbsent(hashKey, k -> new LinkedHashSet<>()).add(path);
+                    if(key.startsWith(chunks))
+                        sampled.add(hashKey);
+                }
+                String found = DeltaUtil.ByteToHexString(entry.getHash()) + " " + entry.getSize();
+                if(key.startsWith("FULL:"))
+                    ByPath.put(path, found);
+                else
+                    ByPath.putIfAbsent(path, found);
+            });
+            ByHash = new HashMap<>();
+            for (Map.Entry<ByteBuffer, LinkedHashSet<String>> e : byHash.entrySet())
+                ByHash.put(e.getKey(), new Match(e.getValue().toArray(new String[0]), sampled.contains(e.getKey())));
+        }
+
+        // hash of a file as the index holds it, sampled unless the file is small enough to be fully hashed
+        private byte[] FileHash(DeltaFileEntry file) throws IOException, NoSuchAlgorithmException {
+            if(!file.isRegularFile())
+                throw new IllegalArgumentException("File is not regular file, can not be hashed.");
+            int chunkCount = DeltaHash.IsFullHashed(file.getSize(), CHUNK_SIZE, CHUNK_COUNT, FullHashingThreshold) ? -1 : CHUNK_COUNT;
+            return DeltaHash.FileChunkHash(file.getPath(), file.getSize(), CHUNK_SIZE, chunkCount, Provider, DeltaHash.DEFAULT_READ_SIZE);
+        }
+    }
+}
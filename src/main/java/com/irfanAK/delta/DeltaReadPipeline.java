@@ -0,0 +1,343 @@
+package com.irfanAK.delta;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Full hashes of many files with the reads and the digests overlapped
+ * reader threads fill buffers taken from a fixed pool and queue them, hasher threads digest them and give them back
+ * the pool holds byteBudget / bufferSize buffers, so the bytes read ahead are bounded however small the files are
+ * a file larger than a buffer is queued as several segments, all segments of a file go to the same hasher in order
+ * with a scheduler the readers take a read permit of the file's store for each file, as DeltaHash does
+ */
+public class DeltaReadPipeline {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final long DEFAULT_BYTE_BUDGET = 64L * 1024 * 1024;
+
+    private final int Readers;
+    private final int Hashers;
+    private final int BufferSize;
+    private final int BufferCount;
+    private final ArrayBlockingQueue<ByteBuffer> FreeBuffers;
+    private final DeltaIOScheduler Scheduler;
+    // totals over every run of this pipeline, for the throughput report
+    private final AtomicLong FilesRead;
+    private final AtomicLong BytesRead;
+    private final AtomicLong Nanos;
+
+    /**
+     * @param readers threads opening and reading files
+     * @param hashers threads digesting the read buffers
+     * @param byteBudget bytes that may be read ahead of the hashers
+     * @param bufferSize size in bytes of each pooled buffer, files up to this size take a single buffer
+     */
+    public DeltaReadPipeline(int readers, int hashers, long byteBudget, int bufferSize){
+        this(readers, hashers, byteBudget, bufferSize, null);
+    }
+
+    /**
+     * @param scheduler limits the reads per store, null to read with every reader at once
+     */
+    public DeltaReadPipeline(int readers, int hashers, long byteBudget, int bufferSize, DeltaIOScheduler scheduler){
+        if(readers < 1)
+            throw new IllegalArgumentException("Readers must be a positive number. readers can not be " + readers + ".");
+        if(hashers < 1)
+            throw new IllegalArgumentException("Hashers must be a positive number. hashers can not be " + hashers + ".");
+        if(bufferSize < 1)
+            throw new IllegalArgumentException("Buffer Size must be a positive number. bufferSize can not be " + bufferSize + ".");
+        if(byteBudget < bufferSize)
+            throw new IllegalArgumentException("Byte Budget must be at least one buffer. byteBudget can not be " + byteBudget + ".");
+        Readers = readers;
+        Hashers = hashers;
+        BufferSize = bufferSize;
+        // every thread needs a buffer to make progress, the budget is raised to that if it is smaller
+        BufferCount = (int) Math.min(Integer.MAX_VALUE - 1, Math.max(readers + hashers, byteBudget / bufferSize));
+        FreeBuffers = new ArrayBlockingQueue<>(BufferCount);
+        for (int i = 0; i < BufferCount; i++)
+            FreeBuffers.add(ByteBuffer.allocateDirect(bufferSize));
+        FilesRead = new AtomicLong();
+        BytesRead = new AtomicLong();
+        Nanos = new AtomicLong();
+        Scheduler = scheduler;
+    }
+
+    /**
+     * Hashes the files of the list that dh would fully hash and has no valid cache entry for, and stores them in dh
+     * so hashing the files or their folders afterwards only hits the cache, sampled files are left to dh
+     * hard links are read once, every path to the inode gets its hash
+     * @return number of files hashed
+     */
+    public int Prefetch(DeltaHash dh, List<DeltaFileEntry> files, int chunkSize, int chunkCount) throws IOException, NoSuchAlgorithmException {
+        ArrayList<DeltaFileEntry> misses = new ArrayList<>();
+        ArrayList<String> keys = new ArrayList<>();
+        // hard links to a file read in this batch, given the hash of the file they link to once it is read
+        ArrayList<DeltaFileEntry> linkFiles = new ArrayList<>();
+        ArrayList<String> linkKeys = new ArrayList<>();
+        ArrayList<Integer> linkTargets = new ArrayList<>();
+        HashMap<String, Integer> readInodes = new HashMap<>();
+        for (DeltaFileEntry file : files) {
+            if(!file.isRegularFile() || !dh.IsFullHashed(file.getSize(), chunkSize, chunkCount))
+                continue;
+            String key = dh.FileKey(file, chunkSize, chunkCount);
+            if(dh.CachedFile(key, file.getAttributes()) != null)
+                continue;
+            DeltaHashEntry linked = dh.InodeEntry(key, file.getAttributes());
+            if(linked != null){
+                dh.PutFile(key, file, linked.getHash());
+                continue;
+            }
+            String fileKey = DeltaHashEntry.FileKeyString(file.getAttributes().fileKey());
+            if(readInodes.containsKey(fileKey)){
+                linkFiles.add(file);
+                linkKeys.add(key);
+                linkTargets.add(readInodes.get(fileKey));
+                continue;
+            }
+            if(!fileKey.equals("-"))
+                readInodes.put(fileKey, misses.size());
+            misses.add(file);
+            keys.add(key);
+        }
+        byte[][] hashes = HashFiles(misses, dh.getProvider());
+        DeltaMetrics.Get().Prefetched(hashes.length);
+        for (int i = 0; i < hashes.length; i++)
+            dh.PutFile(keys.get(i), misses.get(i), hashes[i]);
+        for (int i = 0; i < linkFiles.size(); i++)
+            dh.PutFile(linkKeys.get(i), linkFiles.get(i), hashes[linkTargets.get(i)]);
+        return hashes.length;
+    }
+
+    /**
+     * @return the full hash of every file, in the order of the list
+     */
+    public byte[][] HashFiles(List<DeltaFileEntry> files, DeltaHashProvider provider) throws IOException, NoSuchAlgorithmException {
+        // fails here instead of in the hashers when the algorithm is missing
+        provider.NewDigest();
+        byte[][] hashes = new byte[files.size()][];
+        if(files.isEmpty())
+            return hashes;
+
+        ArrayList<LinkedBlockingQueue<Segment>> queues = new ArrayList<>();
+        for (int i = 0; i < Hashers; i++)
+            // unbounded, the segments queued are bounded by the buffer pool
+            queues.add(new LinkedBlockingQueue<>());
+        AtomicInteger next = new AtomicInteger();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        AtomicLong bytes = new AtomicLong();
+        // digest time and start of the read per file, the segments of a file are all digested by the same hasher
+        long[] digestNanos = new long[files.size()];
+        long[] startNanos = new long[files.size()];
+        DeltaMetrics metrics = DeltaMetrics.Get();
+        metrics.Gauge("pipeline queued", () -> {
+            long queued = 0;
+            for (LinkedBlockingQueue<Segment> queue : queues)
+                queued += queue.size();
+            return queued;
+        });
+        metrics.Gauge("pipeline free buffers", FreeBuffers::size);
+
+        long start = System.nanoTime();
+        Thread[] readers = new Thread[Readers];
+        for (int i = 0; i < Readers; i++) {
+            readers[i] = new Thread(() -> {
+                try {
+                    for (int n = next.getAndIncrement(); n < files.size() && failure.get() == null; n = next.getAndIncrement())
+                        bytes.addAndGet(ReadFile(files.get(n), n, queues.get(n % Hashers), startNanos));
+                } catch (IOException | InterruptedException | RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "delta-reader-" + i);
+            readers[i].setDaemon(true);
+        }
+        Thread[] hashers = new Thread[Hashers];
+        for (int i = 0; i < Hashers; i++) {
+            LinkedBlockingQueue<Segment> queue = queues.get(i);
+            hashers[i] = new Thread(() -> {
+                try {
+                    Digest(queue, provider, hashes, digestNanos, startNanos);
+                } catch (InterruptedException | NoSuchAlgorithmException | RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                    // keeps giving the buffers back so the readers are not left waiting on the pool
+                    Drain(queue);
+                }
+            }, "delta-hasher-" + i);
+            hashers[i].setDaemon(true);
+        }
+        for (Thread t : readers)
+            t.start();
+        for (Thread t : hashers)
+            t.start();
+
+        try {
+            for (Thread t : readers)
+                t.join();
+            for (LinkedBlockingQueue<Segment> queue : queues)
+                queue.put(Segment.END);
+            for (Thread t : hashers)
+                t.join();
+        } catch (InterruptedException e) {
+            for (Thread t : readers)
+                t.interrupt();
+            for (Thread t : hashers)
+                t.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the read pipeline");
+        } finally {
+            metrics.RemoveGauge("pipeline queued");
+            metrics.RemoveGauge("pipeline free buffers");
+        }
+        Nanos.addAndGet(System.nanoTime() - start);
+
+        Exception e = failure.get();
+        if(e instanceof IOException)
+            throw (IOException) e;
+        if(e instanceof NoSuchAlgorithmException)
+            throw (NoSuchAlgorithmException) e;
+        if(e instanceof InterruptedException)
+            throw new InterruptedIOException("Interrupted in the read pipeline");
+        if(e != null)
+            throw (RuntimeException) e;
+
+        FilesRead.addAndGet(files.size());
+        BytesRead.addAndGet(bytes.get());
+        return hashes;
+    }
+
+    // queues the file as segments of at most one buffer, the last one flagged, returns the bytes read
+    private long ReadFile(DeltaFileEntry file, int index, LinkedBlockingQueue<Segment> queue, long[] startNanos) throws IOException, InterruptedException {
+        startNanos[index] = System.nanoTime();
+        long total = 0;
+        long nanos = 0;
+        DeltaIOScheduler.Permit permit = Scheduler == null ? null : Scheduler.Acquire(file);
+        try(SeekableByteChannel sbc = FileChannel.open(file.getPath(), StandardOpenOption.READ)){
+            while (true){
+                ByteBuffer bb = FreeBuffers.take();
+                bb.clear();
+                int n;
+                long start = System.nanoTime();
+                try {
+                    n = DeltaHash.ReadFully(sbc, bb);
+                } catch (IOException e) {
+                    FreeBuffers.put(bb);
+                    throw e;
+                }
+                nanos += System.nanoTime() - start;
+                bb.flip();
+                total += Math.max(n, 0);
+                // a short read is the end of the file, a full one may be followed by an empty last segment
+                boolean last = n < BufferSize;
+                queue.put(new Segment(index, bb, last));
+                if(last){
+                    DeltaMetrics.Get().Record(DeltaMetrics.Stage.READ, nanos);
+                    DeltaMetrics.Get().BytesRead(total);
+                    return total;
+                }
+            }
+        } finally {
+            if(permit != null)
+                permit.close();
+        }
+    }
+
+    // digests the segments of one queue until END, several files can be open at once since readers interleave
+    private void Digest(LinkedBlockingQueue<Segment> queue, DeltaHashProvider provider, byte[][] hashes, long[] digestNanos, long[] startNanos) throws InterruptedException, NoSuchAlgorithmException {
+        HashMap<Integer, MessageDigest> open = new HashMap<>();
+        while (true){
+            Segment s = queue.take();
+            if(s == Segment.END)
+                return;
+            MessageDigest md = open.get(s.File);
+            if(md == null)
+                md = provider.NewDigest();
+            long start = System.nanoTime();
+            md.update(s.Buffer);
+            digestNanos[s.File] += System.nanoTime() - start;
+            FreeBuffers.put(s.Buffer);
+            if(s.Last){
+                hashes[s.File] = md.digest();
+                // the queue handing the segment over orders the start written by the reader before this read
+                DeltaMetrics.Get().Record(DeltaMetrics.Stage.DIGEST, digestNanos[s.File]);
+                DeltaMetrics.Get().Record(DeltaMetrics.Stage.FILE, System.nanoTime() - startNanos[s.File]);
+                open.remove(s.File);
+            }else{
+                open.put(s.File, md);
+            }
+        }
+    }
+
+    private void Drain(LinkedBlockingQueue<Segment> queue){
+        try {
+            for (Segment s = queue.take(); s != Segment.END; s = queue.take())
+                FreeBuffers.put(s.Buffer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getReaders(){
+        return Readers;
+    }
+
+    public int getHashers(){
+        return Hashers;
+    }
+
+    public long getByteBudget(){
+        return (long) BufferCount * BufferSize;
+    }
+
+    public long getFilesRead(){
+        return FilesRead.get();
+    }
+
+    public long getBytesRead(){
+        return BytesRead.get();
+    }
+
+    public double getFilesPerSecond(){
+        long nanos = Nanos.get();
+        return nanos == 0 ? 0 : FilesRead.get() * 1e9 / nanos;
+    }
+
+    public double getMegabytesPerSecond(){
+        long nanos = Nanos.get();
+        return nanos == 0 ? 0 : BytesRead.get() * 1e9 / nanos / (1024 * 1024);
+    }
+
+    /**
+     * @return one line report of the files and bytes hashed so far and the rate they were hashed at
+     */
+    public String Throughput(){
+        return String.format(" Pipeline %d files, %.1f MB, %.0f files/s, %.1f MB/s",
+                getFilesRead(), getBytesRead() / (1024.0 * 1024.0), getFilesPerSecond(), getMegabytesPerSecond());
+    }
+
+    private static class Segment {
+        private static final Segment END = new Segment(-1, null, true);
+
+        private final int File;
+        private final ByteBuffer Buffer;
+        private final boolean Last;
+
+        private Segment(int file, ByteBuffer buffer, boolean last){
+            File = file;
+            Buffer = buffer;
+            Last = last;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.irfanAK.delta;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Lists folders through Files.walkFileTree so every entry costs a single attribute read
+ * the walk starts from the canonical path so the canonical path of an entry is its walked path, only symbolic links are resolved
+ * symbolic links are followed for their target's attributes, links to anything but files or folders are skipped
+ */
+public class DeltaScanner {
+
+    /**
+     * @return the files and folders directly inside the given folder, without the excluded system folders
+     */
+    public static List<DeltaFileEntry> ListChildren(DeltaFileEntry folder) throws IOException {
+        ArrayList<DeltaFileEntry> children = new ArrayList<>();
+        long start = System.nanoTime();
+        Files.walkFileTree(Path.of(folder.getCanonicalPath()), EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                DeltaFileEntry child = ToEntry(file, attrs);
+                if(child != null)
+                    children.add(child);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        DeltaMetrics.Get().Record(DeltaMetrics.Stage.STAT, System.nanoTime() - start);
+        DeltaMetrics.Get().FolderScanned();
+        return children;
+    }
+
+    /**
+     * @return every regular file under the roots, a file reachable from several roots or links is listed once
+     */
+    public static List<DeltaFileEntry> ListFiles(List<Path> roots) throws IOException {
+        return ListTree(roots, null);
+    }
+
+    /**
+     * Same as ListFiles, the children of every folder walked are kept as ListChildren would list them
+     * so hashing the roots afterwards reads every entry once, links to folders are not walked into and are listed again
+     * @param children filled with the children of every folder keyed by its canonical path, null to not keep them
+     */
+    public static List<DeltaFileEntry> ListTree(List<Path> roots, Map<String, List<DeltaFileEntry>> children) throws IOException {
+        LinkedHashMap<String, DeltaFileEntry> files = new LinkedHashMap<>();
+        for (Path root : roots) {
+            DeltaFileEntry rootEntry = DeltaFileEntry.Of(root);
+            if(rootEntry.isRegularFile()){
+                files.putIfAbsent(rootEntry.getCanonicalPath(), rootEntry);
+                continue;
+            }
+            long start = System.nanoTime();
+            Path walkRoot = Path.of(rootEntry.getCanonicalPath());
+            Files.walkFileTree(walkRoot, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if(IsExcluded(dir.toString()))
+                        return FileVisitResult.SKIP_SUBTREE;
+                    DeltaMetrics.Get().FolderScanned();
+                    if(children != null){
+                        children.put(dir.toString(), new ArrayList<>());
+                        // a root is not a child of another walk, a root nested in an earlier one is only listed again
+                        if(!dir.equals(walkRoot))
+                            AddChild(dir, new DeltaFileEntry(dir, dir.toString(), attrs));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    DeltaFileEntry entry = ToEntry(file, attrs);
+                    if(entry != null && entry.isRegularFile())
+                        files.putIfAbsent(entry.getCanonicalPath(), entry);
+                    if(entry != null && children != null)
+                        AddChild(file, entry);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                private void AddChild(Path path, DeltaFileEntry entry){
+                    List<DeltaFileEntry> siblings = path.getParent() == null ? null : children.get(path.getParent().toString());
+                    if(siblings != null)
+                        siblings.add(entry);
+                }
+            });
+            // one listing per root, the histogram holds whole walks here
+            DeltaMetrics.Get().Record(DeltaMetrics.Stage.STAT, System.nanoTime() - start);
+        }
+        return new ArrayList<>(files.values());
+    }
+
+    public static boolean IsExcluded(String path){
+        return path.contains("$RECYCLE.BIN") || path.contains("System Volume Information");
+    }
+
+    // entry for a visited path, links are resolved to their target, null for anything that can not be hashed
+    private static DeltaFileEntry ToEntry(Path file, BasicFileAttributes attrs) {
+        DeltaFileEntry entry;
+        if(attrs.isSymbolicLink()){
+            try {
+                entry = DeltaFileEntry.Of(file);
+            } catch (IOException e) {
+                // dangling link
+                return null;
+            }
+        }else{
+            entry = new DeltaFileEntry(file, file.toString(), attrs);
+        }
+        if(!entry.isRegularFile() && !entry.isDirectory() || IsExcluded(entry.getCanonicalPath()))
+            return null;
+        return entry;
+    }
+}
@@ -0,0 +1,170 @@
+package com.irfanAK.delta;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Index shards for scans split over several machines, each scanner writes the entries it hashed as a sorted shard
+ * and the shards are k-way merged into duplicate sets over all of them, reading one line per shard at a time
+ *
+ * layout, text
+ * - header "#DELTA-SHARD:1:algorithm:chunkSize:chunkCount:name"
+ * - lines sorted as strings, so by hash first
+ * -- "HEX:size:fileKey:chunkSize:chunkCount:canonicalPath", size is -1 for folders
+ * only shards of the same algorithm and chunks can be merged, their hashes are not comparable otherwise
+ */
+public class DeltaShard {
+
+    private static final String HEADER = "#DELTA-SHARD:1:";
+
+    /**
+     * Writes the entries of the DeltaHash hashed with the given chunks, sorted through DeltaExternalSorter next to the shard
+     * @param name name of the scanner, the paths of the merged sets are given as "name:path"
+     * @param runLines number of lines sorted in memory before a run is spilled
+     * @return number of entries written
+     */
+    public static long Write(Path shard, DeltaHash dh, int chunkSize, int chunkCount, String name, int runLines) throws IOException {
+        if(name.isEmpty() || name.contains(":"))
+            throw new IllegalArgumentException("Shard Name must be a name without ':'. name can not be " + name + ".");
+        long count = 0;
+        String chunks = chunkSize + ":" + chunkCount + ":";
+        try(DeltaExternalSorter sorter = new DeltaExternalSorter(shard.toAbsolutePath().getParent(), runLines);
+            BufferedWriter bw = Files.newBufferedWriter(shard)){
+            for (Map.Entry<String, DeltaHashEntry> e : dh.getFilesHashed().entrySet()) {
+                DeltaHashEntry entry = e.getValue();
+                // the entries of other chunks are left out, as in DeltaTreeDiff.Snapshot
+                boolean full = !entry.isDirectory() && dh.IsFullHashed(entry.getSize(), chunkSize, chunkCount);
+                if(!e.getKey().startsWith(full ? "FULL:0:" : chunks))
+                    continue;
+                sorter.Add(DeltaUtil.ByteToHexString(entry.getHash()) + ":" + entry.getSize() + ":" + entry.getFileKey() + ":" + e.getKey());
+            }
+            sorter.Finish();
+            bw.write(HEADER + dh.getAlgorithm() + ":" + chunkSize + ":" + chunkCount + ":" + name);
+            bw.newLine();
+            String line;
+            while ((line = sorter.Next()) != null){
+                bw.write(line);
+                bw.newLine();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Merges the shards into duplicate sets written as DumpDuplicates does, ordered by hash
+     * @param minSize files smaller than this are not written as duplicates, folders always are
+     * @return number of duplicate sets
+     */
+    public static long Merge(List<Path> shards, Path duplicated, long minSize) throws IOException {
+        if(shards.isEmpty())
+            throw new IllegalArgumentException("Shards must not be empty.");
+        ArrayList<ShardReader> readers = new ArrayList<>();
+        PriorityQueue<ShardReader> queue = new PriorityQueue<>(shards.size(), Comparator.comparing(r -> r.Line));
+        long sets = 0;
+        long number_of_duplicates = 0;
+        long size_saved = 0;
+        try(BufferedWriter bw = Files.newBufferedWriter(duplicated)){
+            for (Path shard : shards) {
+                ShardReader reader = new ShardReader(shard);
+                readers.add(reader);
+                if(!reader.Parameters.equals(readers.get(0).Parameters))
+                    throw new IOException("Shard " + shard + " was written with " + reader.Parameters + " but " + shards.get(0)
+                            + " with " + readers.get(0).Parameters + ", only shards of the same algorithm and chunks can be merged");
+                if(reader.Advance())
+                    queue.add(reader);
+            }
+            String algorithm = readers.get(0).Parameters.substring(0, readers.get(0).Parameters.indexOf(':'));
+
+            // only the entries of the current hash are held in memory
+            ArrayList<String[]> group = new ArrayList<>();
+            String groupHash = null;
+            while (true){
+                ShardReader reader = queue.poll();
+                String[] parts = reader == null ? null : reader.Line.split(":", 6);
+                if(parts != null && parts.length != 6)
+                    throw new IOException("Malformed shard line in " + reader.Shard + " " + reader.Line);
+                if(groupHash != null && (parts == null || !parts[0].equals(groupHash))){
+                    long size = Long.parseLong(group.get(0)[2]);
+                    if(group.size() > 1 && (size < 0 || size >= minSize)){
+                        bw.write((size < 0 ? "DIR" : DeltaUtil.GetHumanReadableSize(size)) + " " + algorithm + " " + groupHash);
+                        bw.newLine();
+                        // hard links to one inode on one scanner only take its size once
+                        HashSet<String> inodes = new HashSet<>();
+                        for (String[] g : group) {
+                            bw.write(g[0] + ":" + g[1]);
+                            bw.newLine();
+                            inodes.add(g[3].equals("-") ? g[0] + ":" + g[1] : g[0] + ":" + g[3]);
+                        }
+                        bw.newLine();
+                        sets++;
+                        number_of_duplicates += group.size();
+                        if(size > 0)
+                            size_saved += (inodes.size() - 1) * size;
+                    }
+                    group.clear();
+                }
+                if(parts == null)
+                    break;
+                groupHash = parts[0];
+                // name, path, size, file key
+                group.add(new String[]{reader.Name, parts[5], parts[1], parts[2]});
+                if(reader.Advance())
+                    queue.add(reader);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed shard", e);
+        } finally {
+            for (ShardReader reader : readers)
+                reader.close();
+        }
+        System.out.println(" Merged " + shards.size() + " shards, " + sets + " duplicate sets, duplicate files found " + number_of_duplicates
+                + " using " + DeltaUtil.GetHumanReadableSize(size_saved) + " extra data");
+        return sets;
+    }
+
+    private static class ShardReader implements Closeable {
+        private final Path Shard;
+        private final BufferedReader Reader;
+        // "algorithm:chunkSize:chunkCount" out of the header
+        private final String Parameters;
+        private final String Name;
+        private String Line;
+
+        private ShardReader(Path shard) throws IOException {
+            Shard = shard;
+            Reader = Files.newBufferedReader(shard);
+            String header = Reader.readLine();
+            if(header == null || !header.startsWith(HEADER)){
+                Reader.close();
+                throw new IOException("Not a Delta shard " + shard);
+            }
+            String[] parts = header.substring(HEADER.length()).split(":", 4);
+            if(parts.length != 4){
+                Reader.close();
+                throw new IOException("Malformed shard header in " + shard + " " + header);
+            }
+            Parameters = parts[0] + ":" + parts[1] + ":" + parts[2];
+            Name = parts[3];
+        }
+
+        // a line out of order would split a duplicate set, so the order is checked as the shard is read
+        private boolean Advance() throws IOException {
+            String previous = Line;
+            Line = Reader.readLine();
+            if(Line != null && previous != null && Line.compareTo(previous) < 0)
+                throw new IOException("Shard " + Shard + " is not sorted at " + Line);
+            return Line != null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            Reader.close();
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package com.irfanAK.delta;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Finds files that are mostly the same without comparing every pair
+ * every file gets a MinHash signature over the fingerprints of its chunks, two signatures agree in about
+ * the share of positions given by the Jaccard similarity of the two chunk sets
+ * the signature is cut into bands, files with an equal band land in the same bucket and only those are compared
+ * signatures and paths are kept in files in the work folder and the buckets are found through DeltaExternalSorter,
+ * the candidate pairs above the lowest threshold are sorted by similarity in the work folder as well,
+ * memory holds the path offsets, a union find over the files and a long per grouped file while a threshold is written
+ */
+public class DeltaSimilarityIndex implements Closeable {
+
+    public static final int SIGNATURE_SIZE = 128;
+    // buckets larger than this only pair each file with its neighbours, a common chunk would otherwise pair everything
+    private static final int MAX_BUCKET = 256;
+
+    // one seed per signature position, fixed so signatures of different runs can be compared
+    private static final long[] SEEDS = new long[SIGNATURE_SIZE];
+
+    static {
+        Random r = new Random(0x4d494e48L);
+        for (int i = 0; i < SEEDS.length; i++)
+            SEEDS[i] = r.nextLong();
+    }
+
+    private final Path WorkDir;
+    private final int Bands;
+    private final int Rows;
+    private final int RunLines;
+    private final FileChannel Signatures;
+    private final DataOutputStream Paths;
+    private final RandomAccessFile PathReader;
+    private final DeltaExternalSorter BandSorter;
+    private final ByteBuffer SignatureBuffer;
+    private long[] PathOffsets;
+    private long PathBytes;
+    private int Count;
+
+    /**
+     * @param workDir folder for the signature, path and sort files, they are deleted on close
+     * @param bands number of bands the signature is cut into, must divide SIGNATURE_SIZE
+     *              more bands find pairs of lower similarity, at the cost of more candidates
+     * @param runLines lines of a sort run kept in memory
+     */
+    public DeltaSimilarityIndex(Path workDir, int bands, int runLines) throws IOException {
+        if(bands < 1 || SIGNATURE_SIZE % bands != 0)
+            throw new IllegalArgumentException("Bands must divide " + SIGNATURE_SIZE + ". bands can not be " + bands + ".");
+        WorkDir = Files.createTempDirectory(workDir, "delta-similar");
+        Bands = bands;
+        Rows = SIGNATURE_SIZE / bands;
+        RunLines = runLines;
+        Signatures = FileChannel.open(WorkDir.resolve("signatures"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Paths = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(WorkDir.resolve("paths"))));
+        PathReader = new RandomAccessFile(WorkDir.resolve("paths").toFile(), "r");
+        BandSorter = new DeltaExternalSorter(WorkDir, runLines);
+        SignatureBuffer = ByteBuffer.allocate(SIGNATURE_SIZE * 4);
+        PathOffsets = new long[1024];
+    }
+
+    /**
+     * Signature of a file, built while the file is chunked
+     */
+    public static class Signature implements DeltaChunker.ChunkConsumer {
+        private final int[] Values;
+        private int Chunks;
+
+        public Signature(){
+            Values = new int[SIGNATURE_SIZE];
+            Arrays.fill(Values, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Adds one chunk fingerprint, from content defined or fixed chunks alike
+         */
+        public void Add(long fingerprint){
+            for (int i = 0; i < SIGNATURE_SIZE; i++) {
+                int v = (int) (Mix(fingerprint ^ SEEDS[i]) >>> 32);
+                if(v < Values[i])
+                    Values[i] = v;
+            }
+            Chunks++;
+        }
+
+        // the first 8 bytes of the chunk digest are its fingerprint
+        @Override
+        public void Accept(long offset, int length, byte[] hash) {
+            long fingerprint = 0;
+            for (int i = 0; i < 8 && i < hash.length; i++)
+                fingerprint = (fingerprint << 8) | (hash[i] & 0xff);
+            Add(fingerprint);
+        }
+
+        public int[] getValues(){
+            return Values;
+        }
+
+        public int getChunks(){
+            return Chunks;
+        }
+    }
+
+    /**
+     * Adds the signature of a file, files are numbered in the order they are added
+     */
+    public synchronized int Add(String path, Signature signature) throws IOException {
+        int id = Count++;
+        SignatureBuffer.clear();
+        for (int v : signature.getValues())
+            SignatureBuffer.putInt(v);
+        SignatureBuffer.flip();
+        Signatures.write(SignatureBuffer, (long) id * SIGNATURE_SIZE * 4);
+
+        if(id == PathOffsets.length)
+            PathOffsets = Arrays.copyOf(PathOffsets, PathOffsets.length * 2);
+        PathOffsets[id] = PathBytes;
+        byte[] utf = path.getBytes(StandardCharsets.UTF_8);
+        Paths.writeInt(utf.length);
+        Paths.write(utf);
+        PathBytes += 4 + utf.length;
+
+        int[] values = signature.getValues();
+        for (int band = 0; band < Bands; band++) {
+            long h = band;
+            for (int row = 0; row < Rows; row++)
+                h = Mix(h * 31 + values[band * Rows + row]);
+            BandSorter.Add(String.format("%016x:%d", h, id));
+        }
+        return id;
+    }
+
+    /**
+     * Chunks the files on a pool of the given parallelism and adds their signatures, empty files are left out
+     * every file is read in full, a near duplicate usually differs in size so the duplicate stages never read it,
+     * the signatures can not be taken from their reads and this costs a second pass over the whole tree
+     * @param averageSize average content defined chunk size in bytes
+     * @return bytes read
+     */
+    public long AddFiles(List<DeltaFileEntry> files, int averageSize, DeltaHashProvider provider, int readSize, int parallelism) throws IOException, NoSuchAlgorithmException {
+        // checks the chunk size and the algorithm before starting the pool
+        new DeltaChunker(averageSize, provider, readSize);
+        ThreadLocal<DeltaChunker> chunkers = new ThreadLocal<>();
+        LongAdder bytesRead = new LongAdder();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.submit(() -> files.parallelStream().filter(f -> f.getSize() > 0).forEach(f -> {
+                try {
+                    DeltaChunker chunker = chunkers.get();
+                    if(chunker == null){
+                        chunker = new DeltaChunker(averageSize, provider, readSize);
+                        chunkers.set(chunker);
+                    }
+                    Signature signature = new Signature();
+                    try(FileChannel fc = FileChannel.open(f.getPath(), StandardOpenOption.READ)){
+                        chunker.Chunk(fc, signature);
+                    }
+                    bytesRead.add(f.getSize());
+                    Add(f.getCanonicalPath(), signature);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted building signatures", e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof UncheckedIOException)
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            throw new IOException("Failed building signatures", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        return bytesRead.sum();
+    }
+
+    /**
+     * Gets the groups of one threshold at a time
+     */
+    public interface GroupConsumer {
+        void Accept(double threshold, List<String> paths) throws IOException;
+    }
+
+    /**
+     * Writes the groups of every threshold, highest first, in the layout of the duplicate sets
+     */
+    public void DumpGroups(double[] thresholds, Path output) throws IOException {
+        double[] sorted = thresholds.clone();
+        Arrays.sort(sorted);
+        int[] counts;
+        try(BufferedWriter bw = Files.newBufferedWriter(output)){
+            counts = Groups(sorted, (threshold, group) -> {
+                bw.write("SIMILAR >= " + Math.round(threshold * 100) + "% " + group.size() + " files");
+                bw.newLine();
+                for (String p : group) {
+                    bw.write(p);
+                    bw.newLine();
+                }
+                bw.newLine();
+            });
+        }
+        for (int t = sorted.length - 1; t >= 0; t--)
+            System.out.println(" Similar >= " + Math.round(sorted[t] * 100) + "% " + counts[t] + " groups");
+    }
+
+    /**
+     * Groups the files similar at the given thresholds, a file joins a group when it is similar enough to any member
+     * the candidate pairs are sorted most similar first and joined by one union find, the groups of a threshold
+     * are handed over as soon as the pairs drop below it, highest threshold first, in the order their first file was added
+     * @param thresholds estimated Jaccard similarities between 0 and 1
+     * @return the number of groups of every threshold, in the given order
+     */
+    public int[] Groups(double[] thresholds, GroupConsumer consumer) throws IOException {
+        double lowest = 1;
+        for (double t : thresholds)
+            lowest = Math.min(lowest, t);
+        Paths.flush();
+        BandSorter.Finish();
+
+        DeltaExternalSorter pairSorter = new DeltaExternalSorter(WorkDir, RunLines);
+        try {
+            ArrayList<Integer> bucket = new ArrayList<>();
+            String bucketKey = null;
+            String line;
+            do{
+                line = BandSorter.Next();
+                String key = line == null ? null : line.substring(0, line.indexOf(':'));
+                if(bucketKey != null && !bucketKey.equals(key)){
+                    AddPairs(bucket, pairSorter, MinSame(lowest));
+                    bucket.clear();
+                }
+                if(line != null)
+                    bucket.add(Integer.parseInt(line.substring(line.indexOf(':') + 1)));
+                bucketKey = key;
+            }while(line != null);
+            pairSorter.Finish();
+
+            Integer[] order = new Integer[thresholds.length];
+            for (int i = 0; i < order.length; i++)
+                order[i] = i;
+            Arrays.sort(order, (x, y) -> Double.compare(thresholds[y], thresholds[x]));
+            int[] parent = new int[Count];
+            for (int i = 0; i < Count; i++)
+                parent[i] = i;
+            int[] counts = new int[thresholds.length];
+            // a pair sharing several bands is listed more than once, joining it again changes nothing
+            line = pairSorter.Next();
+            for (int t : order) {
+                int minSame = MinSame(thresholds[t]);
+                while (line != null && SIGNATURE_SIZE - Integer.parseInt(line.substring(0, 3)) >= minSame){
+                    parent[Find(parent, Integer.parseInt(line.substring(4, 14)))] = Find(parent, Integer.parseInt(line.substring(15)));
+                    line = pairSorter.Next();
+                }
+                counts[t] = EmitGroups(parent, thresholds[t], consumer);
+            }
+            return counts;
+        } finally {
+            pairSorter.close();
+        }
+    }
+
+    // hands over every group of at least two files under the current joins, ordered by the first file of each group
+    private int EmitGroups(int[] parent, double threshold, GroupConsumer consumer) throws IOException {
+        int[] members = new int[Count];
+        int[] first = new int[Count];
+        Arrays.fill(first, -1);
+        int grouped = 0;
+        for (int i = 0; i < Count; i++) {
+            int root = Find(parent, i);
+            members[root]++;
+            if(first[root] < 0)
+                first[root] = i;
+        }
+        for (int i = 0; i < Count; i++)
+            if(members[i] > 1)
+                grouped += members[i];
+        // first file of the group in the high half, the file in the low half
+        long[] keys = new long[grouped];
+        int k = 0;
+        for (int i = 0; i < Count; i++) {
+            int root = Find(parent, i);
+            if(members[root] > 1)
+                keys[k++] = (long) first[root] << 32 | i;
+        }
+        Arrays.sort(keys);
+        int groups = 0;
+        ArrayList<String> group = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            group.add(ReadPath((int) keys[i]));
+            if(i + 1 == keys.length || keys[i + 1] >>> 32 != keys[i] >>> 32){
+                Collections.sort(group);
+                consumer.Accept(threshold, group);
+                group = new ArrayList<>();
+                groups++;
+            }
+        }
+        return groups;
+    }
+
+    // scores the pairs of a bucket, only the ones similar enough for the lowest threshold go to the sorter
+    private void AddPairs(List<Integer> bucket, DeltaExternalSorter pairSorter, int minSame) throws IOException {
+        if(bucket.size() < 2)
+            return;
+        Collections.sort(bucket);
+        if(bucket.size() > MAX_BUCKET){
+            int[] a = new int[SIGNATURE_SIZE];
+            int[] b = new int[SIGNATURE_SIZE];
+            ReadSignature(bucket.get(0), a);
+            for (int i = 1; i < bucket.size(); i++) {
+                ReadSignature(bucket.get(i), b);
+                AddPair(pairSorter, bucket.get(i - 1), bucket.get(i), Same(a, b), minSame);
+                int[] swap = a;
+                a = b;
+                b = swap;
+            }
+            return;
+        }
+        int[][] signatures = new int[bucket.size()][SIGNATURE_SIZE];
+        for (int i = 0; i < bucket.size(); i++)
+            ReadSignature(bucket.get(i), signatures[i]);
+        for (int i = 0; i < bucket.size(); i++)
+            for (int j = i + 1; j < bucket.size(); j++)
+                AddPair(pairSorter, bucket.get(i), bucket.get(j), Same(signatures[i], signatures[j]), minSame);
+    }
+
+    // the similarity is kept as the count of equal signature positions, counted down so the most similar pairs sort first
+    // zero padded so the lines sort in numeric order
+    private static void AddPair(DeltaExternalSorter pairSorter, int a, int b, int same, int minSame) throws IOException {
+        if(same >= minSame)
+            pairSorter.Add(String.format("%03d:%010d:%010d", SIGNATURE_SIZE - same, a, b));
+    }
+
+    // fewest equal positions for a similarity of at least the threshold, exact since SIGNATURE_SIZE is a power of two
+    private static int MinSame(double threshold){
+        return (int) Math.ceil(threshold * SIGNATURE_SIZE);
+    }
+
+    private static int Same(int[] a, int[] b){
+        int same = 0;
+        for (int i = 0; i < SIGNATURE_SIZE; i++)
+            if(a[i] == b[i])
+                same++;
+        return same;
+    }
+
+    private static int Find(int[] parent, int i){
+        while (parent[i] != i){
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private void ReadSignature(int id, int[] values) throws IOException {
+        SignatureBuffer.clear();
+        long position = (long) id * SIGNATURE_SIZE * 4;
+        while (SignatureBuffer.hasRemaining())
+            if(Signatures.read(SignatureBuffer, position + SignatureBuffer.position()) < 0)
+                throw new EOFException("Signature " + id + " missing");
+        SignatureBuffer.flip();
+        for (int i = 0; i < SIGNATURE_SIZE; i++)
+            values[i] = SignatureBuffer.getInt();
+    }
+
+    private String ReadPath(int id) throws IOException {
+        PathReader.seek(PathOffsets[id]);
+        byte[] utf = new byte[PathReader.readInt()];
+        PathReader.readFully(utf);
+        return new String(utf, StandardCharsets.UTF_8);
+    }
+
+    // SplitMix64 finalizer
+    private static long Mix(long z){
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    public int size(){
+        return Count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        BandSorter.close();
+        Signatures.close();
+        Paths.close();
+        PathReader.close();
+        try(Stream<Path> files = Files.list(WorkDir)){
+            for (Path p : (Iterable<Path>) files::iterator)
+                Files.deleteIfExists(p);
+        }
+        Files.deleteIfExists(WorkDir);
+    }
+}
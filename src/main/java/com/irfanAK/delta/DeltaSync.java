@@ -0,0 +1,618 @@
+package com.irfanAK.delta;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Makes a destination folder hold what a source folder holds, copying only what differs
+ * both trees are fully hashed through the DeltaHash, so with an index unchanged files are not read again, and walked
+ * together as DeltaTreeDiff does, a folder with the same hash on both sides is skipped once the names under it match too
+ * since folder hashes leave the names out, the names are compared in memory, no file under the folder is read
+ * a file on both sides with different content is patched as rsync does
+ * - the destination copy is cut into blocks, each signed with a rolling weak checksum and a strong hash
+ * - the source is scanned with the weak checksum rolled one byte at a time, a weak hit is confirmed with the strong hash
+ * - the new file is written next to the destination from the matched blocks of the old one and the source bytes in between
+ *   then checked against the source hash and moved over it, a file that does not check out is copied whole
+ * a file only in the source is copied locally from a destination file with the same hash when there is one
+ * symbolic links are synced as links with the same target, they are listed by a walk that does not follow them
+ * since the hashed trees only hold what links point to, a link path is left out of the tree walk on either side
+ * files are synced on several threads, each holding one scan window and the signatures of one file
+ */
+public class DeltaSync {
+
+    private static final int CHUNK_SIZE = 50;
+    private static final int MIN_BLOCK_SIZE = 2048;
+    // at most this many blocks are signed per file, larger files get larger blocks so the signatures stay bounded
+    private static final int MAX_BLOCKS = 1 << 18;
+    private static final int WINDOW_SIZE = 4 * 1024 * 1024;
+    // files smaller than this are copied whole, patching them would save next to nothing
+    private static final long MIN_PATCH_SIZE = 64 * 1024;
+
+    private final DeltaHash Hasher;
+    private final int Threads;
+    private final int BlockSize;
+    private final boolean Delete;
+    private final AtomicLong FilesCopied;
+    private final AtomicLong FilesPatched;
+    private final AtomicLong LogicalBytes;
+    private final AtomicLong TransferredBytes;
+    private final AtomicLong MatchedBytes;
+    private final AtomicLong LocalBytes;
+    private final AtomicLong SignatureBytes;
+    private final ArrayList<String> Conflicts;
+    // relative path to link target of the links in the source and the destination of the current sync
+    private Map<String, Path> SourceLinks;
+    private Map<String, Path> DestinationLinks;
+    private long FilesDeleted;
+    private long LinksSynced;
+    private int FoldersVisited;
+    private int SubtreesPruned;
+    private long Nanos;
+
+    /**
+     * @param dh hashes both trees, its cache and index make later syncs only read the changed files
+     * @param threads files synced at once
+     * @param blockSize bytes per signed block, 0 for the square root of the file size
+     * @param delete whether what is only in the destination is deleted, and what has another type in the source replaced
+     */
+    public DeltaSync(DeltaHash dh, int threads, int blockSize, boolean delete){
+        if(threads < 1)
+            throw new IllegalArgumentException("Threads must be a positive number. threads can not be " + threads + ".");
+        if(blockSize < 0)
+            throw new IllegalArgumentException("Block Size must be a positive number or 0. blockSize can not be " + blockSize + ".");
+        Hasher = dh;
+        Threads = threads;
+        BlockSize = blockSize;
+        Delete = delete;
+        FilesCopied = new AtomicLong();
+        FilesPatched = new AtomicLong();
+        LogicalBytes = new AtomicLong();
+        TransferredBytes = new AtomicLong();
+        MatchedBytes = new AtomicLong();
+        LocalBytes = new AtomicLong();
+        SignatureBytes = new AtomicLong();
+        Conflicts = new ArrayList<>();
+    }
+
+    public void Sync(Path source, Path destination) throws IOException, NoSuchAlgorithmException {
+        long start = System.nanoTime();
+        if(!Files.isDirectory(source))
+            throw new IOException("Source is not a folder " + source);
+        // a destination that is a link to a folder is synced into, createDirectories would fail on the link
+        if(!Files.isDirectory(destination))
+            Files.createDirectories(destination);
+        String sourceRoot = source.toFile().getCanonicalPath();
+        String destinationRoot = destination.toFile().getCanonicalPath();
+        if(Nested(sourceRoot, destinationRoot) || Nested(destinationRoot, sourceRoot))
+            throw new IllegalArgumentException("Destination must not be inside the source or hold it. destination can not be " + destination + ".");
+        // paths are resolved from the real roots, so a root given as a link is not in the way of createDirectories
+        source = Path.of(sourceRoot);
+        destination = Path.of(destinationRoot);
+        DeltaTreeDiff.Snapshot src = DeltaTreeDiff.Snapshot.Of(Hasher, source, CHUNK_SIZE, -1);
+        DeltaTreeDiff.Snapshot dst = DeltaTreeDiff.Snapshot.Of(Hasher, destination, CHUNK_SIZE, -1);
+        SourceLinks = Links(source);
+        DestinationLinks = Links(destination);
+
+        ArrayList<String> copies = new ArrayList<>();
+        ArrayList<String> patches = new ArrayList<>();
+        ArrayList<String> deletes = new ArrayList<>();
+        ArrayList<String> replaces = new ArrayList<>();
+        Compare(src, dst, "", copies, patches, deletes, replaces);
+
+        // destination files by hash, the ones patched or replaced can not be copied from
+        // the deleted ones can, they are only deleted once everything is copied, which makes renames local copies
+        // the destination is only listed in full when there is something to copy
+        HashSet<String> changing = new HashSet<>(patches);
+        changing.addAll(replaces);
+        HashMap<String, String> local = new HashMap<>();
+        ArrayList<String> destinationFiles = new ArrayList<>();
+        if(!copies.isEmpty())
+            dst.Files("", destinationFiles);
+        for (String relative : destinationFiles)
+            if(!changing.contains(relative) && !UnderAny(relative, changing))
+                local.putIfAbsent(DeltaUtil.ByteToHexString(dst.Get(relative).getHash()), relative);
+
+        for (String relative : replaces)
+            DeleteTree(destination.resolve(relative));
+        ArrayList<Task> tasks = new ArrayList<>();
+        for (String relative : copies)
+            tasks.add(new Task(relative, false));
+        for (String relative : patches)
+            tasks.add(new Task(relative, true));
+        Run(tasks, source, destination, src, dst, local);
+        SyncLinks(source, destination, deletes);
+        for (String relative : deletes) {
+            DeleteTree(destination.resolve(relative));
+            FilesDeleted++;
+        }
+        Nanos = System.nanoTime() - start;
+    }
+
+    // collects what differs under the path, as DeltaTreeDiff.Compare walks
+    private void Compare(DeltaTreeDiff.Snapshot src, DeltaTreeDiff.Snapshot dst, String path, List<String> copies,
+                         List<String> patches, List<String> deletes, List<String> replaces) throws IOException {
+        // links are synced by SyncLinks, a source link is never taken for a missing path
+        if(SourceLinks.containsKey(path))
+            return;
+        DeltaHashEntry a = src.Get(path);
+        DeltaHashEntry b = dst.Get(path);
+        if(DestinationLinks.containsKey(path)){
+            if(a == null)
+                return;
+            if(Delete){
+                replaces.add(path);
+                src.Files(path, copies);
+            }else{
+                Conflicts.add(path);
+            }
+            return;
+        }
+        if(a == null){
+            if(b != null && Delete)
+                deletes.add(path);
+            return;
+        }
+        if(b == null){
+            src.Files(path, copies);
+            return;
+        }
+        if(a.isDirectory() != b.isDirectory()){
+            if(Delete){
+                replaces.add(path);
+                src.Files(path, copies);
+            }else{
+                Conflicts.add(path);
+            }
+            return;
+        }
+        if(Arrays.equals(a.getHash(), b.getHash()) && (!a.isDirectory() || SameNames(src, dst, path))){
+            if(a.isDirectory())
+                SubtreesPruned++;
+            return;
+        }
+        if(!a.isDirectory()){
+            patches.add(path);
+            return;
+        }
+        FoldersVisited++;
+        TreeSet<String> names = new TreeSet<>(src.Children(path));
+        names.addAll(dst.Children(path));
+        for (String name : names)
+            Compare(src, dst, DeltaTreeDiff.Snapshot.Child(path, name), copies, patches, deletes, replaces);
+    }
+
+    // same names and types all the way down, the content is already known to match
+    private static boolean SameNames(DeltaTreeDiff.Snapshot src, DeltaTreeDiff.Snapshot dst, String path) throws IOException {
+        if(!src.Get(path).isDirectory())
+            return !dst.Get(path).isDirectory();
+        if(!dst.Get(path).isDirectory())
+            return false;
+        TreeSet<String> names = new TreeSet<>(src.Children(path));
+        if(!names.equals(new TreeSet<>(dst.Children(path))))
+            return false;
+        for (String name : names)
+            if(!SameNames(src, dst, DeltaTreeDiff.Snapshot.Child(path, name)))
+                return false;
+        return true;
+    }
+
+    private void Run(List<Task> tasks, Path source, Path destination, DeltaTreeDiff.Snapshot src, DeltaTreeDiff.Snapshot dst,
+                     Map<String, String> local) throws IOException, NoSuchAlgorithmException {
+        if(tasks.isEmpty())
+            return;
+        // fails here instead of in the workers when the algorithm is missing
+        Hasher.getProvider().NewDigest();
+        AtomicInteger next = new AtomicInteger();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread[] workers = new Thread[Math.min(Threads, tasks.size())];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(() -> {
+                try {
+                    Worker worker = new Worker(Hasher.getProvider().NewDigest());
+                    for (int n = next.getAndIncrement(); n < tasks.size() && failure.get() == null; n = next.getAndIncrement()) {
+                        Task task = tasks.get(n);
+                        Path from = source.resolve(task.Relative);
+                        Path to = destination.resolve(task.Relative);
+                        byte[] hash = src.Get(task.Relative).getHash();
+                        if(task.Patch && Files.size(to) >= MIN_PATCH_SIZE && Files.size(to) >= BlockSizeOf(Files.size(to)))
+                            worker.Patch(from, to, hash);
+                        else
+                            Copy(from, to, local.get(DeltaUtil.ByteToHexString(hash)), destination);
+                    }
+                } catch (IOException | NoSuchAlgorithmException | RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "delta-sync-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        try {
+            for (Thread t : workers)
+                t.join();
+        } catch (InterruptedException e) {
+            for (Thread t : workers)
+                t.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the sync threads");
+        }
+
+        Exception e = failure.get();
+        if(e instanceof IOException)
+            throw (IOException) e;
+        if(e instanceof NoSuchAlgorithmException)
+            throw (NoSuchAlgorithmException) e;
+        if(e != null)
+            throw (RuntimeException) e;
+    }
+
+    // every symbolic link under the root by relative path, links to folders are not descended into
+    private static Map<String, Path> Links(Path root) throws IOException {
+        TreeMap<String, Path> links = new TreeMap<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return DeltaScanner.IsExcluded(dir.toString()) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if(attrs.isSymbolicLink())
+                    links.put(root.relativize(file).toString().replace(java.io.File.separatorChar, '/'), Files.readSymbolicLink(file));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return links;
+    }
+
+    /**
+     * Makes every source link a link with the same target in the destination
+     * with delete a destination link is deleted only when nothing at all is at its path in the source
+     */
+    private void SyncLinks(Path source, Path destination, List<String> deletes) throws IOException {
+        // a link under a conflict would be created through the destination link kept there
+        HashSet<String> conflicts = new HashSet<>(Conflicts);
+        for (Map.Entry<String, Path> e : SourceLinks.entrySet()) {
+            if(UnderAny(e.getKey(), conflicts))
+                continue;
+            Path to = destination.resolve(e.getKey());
+            Path current = DestinationLinks.get(e.getKey());
+            if(e.getValue().equals(current))
+                continue;
+            if(current == null && Files.exists(to, LinkOption.NOFOLLOW_LINKS)){
+                if(!Delete){
+                    Conflicts.add(e.getKey());
+                    continue;
+                }
+                DeleteTree(to);
+            }else if(current != null){
+                Files.deleteIfExists(to);
+            }
+            Files.createDirectories(to.getParent());
+            Files.createSymbolicLink(to, e.getValue());
+            LinksSynced++;
+        }
+        if(!Delete)
+            return;
+        HashSet<String> deleted = new HashSet<>(deletes);
+        for (String relative : DestinationLinks.keySet())
+            if(!SourceLinks.containsKey(relative) && !UnderAny(relative, deleted) && !Files.exists(source.resolve(relative), LinkOption.NOFOLLOW_LINKS))
+                deletes.add(relative);
+    }
+
+    // copies the whole file, from a destination file with the same content when there is one
+    private void Copy(Path from, Path to, String local, Path destination) throws IOException {
+        long size = Files.size(from);
+        Files.createDirectories(to.getParent());
+        if(local != null){
+            Files.copy(destination.resolve(local), to, StandardCopyOption.REPLACE_EXISTING);
+            Files.setLastModifiedTime(to, Files.getLastModifiedTime(from));
+            LocalBytes.addAndGet(size);
+        }else{
+            Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            TransferredBytes.addAndGet(size);
+        }
+        FilesCopied.incrementAndGet();
+        LogicalBytes.addAndGet(size);
+    }
+
+    /**
+     * @return the block size for a destination file of the given size, about its square root
+     */
+    int BlockSizeOf(long size){
+        long block = BlockSize > 0 ? BlockSize : Math.max(MIN_BLOCK_SIZE, (long) Math.sqrt(size) & ~7L);
+        return (int) Math.min(Integer.MAX_VALUE / 4, Math.max(block, (size + MAX_BLOCKS - 1) / MAX_BLOCKS));
+    }
+
+    private static boolean Nested(String parent, String child){
+        return child.equals(parent) || child.startsWith(parent.endsWith(java.io.File.separator) ? parent : parent + java.io.File.separator);
+    }
+
+    private static boolean UnderAny(String relative, Set<String> folders){
+        for (int n = relative.lastIndexOf('/'); n > 0; n = relative.lastIndexOf('/', n - 1))
+            if(folders.contains(relative.substring(0, n)))
+                return true;
+        return false;
+    }
+
+    private static void DeleteTree(Path root) throws IOException {
+        if(!Files.exists(root, LinkOption.NOFOLLOW_LINKS))
+            return;
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if(e != null)
+                    throw e;
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // rsync weak checksum of len bytes, two 16 bit sums packed in an int
+    static int Weak(byte[] data, int offset, int len){
+        int a = 0, b = 0;
+        for (int i = 0; i < len; i++) {
+            int x = data[offset + i] & 0xff;
+            a += x;
+            b += (len - i) * x;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    public long getLogicalBytes(){
+        return LogicalBytes.get();
+    }
+
+    public long getTransferredBytes(){
+        return TransferredBytes.get();
+    }
+
+    public List<String> getConflicts(){
+        return Conflicts;
+    }
+
+    public String Summary(){
+        long logical = LogicalBytes.get();
+        return String.format(" Synced %d files copied, %d patched, %d links, %d deleted, %d folders visited, %d subtrees skipped%n"
+                        + " %s synced, %s transferred (%.1f%%), %s reused from the destination, %s of block signatures, %d ms",
+                FilesCopied.get(), FilesPatched.get(), LinksSynced, FilesDeleted, FoldersVisited, SubtreesPruned,
+                DeltaUtil.GetHumanReadableSize(logical), DeltaUtil.GetHumanReadableSize(TransferredBytes.get()),
+                logical == 0 ? 0.0 : TransferredBytes.get() * 100.0 / logical,
+                DeltaUtil.GetHumanReadableSize(MatchedBytes.get() + LocalBytes.get()),
+                DeltaUtil.GetHumanReadableSize(SignatureBytes.get()), Nanos / 1000000);
+    }
+
+    private static class Task {
+        private final String Relative;
+        private final boolean Patch;
+
+        private Task(String relative, boolean patch){
+            Relative = relative;
+            Patch = patch;
+        }
+    }
+
+    // the state one sync thread reuses from file to file
+    private class Worker {
+        private final MessageDigest Md;
+        private byte[] Window;
+        private int[] Weaks;
+        private byte[] Strongs;
+        private int[] Heads;
+        private int[] Chain;
+
+        private Worker(MessageDigest md){
+            Md = md;
+            Window = new byte[0];
+        }
+
+        private void Patch(Path from, Path to, byte[] hash) throws IOException, NoSuchAlgorithmException {
+            long size = Files.size(from);
+            Path temp = to.resolveSibling("." + to.getFileName() + ".delta-sync");
+            long literal;
+            long matched;
+            try {
+                try(FileChannel basis = FileChannel.open(to, StandardOpenOption.READ);
+                    FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+                    int block = BlockSizeOf(basis.size());
+                    int blocks = Sign(basis, block);
+                    long[] counts = Scan(in, basis, out, block, blocks);
+                    literal = counts[0];
+                    matched = counts[1];
+                }
+                // a file changed since it was hashed, or a strong hash collision, is caught here
+                byte[] written = DeltaHash.FileChunkHash(temp, size, CHUNK_SIZE, -1, Hasher.getProvider(), DeltaHash.DEFAULT_READ_SIZE);
+                if(!MessageDigest.isEqual(written, hash)){
+                    Files.deleteIfExists(temp);
+                    Copy(from, to, null, null);
+                    return;
+                }
+                Files.setLastModifiedTime(temp, Files.getLastModifiedTime(from));
+                try {
+                    Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(from));
+                } catch (UnsupportedOperationException e) {
+                    // no posix permissions on this file system
+                }
+                Files.move(temp, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            FilesPatched.incrementAndGet();
+            LogicalBytes.addAndGet(size);
+            TransferredBytes.addAndGet(literal);
+            MatchedBytes.addAndGet(matched);
+        }
+
+        // weak and strong hash of every whole block of the basis, chained by weak hash, returns the block count
+        private int Sign(FileChannel basis, int block) throws IOException {
+            int blocks = (int) (basis.size() / block);
+            int digestLength = Md.getDigestLength();
+            if(Weaks == null || Weaks.length < blocks){
+                Weaks = new int[blocks];
+                Chain = new int[blocks];
+            }
+            if(Strongs == null || Strongs.length < blocks * digestLength)
+                Strongs = new byte[blocks * digestLength];
+            int slots = Integer.highestOneBit(Math.max(1, blocks) * 2 - 1) << 1;
+            if(Heads == null || Heads.length != slots)
+                Heads = new int[slots];
+            Arrays.fill(Heads, -1);
+            EnsureWindow(block);
+            ByteBuffer bb = DeltaHash.ReadBuffer(block);
+            basis.position(0);
+            for (int i = 0; i < blocks; i++) {
+                bb.clear().limit(block);
+                if(DeltaHash.ReadFully(basis, bb) != block)
+                    throw new IOException("Destination file changed while it was signed");
+                bb.flip();
+                bb.get(Window, 0, block);
+                Weaks[i] = Weak(Window, 0, block);
+                Md.update(Window, 0, block);
+                System.arraycopy(Md.digest(), 0, Strongs, i * digestLength, digestLength);
+            }
+            // inserted last to first so a chain lists the earlier blocks first
+            for (int i = blocks - 1; i >= 0; i--) {
+                int slot = Slot(Weaks[i]);
+                Chain[i] = Heads[slot];
+                Heads[slot] = i;
+            }
+            SignatureBytes.addAndGet((long) blocks * (4 + digestLength));
+            return blocks;
+        }
+
+        /**
+         * Writes the source as runs of basis blocks and the literal bytes between them
+         * @return literal bytes written and bytes reused from the basis
+         */
+        private long[] Scan(FileChannel in, FileChannel basis, FileChannel out, int block, int blocks) throws IOException {
+            EnsureWindow(Math.max(WINDOW_SIZE, 2 * block));
+            byte[] buf = Window;
+            int start = 0, end = 0, lit = 0;
+            boolean eof = false;
+            boolean valid = false;
+            int a = 0, b = 0;
+            // basis bytes matched but not written yet, consecutive blocks are written as one transfer
+            long runStart = 0, runLength = 0;
+            long literal = 0, matched = 0;
+            while (true){
+                if(start + block >= end && !eof){
+                    // literals are written before the window moves so it only ever holds one block of history
+                    runLength = WriteRun(basis, out, runStart, runLength);
+                    literal += WriteLiteral(out, buf, lit, start);
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    lit = 0;
+                    ByteBuffer bb = ByteBuffer.wrap(buf, end, buf.length - end);
+                    int n = DeltaHash.ReadFully(in, bb);
+                    if(n < buf.length - end)
+                        eof = true;
+                    end += Math.max(0, n);
+                }
+                if(start + block > end)
+                    break;
+                if(!valid){
+                    int w = Weak(buf, start, block);
+                    a = w & 0xffff;
+                    b = w >>> 16;
+                    valid = true;
+                }
+                int match = Find((a & 0xffff) | (b << 16), buf, start, block, blocks, runLength == 0 ? -1 : (runStart + runLength) / block);
+                if(match >= 0){
+                    if(lit < start){
+                        runLength = WriteRun(basis, out, runStart, runLength);
+                        literal += WriteLiteral(out, buf, lit, start);
+                    }
+                    if(runLength > 0 && runStart + runLength == (long) match * block){
+                        runLength += block;
+                    }else{
+                        runLength = WriteRun(basis, out, runStart, runLength);
+                        runStart = (long) match * block;
+                        runLength = block;
+                    }
+                    matched += block;
+                    start += block;
+                    lit = start;
+                    valid = false;
+                    continue;
+                }
+                if(start + block >= end)
+                    break;
+                // rolls the window one byte on
+                int x = buf[start] & 0xff;
+                int y = buf[start + block] & 0xff;
+                a += y - x;
+                b += a - block * x;
+                start++;
+            }
+            WriteRun(basis, out, runStart, runLength);
+            literal += WriteLiteral(out, buf, lit, end);
+            return new long[]{literal, matched};
+        }
+
+        // the block with this weak hash and the same strong hash as the window, the block after the last match is tried first
+        private int Find(int weak, byte[] buf, int start, int block, int blocks, long expected){
+            byte[] strong = null;
+            int digestLength = Md.getDigestLength();
+            if(expected >= 0 && expected < blocks && Weaks[(int) expected] == weak){
+                Md.update(buf, start, block);
+                strong = Md.digest();
+                if(Arrays.equals(strong, 0, digestLength, Strongs, (int) expected * digestLength, (int) expected * digestLength + digestLength))
+                    return (int) expected;
+            }
+            for (int i = Heads[Slot(weak)]; i >= 0; i = Chain[i]) {
+                if(Weaks[i] != weak)
+                    continue;
+                if(strong == null){
+                    Md.update(buf, start, block);
+                    strong = Md.digest();
+                }
+                if(Arrays.equals(strong, 0, digestLength, Strongs, i * digestLength, i * digestLength + digestLength))
+                    return i;
+            }
+            return -1;
+        }
+
+        private int Slot(int weak){
+            int h = weak * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & (Heads.length - 1);
+        }
+
+        private void EnsureWindow(int size){
+            if(Window.length < size)
+                Window = new byte[size];
+        }
+
+        private long WriteRun(FileChannel basis, FileChannel out, long position, long length) throws IOException {
+            long done = 0;
+            while (done < length)
+                done += basis.transferTo(position + done, length - done, out);
+            return 0;
+        }
+
+        private long WriteLiteral(FileChannel out, byte[] buf, int from, int to) throws IOException {
+            ByteBuffer bb = ByteBuffer.wrap(buf, from, to - from);
+            while (bb.hasRemaining())
+                out.write(bb);
+            return to - from;
+        }
+    }
+}
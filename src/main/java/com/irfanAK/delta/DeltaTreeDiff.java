@@ -0,0 +1,358 @@
+package com.irfanAK.delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Compares two trees through the folder hashes FolderHash builds, a folder with the same hash on both sides is not descended into
+ * so the folders compared grow with the size of the change, not with the size of the trees
+ * snapshots resolve entries and list folders only when the diff asks for them, so the entries looked at grow with the change too
+ * a snapshot of a folder still hashes it first, a stat per entry, only new or changed files are read
+ * the text index is not ordered, so a snapshot of an index reads it through once and keeps only the entries under its root
+ * the trees are a folder hashed by a DeltaHash or a root inside an index saved by DumpToFile
+ * folder hashes are built from the content of the children without their names, so a subtree with the same content
+ * is treated as identical even when files inside it were renamed, the diff reports content, not names
+ */
+public class DeltaTreeDiff {
+
+    public enum ChangeType { ADDED, REMOVED, MODIFIED, MOVED }
+
+    public enum Relation {
+        IDENTICAL,   // same content
+        SUBSET,      // B has everything of A and more
+        SUPERSET,    // A has everything of B and more
+        OVERLAPPING, // some content in common, each side has content the other lacks
+        UNRELATED    // no content in common
+    }
+
+    private final Snapshot A;
+    private final Snapshot B;
+    private final ArrayList<Change> Changes;
+    private int FoldersVisited;
+    private int SubtreesPruned;
+    private boolean Shared;
+
+    public DeltaTreeDiff(Snapshot a, Snapshot b) throws IOException {
+        A = a;
+        B = b;
+        Changes = new ArrayList<>();
+        ArrayList<String> removed = new ArrayList<>();
+        ArrayList<String> added = new ArrayList<>();
+        Compare("", removed, added);
+        MatchMoves(removed, added);
+    }
+
+    // walks both trees at once, removed and added collect the top of every subtree found on one side only
+    private void Compare(String path, ArrayList<String> removed, ArrayList<String> added) throws IOException {
+        DeltaHashEntry a = A.Get(path);
+        DeltaHashEntry b = B.Get(path);
+        if(a == null && b == null)
+            return;
+        if(b == null){
+            removed.add(path);
+            return;
+        }
+        if(a == null){
+            added.add(path);
+            return;
+        }
+        if(a.isDirectory() != b.isDirectory()){
+            removed.add(path);
+            added.add(path);
+            return;
+        }
+        if(Arrays.equals(a.getHash(), b.getHash())){
+            Shared = true;
+            if(a.isDirectory())
+                SubtreesPruned++;
+            return;
+        }
+        if(!a.isDirectory()){
+            Changes.add(new Change(ChangeType.MODIFIED, path, path));
+            return;
+        }
+        FoldersVisited++;
+        TreeSet<String> names = new TreeSet<>(A.Children(path));
+        names.addAll(B.Children(path));
+        for (String name : names)
+            Compare(Snapshot.Child(path, name), removed, added);
+    }
+
+    /**
+     * A subtree removed on one side and added on the other with the same hash is a move, whole folders are matched first
+     * the remaining subtrees are expanded to their files, which are matched by hash again
+     */
+    private void MatchMoves(ArrayList<String> removed, ArrayList<String> added) throws IOException {
+        HashMap<String, ArrayDeque<String>> addedByHash = new HashMap<>();
+        for (String path : added)
+            addedByHash.computeIfAbsent(HashKey(B.Get(path)), k -> new ArrayDeque<>()).add(path);
+        ArrayList<String> removedLeft = new ArrayList<>();
+        for (String path : removed) {
+            ArrayDeque<String> to = addedByHash.get(HashKey(A.Get(path)));
+            if(to != null && !to.isEmpty()){
+                Changes.add(new Change(ChangeType.MOVED, path, to.poll()));
+                Shared = true;
+            }else{
+                removedLeft.add(path);
+            }
+        }
+
+        ArrayList<String> removedFiles = new ArrayList<>();
+        for (String path : removedLeft)
+            A.Files(path, removedFiles);
+        ArrayList<String> addedFiles = new ArrayList<>();
+        for (ArrayDeque<String> paths : addedByHash.values())
+            for (String path : paths)
+                B.Files(path, addedFiles);
+
+        HashMap<String, ArrayDeque<String>> addedFilesByHash = new HashMap<>();
+        for (String path : addedFiles)
+            addedFilesByHash.computeIfAbsent(HashKey(B.Get(path)), k -> new ArrayDeque<>()).add(path);
+        for (String path : removedFiles) {
+            ArrayDeque<String> to = addedFilesByHash.get(HashKey(A.Get(path)));
+            if(to != null && !to.isEmpty()){
+                Changes.add(new Change(ChangeType.MOVED, path, to.poll()));
+                Shared = true;
+            }else{
+                Changes.add(new Change(ChangeType.REMOVED, path, null));
+            }
+        }
+        for (ArrayDeque<String> paths : addedFilesByHash.values())
+            for (String path : paths)
+                Changes.add(new Change(ChangeType.ADDED, null, path));
+        Changes.sort(Comparator.comparing(Change::getSortPath));
+    }
+
+    private static String HashKey(DeltaHashEntry entry){
+        return (entry.isDirectory() ? "D" : "F") + DeltaUtil.ByteToHexString(entry.getHash());
+    }
+
+    public Relation getRelation(){
+        boolean removed = false;
+        boolean added = false;
+        for (Change c : Changes) {
+            removed |= c.getType() == ChangeType.REMOVED || c.getType() == ChangeType.MODIFIED;
+            added |= c.getType() == ChangeType.ADDED || c.getType() == ChangeType.MODIFIED;
+        }
+        if(!removed && !added)
+            return Relation.IDENTICAL;
+        if(!Shared)
+            return Relation.UNRELATED;
+        if(!removed)
+            return Relation.SUBSET;
+        if(!added)
+            return Relation.SUPERSET;
+        return Relation.OVERLAPPING;
+    }
+
+    /**
+     * @return the changes from A to B ordered by path, paths are relative to the roots
+     */
+    public List<Change> getChanges(){
+        return Collections.unmodifiableList(Changes);
+    }
+
+    public int getFoldersVisited(){
+        return FoldersVisited;
+    }
+
+    public int getSubtreesPruned(){
+        return SubtreesPruned;
+    }
+
+    /**
+     * @return one line per change, "MOVED from -> to" for moves
+     */
+    public List<String> ReportLines(){
+        ArrayList<String> lines = new ArrayList<>();
+        for (Change c : Changes) {
+            if(c.getType() == ChangeType.MOVED)
+                lines.add(c.getType() + " " + c.getFrom() + " -> " + c.getTo());
+            else
+                lines.add(c.getType() + " " + c.getSortPath());
+        }
+        return lines;
+    }
+
+    public String Summary(){
+        int[] counts = new int[ChangeType.values().length];
+        for (Change c : Changes)
+            counts[c.getType().ordinal()]++;
+        return " " + getRelation() + ", added " + counts[ChangeType.ADDED.ordinal()] + ", removed " + counts[ChangeType.REMOVED.ordinal()]
+                + ", modified " + counts[ChangeType.MODIFIED.ordinal()] + ", moved " + counts[ChangeType.MOVED.ordinal()]
+                + ", " + FoldersVisited + " folders visited, " + SubtreesPruned + " identical subtrees pruned";
+    }
+
+    public static class Change {
+        private final ChangeType Type;
+        // path in A, null when added
+        private final String From;
+        // path in B, null when removed
+        private final String To;
+
+        private Change(ChangeType type, String from, String to){
+            Type = type;
+            From = from;
+            To = to;
+        }
+
+        public ChangeType getType(){
+            return Type;
+        }
+
+        public String getFrom(){
+            return From;
+        }
+
+        public String getTo(){
+            return To;
+        }
+
+        private String getSortPath(){
+            return From != null ? From : To;
+        }
+    }
+
+    /**
+     * The entries of one tree keyed by their path relative to the root, "" being the root itself
+     * the entries and children of a folder are only resolved once they are asked for, so a diff only looks at the folders it descends into
+     * only the entries a DeltaHash with the given chunks would use are taken, files fully hashed under those chunks use their full hash
+     * a path is only taken for the entry at that path, what a link points to is not listed under the link's name
+     */
+    public static class Snapshot {
+        private final String Root;
+        private final int ChunkSize;
+        private final int ChunkCount;
+        // the DeltaHash the tree was hashed with, null for a snapshot read from an index
+        private final DeltaHash Hasher;
+        // entries and children resolved so far, a snapshot read from an index has all of them from the start
+        private final HashMap<String, DeltaHashEntry> Entries;
+        private final HashMap<String, List<String>> Children;
+
+        private Snapshot(DeltaHash dh, String root, int chunkSize, int chunkCount){
+            Hasher = dh;
+            Root = root;
+            ChunkSize = chunkSize;
+            ChunkCount = chunkCount;
+            Entries = new HashMap<>();
+            Children = new HashMap<>();
+        }
+
+        /**
+         * Hashes the folder with the given DeltaHash, unchanged entries come from its cache
+         * the entries are then looked up in its cache and the folders listed as the snapshot is walked
+         */
+        public static Snapshot Of(DeltaHash dh, Path root, int chunkSize, int chunkCount) throws IOException, NoSuchAlgorithmException {
+            dh.DeltaFileHash(root, chunkSize, chunkCount);
+            return new Snapshot(dh, root.toFile().getCanonicalPath(), chunkSize, chunkCount);
+        }
+
+        /**
+         * The tree under the given root as saved in an index, the files are not looked at
+         * the index is read through once and only the entries under the root are kept
+         * @param root canonical path of the root in the index
+         */
+        public static Snapshot OfIndex(Path index, String algorithm, String root, int chunkSize, int chunkCount) throws IOException {
+            Snapshot snapshot = new Snapshot(null, root, chunkSize, chunkCount);
+            DeltaHash dh = new DeltaHash(algorithm);
+            for (Map.Entry<String, DeltaHashEntry> e : DeltaHash.LoadSubtree(index, algorithm, root).entrySet()) {
+                String path = DeltaHash.KeyPath(e.getKey());
+                if(!e.getKey().startsWith(snapshot.KeyPrefix(dh, e.getValue())))
+                    continue;
+                snapshot.Entries.put(snapshot.Relative(path), e.getValue());
+            }
+            for (String relative : snapshot.Entries.keySet()) {
+                if(relative.isEmpty())
+                    continue;
+                int n = relative.lastIndexOf('/');
+                String parent = n < 0 ? "" : relative.substring(0, n);
+                snapshot.Children.computeIfAbsent(parent, k -> new ArrayList<>()).add(relative.substring(n + 1));
+            }
+            if(snapshot.Get("") == null)
+                throw new IOException("No entry for " + root + " in " + index);
+            return snapshot;
+        }
+
+        public synchronized DeltaHashEntry Get(String relative){
+            if(Hasher == null || Entries.containsKey(relative))
+                return Entries.get(relative);
+            String path = Absolute(relative);
+            Map<String, DeltaHashEntry> cache = Hasher.getFilesHashed();
+            // a folder and a sampled file share the chunks key, a path is only ever one of them
+            DeltaHashEntry entry = cache.get(ChunkSize + ":" + ChunkCount + ":" + path);
+            if(entry == null || !ChunkKey(entry)){
+                entry = cache.get("FULL:0:" + path);
+                if(entry != null && ChunkKey(entry))
+                    entry = null;
+            }
+            Entries.put(relative, entry);
+            return entry;
+        }
+
+        /**
+         * @return the names of the entries in the folder, listed from the file system the first time for a hashed tree
+         */
+        public synchronized List<String> Children(String relative) throws IOException {
+            List<String> names = Children.get(relative);
+            if(names != null)
+                return names;
+            names = new ArrayList<>();
+            DeltaHashEntry entry = Get(relative);
+            if(Hasher != null && entry != null && entry.isDirectory()){
+                for (DeltaFileEntry child : DeltaScanner.ListChildren(DeltaFileEntry.Of(Path.of(Absolute(relative))))) {
+                    String name = child.getPath().getFileName().toString();
+                    String path = Child(relative, name);
+                    if(child.getCanonicalPath().equals(Absolute(path)) && Get(path) != null)
+                        names.add(name);
+                }
+            }
+            Children.put(relative, names);
+            return names;
+        }
+
+        // every file under the given path, the path itself when it is a file
+        void Files(String relative, List<String> files) throws IOException {
+            DeltaHashEntry entry = Get(relative);
+            if(entry == null)
+                return;
+            if(!entry.isDirectory()){
+                files.add(relative);
+                return;
+            }
+            for (String name : Children(relative))
+                Files(Child(relative, name), files);
+        }
+
+        static String Child(String parent, String name){
+            return parent.isEmpty() ? name : parent + "/" + name;
+        }
+
+        // whether an entry with this size and type is cached under the chunks key, not the full hash key
+        private boolean ChunkKey(DeltaHashEntry entry){
+            return KeyPrefix(Hasher, entry).equals(ChunkSize + ":" + ChunkCount + ":");
+        }
+
+        // with chunkCount -1 folders are keyed "FULL:0:" as well
+        private String KeyPrefix(DeltaHash dh, DeltaHashEntry entry){
+            boolean full = ChunkCount == -1 || !entry.isDirectory() && dh.IsFullHashed(entry.getSize(), ChunkSize, ChunkCount);
+            return full ? "FULL:0:" : ChunkSize + ":" + ChunkCount + ":";
+        }
+
+        private String Absolute(String relative){
+            if(relative.isEmpty())
+                return Root;
+            return (Root.endsWith(File.separator) ? Root : Root + File.separator) + relative.replace('/', File.separatorChar);
+        }
+
+        // relative paths always use '/' so Child can build them on any platform
+        private String Relative(String path){
+            if(path.equals(Root))
+                return "";
+            String relative = path.substring(Root.endsWith(File.separator) ? Root.length() : Root.length() + 1);
+            return relative.replace(File.separatorChar, '/');
+        }
+    }
+}
@@ -1,54 +1,108 @@
 package com.irfanAK.delta;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 
 import static java.lang.Integer.min;
 
 public class DeltaUtil {
 
+    // buckets smaller than this are finished with an insertion sort instead of another radix pass
+    private static final int INSERTION_SORT_THRESHOLD = 32;
+
+    /**
+     * Sorts fixed length hashes in signed byte order, the order folder hashes are built on
+     * the hashes are packed into one byte slab and an index array is MSD radix sorted over it
+     * so no list is rebuilt per element and the recursion depth is bounded by the hash length
+     * @param input hashes all of the same length, not modified
+     * @return new list holding the input hashes in sorted order
+     */
     public static ArrayList<byte[]> HashesSort(ArrayList<byte[]> input){
-        if(input.size() < 1)
-            return input;
-
-        ArrayList<byte[]> left = new ArrayList<>();
-        ArrayList<byte[]> right = new ArrayList<>();
-        byte[] pivot = input.remove(0);
-
-        while (input.size() > 0){
-            byte[] ele = input.remove(0);
-            if(compareByteArray(pivot,ele) > 0){
-                left.add(ele);
-            }else {
-                right.add(ele);
-            }
+        int n = input.size();
+        if(n < 2)
+            return new ArrayList<>(input);
+
+        int width = input.get(0).length;
+        byte[] slab = new byte[n * width];
+        int[] index = new int[n];
+        for (int i = 0; i < n; i++) {
+            byte[] hash = input.get(i);
+            if(hash.length != width)
+                throw new IllegalArgumentException("Unmatched Length of Arrays");
+            System.arraycopy(hash, 0, slab, i * width, width);
+            index[i] = i;
         }
 
-        left = HashesSort(left);
-        right = HashesSort(right);
+        RadixSort(slab, width, index, new int[n], new int[width + 1][257], 0, n, 0);
 
-        ArrayList<byte[]> sortedList = new ArrayList<>(left);
-        sortedList.add(pivot);
-        sortedList.addAll(right);
+        ArrayList<byte[]> sortedList = new ArrayList<>(n);
+        for (int i : index)
+            sortedList.add(input.get(i));
         return sortedList;
     }
 
-    private static int compareByteArray(byte[] a, byte[] b){
-        if(a.length != b.length)
-            throw new IllegalArgumentException("Unmatched Length of Arrays");
-
-        for (int i = 0; i < a.length; i++) {
-            if(a[i] == b[i])
-                continue;
-            if(a[i] > b[i])
-                return 1;
-            if(b[i] > a[i])
-                return -1;
+    /**
+     * MSD radix sort of index[lo, hi) by the width byte records of slab starting at byte depth
+     * counts holds one count table per depth so a bucket's boundaries survive sorting its sub-buckets
+     */
+    private static void RadixSort(byte[] slab, int width, int[] index, int[] scratch, int[][] counts, int lo, int hi, int depth){
+        if(hi - lo < INSERTION_SORT_THRESHOLD){
+            InsertionSort(slab, width, index, lo, hi, depth);
+            return;
+        }
+        if(depth == width)
+            return;
+
+        int[] count = counts[depth];
+        Arrays.fill(count, 0);
+        for (int i = lo; i < hi; i++)
+            count[RadixKey(slab, index[i] * width + depth) + 1]++;
+        for (int b = 0; b < 256; b++)
+            count[b + 1] += count[b];
+        for (int i = lo; i < hi; i++) {
+            int key = RadixKey(slab, index[i] * width + depth);
+            scratch[lo + count[key]++] = index[i];
+        }
+        System.arraycopy(scratch, lo, index, lo, hi - lo);
+
+        // after distributing, count[b] is the end of bucket b
+        int start = lo;
+        for (int b = 0; b < 256; b++) {
+            int end = lo + count[b];
+            if(end - start > 1)
+                RadixSort(slab, width, index, scratch, counts, start, end, depth + 1);
+            start = end;
+        }
+    }
+
+    private static void InsertionSort(byte[] slab, int width, int[] index, int lo, int hi, int depth){
+        for (int i = lo + 1; i < hi; i++) {
+            int current = index[i];
+            int j = i - 1;
+            while (j >= lo && CompareRecords(slab, width, index[j], current, depth) > 0){
+                index[j + 1] = index[j];
+                j--;
+            }
+            index[j + 1] = current;
         }
+    }
 
+    private static int CompareRecords(byte[] slab, int width, int a, int b, int depth){
+        int offsetA = a * width, offsetB = b * width;
+        for (int i = depth; i < width; i++) {
+            int c = Byte.compare(slab[offsetA + i], slab[offsetB + i]);
+            if(c != 0)
+                return c;
+        }
         return 0;
     }
 
+    // bucket of a signed byte, so bucket order matches the signed byte order
+    private static int RadixKey(byte[] slab, int position){
+        return (slab[position] + 128) & 0xFF;
+    }
+
     public static String ByteToHexString(byte[] byteArray)
     {
         StringBuilder hex = new StringBuilder();
@@ -57,6 +111,16 @@ public class DeltaUtil {
         return hex.toString();
     }
 
+    public static byte[] HexStringToByte(String hex)
+    {
+        if(hex.length() % 2 != 0)
+            throw new IllegalArgumentException("Hex string must have an even length. length can not be " + hex.length() + ".");
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return bytes;
+    }
+
     public static String GetHumanReadableSize(long size) {
         String[] sizeUnits = new String[]{"bytes", "kb", "mb", "gb", "tb", "pb"};
         int unitIndex;
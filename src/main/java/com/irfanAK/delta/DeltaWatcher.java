@@ -0,0 +1,425 @@
+package com.irfanAK.delta;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the hashes and duplicate groups of a set of folders live, instead of rescanning them for every dump
+ * every folder under the roots is registered with a WatchService, the changed paths of a burst of events are collected
+ * until no event came for the debounce time and are then applied together, a path changed many times is hashed once
+ * only the changed files are hashed, the folder entries above them are dropped from the DeltaHash cache and recomputed on their next hash
+ * when the watch service drops events (overflow) the roots are rescanned, unchanged files are served from the cache
+ * the duplicate groups are kept by size and hash and updated per file, so a query costs a map lookup
+ * only files are grouped, folders with the same content are not kept as groups, DUMP reports those
+ * on linux every folder takes one inotify watch, large trees need fs.inotify.max_user_watches raised
+ */
+public class DeltaWatcher implements Closeable {
+
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 500;
+    // a steady stream of events is still applied every this many debounce periods
+    private static final int MAX_DELAY_FACTOR = 10;
+
+    private final DeltaHash Hasher;
+    private final List<Path> Roots;
+    private final int ChunkSize;
+    private final int ChunkCount;
+    private final long DebounceMillis;
+    private final WatchService Service;
+    private final ConcurrentHashMap<WatchKey, Path> Keys;
+    private final ConcurrentHashMap<Path, WatchKey> Folders;
+    // group of every file by canonical path, sorted so the files under a removed folder are one range
+    private final ConcurrentSkipListMap<String, Group> FileGroups;
+    // every group keyed by GroupKey
+    private final ConcurrentHashMap<ByteBuffer, Group> Groups;
+    // the groups holding more than one file
+    private final Set<Group> Duplicated;
+    private final AtomicLong Events;
+    private final AtomicLong Batches;
+    private final AtomicLong FilesRehashed;
+    private final AtomicLong Rescans;
+    private volatile boolean Running;
+
+    /**
+     * @param hasher hashes the files, an index loaded into it saves rehashing unchanged files on the first scan
+     * @param roots folders to watch
+     * @param chunkSize same as DeltaFileHash
+     * @param chunkCount same as DeltaFileHash
+     * @param debounceMillis quiet time after an event before the collected changes are applied
+     */
+    public DeltaWatcher(DeltaHash hasher, List<Path> roots, int chunkSize, int chunkCount, long debounceMillis) throws IOException {
+        if(debounceMillis < 1)
+            throw new IllegalArgumentException("Debounce must be a positive number. debounceMillis can not be " + debounceMillis + ".");
+        if(roots.isEmpty())
+            throw new IllegalArgumentException("Roots must not be empty.");
+        Hasher = hasher;
+        Roots = new ArrayList<>();
+        for (Path root : roots) {
+            DeltaFileEntry entry = DeltaFileEntry.Of(root);
+            if(!entry.isDirectory())
+                throw new IllegalArgumentException("Root must be a folder. root can not be " + root + ".");
+            Roots.add(Path.of(entry.getCanonicalPath()));
+        }
+        ChunkSize = chunkSize;
+        ChunkCount = chunkCount;
+        DebounceMillis = debounceMillis;
+        Service = Roots.get(0).getFileSystem().newWatchService();
+        Keys = new ConcurrentHashMap<>();
+        Folders = new ConcurrentHashMap<>();
+        FileGroups = new ConcurrentSkipListMap<>();
+        Groups = new ConcurrentHashMap<>();
+        Duplicated = ConcurrentHashMap.newKeySet();
+        Events = new AtomicLong();
+        Batches = new AtomicLong();
+        FilesRehashed = new AtomicLong();
+        Rescans = new AtomicLong();
+        Running = true;
+    }
+
+    /**
+     * Registers the folders and hashes every file under the roots, to be called before Run
+     */
+    public void Start() throws IOException, NoSuchAlgorithmException {
+        Rescan();
+    }
+
+    /**
+     * Applies the changes as they come until close is called, blocks the calling thread
+     */
+    public void Run() throws IOException, NoSuchAlgorithmException {
+        LinkedHashSet<Path> pending = new LinkedHashSet<>();
+        boolean overflow = false;
+        long firstEvent = 0;
+        try {
+            while (Running){
+                boolean idle = pending.isEmpty() && !overflow;
+                WatchKey key = idle ? Service.take() : Service.poll(DebounceMillis, TimeUnit.MILLISECONDS);
+                if(key != null){
+                    Path folder = Keys.get(key);
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        Events.incrementAndGet();
+                        if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+                            overflow = true;
+                        else if(folder != null)
+                            pending.add(folder.resolve((Path) event.context()));
+                    }
+                    // a key that can not be reset belongs to a folder that is gone
+                    if(!key.reset())
+                        Unregister(key);
+                    if(firstEvent == 0)
+                        firstEvent = System.currentTimeMillis();
+                    if(System.currentTimeMillis() - firstEvent < DebounceMillis * MAX_DELAY_FACTOR)
+                        continue;
+                }
+                if(!pending.isEmpty() || overflow){
+                    Batches.incrementAndGet();
+                    if(overflow)
+                        Rescan();
+                    else
+                        Apply(pending);
+                }
+                pending.clear();
+                overflow = false;
+                firstEvent = 0;
+            }
+        } catch (ClosedWatchServiceException e) {
+            // closed while waiting
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // applies one batch of changed paths, each path is looked at once however many events it had
+    private void Apply(Set<Path> changed) throws IOException, NoSuchAlgorithmException {
+        for (Path path : changed) {
+            if(DeltaScanner.IsExcluded(path.toString()))
+                continue;
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                if(attrs.isDirectory()){
+                    // a folder already registered only had its own attributes or direct children change, those come as their own events
+                    if(Folders.containsKey(path))
+                        Hasher.Forget(path.toString(), ChunkSize, ChunkCount);
+                    else
+                        RescanFolder(path);
+                }else if(attrs.isRegularFile()){
+                    Update(new DeltaFileEntry(path, path.toString(), attrs));
+                }
+            } catch (NoSuchFileException | FileNotFoundException e) {
+                // gone, possibly removed after its event while the batch was waiting
+                Remove(path.toString());
+            } catch (IOException e) {
+                // one unreadable path does not stop the watch, its next event tries again
+                System.out.println(" Could not update " + path + " " + e);
+            }
+        }
+    }
+
+    // a folder created or moved in, its files are hashed and files no longer under it are dropped
+    private void RescanFolder(Path folder) throws IOException, NoSuchAlgorithmException {
+        Register(folder);
+        HashSet<String> seen = new HashSet<>();
+        for (DeltaFileEntry file : DeltaScanner.ListFiles(List.of(folder))) {
+            seen.add(file.getCanonicalPath());
+            Update(file);
+        }
+        String prefix = folder + File.separator;
+        for (String path : new ArrayList<>(FileGroups.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet()))
+            if(!seen.contains(path))
+                Remove(path);
+    }
+
+    /**
+     * Registers every folder and hashes every file under the roots again, files that are gone are dropped
+     * files unchanged since they were hashed are served from the cache of the DeltaHash
+     */
+    public void Rescan() throws IOException, NoSuchAlgorithmException {
+        Rescans.incrementAndGet();
+        for (Path root : Roots)
+            Register(root);
+        List<DeltaFileEntry> files = DeltaScanner.ListFiles(Roots);
+        // hashed on the pool of the DeltaHash first, the updates below then find every file cached
+        Hasher.HashAll(files, ChunkSize, ChunkCount);
+        HashSet<String> seen = new HashSet<>();
+        for (DeltaFileEntry file : files) {
+            seen.add(file.getCanonicalPath());
+            Update(file);
+        }
+        for (String path : new ArrayList<>(FileGroups.keySet()))
+            if(!seen.contains(path))
+                Remove(path);
+    }
+
+    // registers the folder and every folder under it that is not registered yet
+    private void Register(Path folder) throws IOException {
+        Files.walkFileTree(folder, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if(DeltaScanner.IsExcluded(dir.toString()))
+                    return FileVisitResult.SKIP_SUBTREE;
+                if(!Folders.containsKey(dir)){
+                    WatchKey key = dir.register(Service, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    Keys.put(key, dir);
+                    Folders.put(dir, key);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // a folder removed while it is walked is picked up by its delete event
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void Unregister(WatchKey key){
+        Path folder = Keys.remove(key);
+        if(folder != null)
+            Folders.remove(folder, key);
+    }
+
+    // hashes a changed file and moves it to the group of its new hash
+    private void Update(DeltaFileEntry file) throws IOException, NoSuchAlgorithmException {
+        String path = file.getCanonicalPath();
+        if(file.getSize() == 0){
+            Remove(path);
+            return;
+        }
+        DeltaHashEntry entry = Hasher.HashEntry(file, ChunkSize, ChunkCount);
+        if(!entry.isReused()){
+            FilesRehashed.incrementAndGet();
+            // the file entry is fresh, only the folders above it are stale
+            Hasher.Forget(file.getPath().getParent().toString(), ChunkSize, ChunkCount);
+        }
+        ByteBuffer key = GroupKey(entry.getHash(), file.getSize());
+        Group old = FileGroups.get(path);
+        if(old != null && old.Key.equals(key))
+            return;
+        if(old != null)
+            Leave(old, path);
+        FileGroups.put(path, Join(key, path));
+    }
+
+    // the hash followed by the size
+    private static ByteBuffer GroupKey(byte[] hash, long size){
+        return ByteBuffer.allocate(hash.length + Long.BYTES).put(hash).putLong(size).flip();
+    }
+
+    // drops a file or every file under a folder that is gone
+    private void Remove(String path){
+        Group old = FileGroups.remove(path);
+        if(old != null)
+            Leave(old, path);
+        String prefix = path + File.separator;
+        Map<String, Group> under = FileGroups.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        for (Map.Entry<String, Group> e : new ArrayList<>(under.entrySet())) {
+            FileGroups.remove(e.getKey());
+            Leave(e.getValue(), e.getKey());
+        }
+        for (Path folder : new ArrayList<>(Folders.keySet()))
+            if(folder.toString().equals(path) || folder.toString().startsWith(prefix)){
+                WatchKey key = Folders.remove(folder);
+                if(key != null){
+                    key.cancel();
+                    Keys.remove(key);
+                }
+            }
+        Hasher.Forget(path, ChunkSize, ChunkCount);
+    }
+
+    private Group Join(ByteBuffer key, String path){
+        return Groups.compute(key, (k, group) -> {
+            if(group == null)
+                group = new Group(k);
+            group.Add(path);
+            if(group.Size() > 1)
+                Duplicated.add(group);
+            return group;
+        });
+    }
+
+    private void Leave(Group group, String path){
+        Groups.computeIfPresent(group.Key, (k, current) -> {
+            current.Remove(path);
+            if(current.Size() < 2)
+                Duplicated.remove(current);
+            return current.Size() == 0 ? null : current;
+        });
+    }
+
+    /**
+     * @return the other files with the same size and hash as the given one, empty when it has none or is not watched
+     */
+    public List<String> Duplicates(String canonicalPath){
+        Group group = FileGroups.get(canonicalPath);
+        ArrayList<String> duplicates = new ArrayList<>();
+        if(group == null)
+            return duplicates;
+        for (String f : group.Paths())
+            if(!f.equals(canonicalPath))
+                duplicates.add(f);
+        Collections.sort(duplicates);
+        return duplicates;
+    }
+
+    /**
+     * @return every group of files with the same size and hash, each group sorted by path
+     */
+    public List<List<String>> DuplicateGroups(){
+        ArrayList<List<String>> groups = new ArrayList<>();
+        for (Group g : Duplicated) {
+            List<String> group = g.Paths();
+            if(group.size() < 2)
+                continue;
+            Collections.sort(group);
+            groups.add(group);
+        }
+        groups.sort(Comparator.comparing(g -> g.get(0)));
+        return groups;
+    }
+
+    public int getFileCount(){
+        return FileGroups.size();
+    }
+
+    public int getFolderCount(){
+        return Folders.size();
+    }
+
+    public int getDuplicateGroupCount(){
+        return Duplicated.size();
+    }
+
+    public long getEvents(){
+        return Events.get();
+    }
+
+    public long getBatches(){
+        return Batches.get();
+    }
+
+    public long getFilesRehashed(){
+        return FilesRehashed.get();
+    }
+
+    public long getRescans(){
+        return Rescans.get();
+    }
+
+    public String Summary(){
+        return " Watching " + getFolderCount() + " folders, " + getFileCount() + " files, " + getDuplicateGroupCount() + " duplicate groups, "
+                + getEvents() + " events in " + getBatches() + " batches, " + getFilesRehashed() + " files hashed, " + getRescans() + " rescans";
+    }
+
+    /**
+     * Stops Run and releases the watches
+     */
+    @Override
+    public void close() throws IOException {
+        Running = false;
+        Service.close();
+    }
+
+    // files with one size and hash, most have a single file so a set is only made once a second file joins
+    // changed by the watch thread and read by queries, so every access locks the group
+    private static final class Group {
+        private final ByteBuffer Key;
+        private String Single;
+        private HashSet<String> Files;
+
+        private Group(ByteBuffer key){
+            Key = key;
+        }
+
+        private synchronized void Add(String path){
+            if(Files != null){
+                Files.add(path);
+            }else if(Single == null || Single.equals(path)){
+                Single = path;
+            }else{
+                Files = new HashSet<>();
+                Files.add(Single);
+                Files.add(path);
+                Single = null;
+            }
+        }
+
+        private synchronized void Remove(String path){
+            if(Files == null){
+                if(path.equals(Single))
+                    Single = null;
+                return;
+            }
+            Files.remove(path);
+            if(Files.size() == 1){
+                Single = Files.iterator().next();
+                Files = null;
+            }
+        }
+
+        private synchronized int Size(){
+            return Files != null ? Files.size() : Single == null ? 0 : 1;
+        }
+
+        private synchronized List<String> Paths(){
+            ArrayList<String> paths = new ArrayList<>();
+            if(Files != null)
+                paths.addAll(Files);
+            else if(Single != null)
+                paths.add(Single);
+            return paths;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.irfanAK.delta;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+
+/**
+ * Pure java XXH64 (seed 0) as a MessageDigest, so it can be used anywhere a MessageDigest is
+ * it is a fast non-cryptographic hash meant for finding candidates, not for proving two files are equal
+ * the digest is the 64 bit hash in big endian, the canonical XXH64 representation
+ */
+public class DeltaXXHash64 extends MessageDigest {
+
+    public static final String NAME = "XXH64";
+
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    private long v1, v2, v3, v4;
+    private long totalLength;
+    // input that does not yet fill a 32 byte stripe
+    private final byte[] stripe = new byte[32];
+    private int stripeLength;
+
+    public DeltaXXHash64(){
+        super(NAME);
+        engineReset();
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return 8;
+    }
+
+    @Override
+    protected void engineReset() {
+        v1 = PRIME64_1 + PRIME64_2;
+        v2 = PRIME64_2;
+        v3 = 0;
+        v4 = -PRIME64_1;
+        totalLength = 0;
+        stripeLength = 0;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        stripe[stripeLength++] = input;
+        totalLength++;
+        if(stripeLength == 32){
+            ProcessStripe(ByteBuffer.wrap(stripe).order(ByteOrder.LITTLE_ENDIAN), 0);
+            stripeLength = 0;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        engineUpdate(ByteBuffer.wrap(input, offset, len));
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        ByteBuffer bb = input.order() == ByteOrder.LITTLE_ENDIAN ? input : input.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int position = bb.position();
+        int limit = bb.limit();
+        totalLength += limit - position;
+
+        // fill up the stripe left over from the last update first
+        if(stripeLength > 0){
+            int n = Math.min(32 - stripeLength, limit - position);
+            for (int i = 0; i < n; i++)
+                stripe[stripeLength++] = bb.get(position++);
+            if(stripeLength < 32){
+                input.position(limit);
+                return;
+            }
+            ProcessStripe(ByteBuffer.wrap(stripe).order(ByteOrder.LITTLE_ENDIAN), 0);
+            stripeLength = 0;
+        }
+        while (limit - position >= 32){
+            ProcessStripe(bb, position);
+            position += 32;
+        }
+        while (position < limit)
+            stripe[stripeLength++] = bb.get(position++);
+        input.position(limit);
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long h;
+        if(totalLength >= 32){
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = MergeRound(h, v1);
+            h = MergeRound(h, v2);
+            h = MergeRound(h, v3);
+            h = MergeRound(h, v4);
+        }else{
+            h = PRIME64_5;
+        }
+        h += totalLength;
+
+        ByteBuffer rest = ByteBuffer.wrap(stripe, 0, stripeLength).order(ByteOrder.LITTLE_ENDIAN);
+        int p = 0;
+        for (; p + 8 <= stripeLength; p += 8) {
+            h ^= Round(0, rest.getLong(p));
+            h = Long.rotateLeft(h, 27) * PRIME64_1 + PRIME64_4;
+        }
+        if(p + 4 <= stripeLength){
+            h ^= (rest.getInt(p) & 0xFFFFFFFFL) * PRIME64_1;
+            h = Long.rotateLeft(h, 23) * PRIME64_2 + PRIME64_3;
+            p += 4;
+        }
+        for (; p < stripeLength; p++) {
+            h ^= (stripe[p] & 0xFF) * PRIME64_5;
+            h = Long.rotateLeft(h, 11) * PRIME64_1;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME64_2;
+        h ^= h >>> 29;
+        h *= PRIME64_3;
+        h ^= h >>> 32;
+
+        engineReset();
+        return ByteBuffer.allocate(8).putLong(h).array();
+    }
+
+    private void ProcessStripe(ByteBuffer bb, int position){
+        v1 = Round(v1, bb.getLong(position));
+        v2 = Round(v2, bb.getLong(position + 8));
+        v3 = Round(v3, bb.getLong(position + 16));
+        v4 = Round(v4, bb.getLong(position + 24));
+    }
+
+    private static long Round(long acc, long input){
+        acc += input * PRIME64_2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME64_1;
+    }
+
+    private static long MergeRound(long acc, long val){
+        acc ^= Round(0, val);
+        return acc * PRIME64_1 + PRIME64_4;
+    }
+}